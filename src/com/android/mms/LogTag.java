@@ -26,6 +26,10 @@ import android.util.Log;
 import com.android.mms.data.Contact;
 import com.android.mms.data.Conversation;
 import com.android.mms.data.RecipientIdCache;
+import com.android.mms.transaction.MessagingNotification;
+import com.android.mms.transaction.SmsSendQueue;
+import com.android.mms.transaction.TransactionService;
+import com.android.mms.util.FormattedTextCache;
 
 public class LogTag {
     public static final String TAG = "Mms";
@@ -102,6 +106,12 @@ public class LogTag {
                 Conversation.dump();
                 Conversation.dumpSmsTable(context);
                 Contact.dump();
+                MessagingNotification.dump();
+                TransactionService.dump();
+                SmsSendQueue.dump();
+                MmsApp.getApplication().getThumbnailManager().dump();
+                MmsApp.getApplication().getPduLoaderManager().dump();
+                FormattedTextCache.getInstance().dump();
             }
         }).start();
     }
@@ -40,6 +40,7 @@ import com.android.mms.transaction.SmsReceiver;
 import com.android.mms.transaction.SmsReceiverService;
 import com.android.mms.util.DownloadManager;
 import com.android.mms.util.DraftCache;
+import com.android.mms.util.FormattedTextCache;
 import com.android.mms.util.PduLoaderManager;
 import com.android.mms.util.RateController;
 import com.android.mms.util.SmileyParser;
@@ -99,6 +100,7 @@ public class MmsApp extends Application {
         LayoutManager.init(this);
         SmileyParser.init(this);
         EmojiParser.init(this);
+        FormattedTextCache.init();
         MessagingNotification.init(this);
 
         activePendingMessages();
@@ -134,6 +136,15 @@ public class MmsApp extends Application {
 
         mPduLoaderManager.onLowMemory();
         mThumbnailManager.onLowMemory();
+        FormattedTextCache.getInstance().clear();
+        Contact.onLowMemory();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        Contact.onTrimMemory(level);
     }
 
     public PduLoaderManager getPduLoaderManager() {
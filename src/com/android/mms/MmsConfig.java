@@ -104,6 +104,12 @@ public class MmsConfig {
     private static int mMaxSubjectLength = 40;  // maximum number of characters allowed for mms
                                                 // subject
 
+    // Number of MMS transactions that can run at the same time.
+    private static int mMaxTransactionWorkers = 3;
+
+    // Number of SMS that can be handed to the radio before the first of them reports back.
+    private static int mMaxOutstandingSmsSends = 3;
+
     // If mEnableGroupMms is true, a message with multiple recipients, regardless of contents,
     // will be sent as a single MMS message with multiple "TO" fields set for each recipient.
     // If mEnableGroupMms is false, the group MMS setting/preference will be hidden in the settings
@@ -265,6 +271,14 @@ public class MmsConfig {
         return mMaxSubjectLength;
     }
 
+    public static int getMaxTransactionWorkers() {
+        return mMaxTransactionWorkers;
+    }
+
+    public static int getMaxOutstandingSmsSends() {
+        return mMaxOutstandingSmsSends;
+    }
+
     public static boolean getGroupMmsEnabled() {
         return mEnableGroupMms;
     }
@@ -386,6 +400,10 @@ public class MmsConfig {
                             mMaxTextLength = Integer.parseInt(text);
                         } else if ("maxSubjectLength".equalsIgnoreCase(value)) {
                             mMaxSubjectLength = Integer.parseInt(text);
+                        } else if ("maxTransactionWorkers".equalsIgnoreCase(value)) {
+                            mMaxTransactionWorkers = Integer.parseInt(text);
+                        } else if ("maxOutstandingSmsSends".equalsIgnoreCase(value)) {
+                            mMaxOutstandingSmsSends = Integer.parseInt(text);
                         }
                     } else if ("string".equals(tag)) {
                         // string config tags go here
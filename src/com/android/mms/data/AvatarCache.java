@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Profile;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.mms.LogTag;
+
+/**
+ * Decoded contact avatars, kept in an LRU cache bounded by the number of bytes the
+ * bitmaps use rather than held by each Contact forever. An avatar that has been evicted
+ * is read from the contacts provider and decoded again on a background thread.
+ * <p>
+ * Avatars are keyed by contact id, or {@link #SELF_KEY} for the "Me" profile.
+ */
+class AvatarCache {
+    private static final String TAG = "Mms/AvatarCache";
+
+    static final long SELF_KEY = -1;
+
+    // Avatars are decoded no larger than this on their longest side. The list rows
+    // show them at well under this size.
+    private static final int MAX_AVATAR_SIZE = 256;
+
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private final Context mContext;
+    private final LruCache<Long, Bitmap> mBitmaps;
+    private final HashSet<Long> mPending = new HashSet<Long>();
+    private final ThreadPoolExecutor mExecutor;
+
+    AvatarCache(Context context) {
+        mContext = context;
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 32, MAX_CACHE_BYTES);
+        mBitmaps = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Contact.AvatarCache");
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    Bitmap get(long key) {
+        return mBitmaps.get(key);
+    }
+
+    /**
+     * Decode data and cache it as the avatar for key. Returns the bitmap, or null if
+     * the data couldn't be decoded.
+     */
+    Bitmap put(long key, byte[] data) {
+        Bitmap bitmap = decode(data);
+        if (bitmap != null) {
+            mBitmaps.put(key, bitmap);
+        } else {
+            mBitmaps.remove(key);
+        }
+        return bitmap;
+    }
+
+    void remove(long key) {
+        mBitmaps.remove(key);
+    }
+
+    /**
+     * Read and decode the avatar for key on the calling thread.
+     */
+    Bitmap load(long key) {
+        byte[] data = loadAvatarData(key);
+        return data != null ? put(key, data) : null;
+    }
+
+    /**
+     * Read and decode the avatar for key on the background thread, then run
+     * onLoaded there. Does nothing if a load for key is already queued.
+     */
+    void loadAsync(final long key, final Runnable onLoaded) {
+        synchronized (mPending) {
+            if (!mPending.add(key)) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = load(key);
+                } finally {
+                    synchronized (mPending) {
+                        mPending.remove(key);
+                    }
+                }
+                if (bitmap != null) {
+                    onLoaded.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the raw avatar bytes for key from the contacts provider, or null.
+     */
+    byte[] loadAvatarData(long key) {
+        // If the contact is "me", then use my local profile photo. Otherwise, build a
+        // uri to get the avatar of the contact.
+        Uri contactUri = key == SELF_KEY ?
+                Profile.CONTENT_URI :
+                ContentUris.withAppendedId(Contacts.CONTENT_URI, key);
+
+        byte[] data = null;
+        InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
+                    mContext.getContentResolver(),
+                    contactUri);
+        try {
+            if (avatarDataStream != null) {
+                data = new byte[avatarDataStream.available()];
+                avatarDataStream.read(data, 0, data.length);
+            }
+        } catch (IOException ex) {
+            //
+        } finally {
+            try {
+                if (avatarDataStream != null) {
+                    avatarDataStream.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+        return data;
+    }
+
+    private static Bitmap decode(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / sampleSize > MAX_AVATAR_SIZE) {
+            sampleSize <<= 1;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    void onLowMemory() {
+        mBitmaps.evictAll();
+    }
+
+    void onTrimMemory(int level) {
+        // Avatars are cheap to get back, so drop them as soon as we're in the background.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mBitmaps.evictAll();
+        }
+    }
+
+    void dump() {
+        Log.d(TAG, "AvatarCache: " + mBitmaps.size() + "/" + mBitmaps.maxSize() +
+                " bytes, hits=" + mBitmaps.hitCount() + " misses=" + mBitmaps.missCount() +
+                " evictions=" + mBitmaps.evictionCount());
+        if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+            Log.d(TAG, mBitmaps.toString());
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package com.android.mms.data;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -15,12 +13,13 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SqliteWrapper;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
@@ -47,6 +46,7 @@ public class Contact {
     private static final int CONTACT_METHOD_ID_UNKNOWN = -1;
     private static final String TAG = "Contact";
     private static ContactsCache sContactCache;
+    private static AvatarCache sAvatarCache;
     private static final String SELF_ITEM_KEY = "Self_Item_Key";
 
 //    private static final ContentObserver sContactsObserver = new ContentObserver(new Handler()) {
@@ -86,8 +86,9 @@ public class Contact {
     private long mPersonId;
     private int mPresenceResId;      // TODO: make this a state instead of a res ID
     private String mPresenceText;
-    private BitmapDrawable mAvatar;
-    private byte [] mAvatarData;
+    private int mAvatarHash;         // hash of the avatar image data, 0 if there's no avatar.
+                                     // The decoded bitmap lives in sAvatarCache.
+    private byte [] mAvatarData;     // only set on freshly loaded entries, see updateContact
     private boolean mIsStale;
     private boolean mQueryPending;
     private boolean mIsMe;          // true if this contact is me!
@@ -97,6 +98,28 @@ public class Contact {
         public void onUpdate(Contact updated);
     }
 
+    /**
+     * One requester's share of a queued async update, from {@link #requestPendingUpdate}.
+     */
+    public static final class PendingUpdate {
+        private final Contact mContact;
+        private final ContactsCache.TaskStack.Task mTask;
+
+        private PendingUpdate(Contact contact, ContactsCache.TaskStack.Task task) {
+            mContact = contact;
+            mTask = task;
+        }
+
+        /**
+         * Called when the view that made this request no longer needs the contact, e.g. a
+         * list row that was recycled. If the update is still queued and nobody else asked
+         * for it, it is dropped. Must be called at most once.
+         */
+        public void cancel() {
+            sContactCache.cancelPendingUpdate(this);
+        }
+    }
+
     private Contact(String number, String name) {
         init(number, name);
     }
@@ -161,6 +184,14 @@ public class Contact {
         return sContactCache.get(number, canBlock);
     }
 
+    /**
+     * Returns the contacts for numbers, in order. When canBlock is true, the contacts
+     * that need loading are looked up together in a few batched queries.
+     */
+    public static List<Contact> getAll(List<String> numbers, boolean canBlock) {
+        return sContactCache.getAll(numbers, canBlock);
+    }
+
     public static Contact getMe(boolean canBlock) {
         return sContactCache.getMe(canBlock);
     }
@@ -169,6 +200,17 @@ public class Contact {
         sContactCache.remove(this);
     }
 
+    /**
+     * For a view showing this contact that may go away before it's loaded. If the async
+     * update is still queued, counts the caller as one more requester of it and moves it
+     * to the top of the queue, and returns a handle to cancel that request with; otherwise
+     * returns null. Only requests made this way can be cancelled, so a view can't drop an
+     * update that someone else is still waiting on.
+     */
+    public PendingUpdate requestPendingUpdate() {
+        return sContactCache.requestPendingUpdate(this);
+    }
+
     public static List<Contact> getByPhoneUris(Parcelable[] uris) {
         return sContactCache.getContactInfoForPhoneUris(uris);
     }
@@ -344,17 +386,70 @@ public class Contact {
         }
     }
 
-    public synchronized Drawable getAvatar(Context context, Drawable defaultValue) {
-        if (mAvatar == null) {
-            if (mAvatarData != null) {
-                Bitmap b = BitmapFactory.decodeByteArray(mAvatarData, 0, mAvatarData.length);
-                mAvatar = new BitmapDrawable(context.getResources(), b);
+    /**
+     * Returns the contact's avatar, or defaultValue if it has none. If the avatar has been
+     * evicted from the cache, callers on the UI thread get defaultValue and the avatar is
+     * decoded in the background; listeners are notified once it's ready.
+     */
+    public Drawable getAvatar(Context context, Drawable defaultValue) {
+        final long key;
+        synchronized (this) {
+            if (mAvatarHash == 0) {
+                return defaultValue;
+            }
+            key = avatarKey();
+        }
+        Bitmap b = sAvatarCache.get(key);
+        if (b == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                final Contact c = this;
+                sAvatarCache.loadAsync(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyListeners(c);
+                    }
+                });
+            } else {
+                b = sAvatarCache.load(key);
+            }
+        }
+        return b != null ? new BitmapDrawable(context.getResources(), b) : defaultValue;
+    }
+
+    private long avatarKey() {
+        return mIsMe ? AvatarCache.SELF_KEY : mPersonId;
+    }
+
+    private static void notifyListeners(Contact c) {
+        // clone the list of listeners in case the onUpdate call turns around and
+        // modifies the list of listeners
+        // access to mListeners is synchronized on ContactsCache
+        HashSet<UpdateListener> iterator;
+        synchronized (mListeners) {
+            iterator = (HashSet<UpdateListener>)Contact.mListeners.clone();
+        }
+        for (UpdateListener l : iterator) {
+            if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                Log.d(TAG, "updating " + l);
             }
+            l.onUpdate(c);
         }
-        return mAvatar != null ? mAvatar : defaultValue;
+    }
+
+    /**
+     * Release the decoded avatars.
+     */
+    public static void onLowMemory() {
+        sAvatarCache.onLowMemory();
+    }
+
+    public static void onTrimMemory(int level) {
+        sAvatarCache.onTrimMemory(level);
     }
 
     public static void init(final Context context) {
+        ContactSnapshot.init(context);
+        sAvatarCache = new AvatarCache(context);
         sContactCache = new ContactsCache(context);
 
         RecipientIdCache.init(context);
@@ -371,6 +466,7 @@ public class Contact {
 
     public static void dump() {
         sContactCache.dump();
+        sAvatarCache.dump();
     }
 
     private static class ContactsCache {
@@ -412,6 +508,18 @@ public class Contact {
                 + " (lookup.len <= ? AND "
                     + " substr(?, ? - lookup.len + 1) = lookup.normalized_number))";
 
+        // query params for batched caller id lookup. This only narrows the candidates
+        // down by min_match; matchesCallerId() then applies the same comparison as
+        // CALLER_ID_SELECTION to each of them.
+        private static final String CALLER_ID_BATCH_SELECTION = " Data._ID IN "
+                + " (SELECT DISTINCT data_id "
+                + " FROM phone_lookup "
+                + " WHERE min_match IN (%s))";
+
+        // Number of min_match values per batched query, well under SQLite's limit on
+        // the number of bound arguments.
+        private static final int CALLER_ID_BATCH_SIZE = 50;
+
         // Utilizing private API
         private static final Uri PHONES_WITH_PRESENCE_URI = Data.CONTENT_URI;
 
@@ -478,6 +586,7 @@ public class Contact {
         void dump() {
             synchronized (ContactsCache.this) {
                 Log.d(TAG, "**** Contact cache dump ****");
+                mTaskQueue.dump();
                 for (String key : mContactsHash.keySet()) {
                     ArrayList<Contact> alc = mContactsHash.get(key);
                     for (Contact c : alc) {
@@ -487,49 +596,199 @@ public class Contact {
             }
         }
 
+        /**
+         * Runs contact lookups on a small pool of worker threads. The most recent request is
+         * served first since it's most likely for a row that just scrolled into view. Asking
+         * again for a contact that is already queued moves it back to the top instead of
+         * queueing it twice, and a queued lookup can be dropped once nobody wants it any
+         * more (see {@link Contact#requestPendingUpdate}).
+         */
         private static class TaskStack {
-            Thread mWorkerThread;
-            private final ArrayList<Runnable> mThingsToLoad;
+            private static final int MAX_WORKER_THREADS = 4;
+
+            private final Thread[] mWorkerThreads;
+
+            // Pending lookups by contact, and the same tasks as a stack with the newest at
+            // mTop. Both are guarded by mThingsToLoad.
+            private final HashMap<Contact, Task> mThingsToLoad = new HashMap<Contact, Task>();
+            private Task mTop;
+
+            // Statistics, also guarded by mThingsToLoad.
+            private int mMaxDepth;
+            private long mCompleted;
+            private long mMerged;
+            private long mCancelled;
+            private long mTotalWaitMs;
+            private long mTotalRunMs;
+
+            private static class Task {
+                final Contact mContact;
+                final Runnable mRunnable;
+                final long mQueuedAt = SystemClock.elapsedRealtime();
+                int mRequesters = 1;
+                Task mPrev;
+                Task mNext;
+
+                Task(Contact contact, Runnable r) {
+                    mContact = contact;
+                    mRunnable = r;
+                }
+            }
 
             public TaskStack() {
-                mThingsToLoad = new ArrayList<Runnable>();
-                mWorkerThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        while (true) {
-                            Runnable r = null;
-                            synchronized (mThingsToLoad) {
-                                if (mThingsToLoad.size() == 0) {
-                                    try {
-                                        mThingsToLoad.wait();
-                                    } catch (InterruptedException ex) {
-                                        // nothing to do
+                int count = Math.max(2,
+                        Math.min(Runtime.getRuntime().availableProcessors(), MAX_WORKER_THREADS));
+                mWorkerThreads = new Thread[count];
+                for (int i = 0; i < count; i++) {
+                    mWorkerThreads[i] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            while (true) {
+                                Task t;
+                                synchronized (mThingsToLoad) {
+                                    while (mTop == null) {
+                                        try {
+                                            mThingsToLoad.wait();
+                                        } catch (InterruptedException ex) {
+                                            // nothing to do
+                                        }
                                     }
+                                    t = mTop;
+                                    unlink(t);
+                                    mThingsToLoad.remove(t.mContact);
                                 }
-                                if (mThingsToLoad.size() > 0) {
-                                    r = mThingsToLoad.remove(0);
-                                }
-                            }
-                            if (r != null) {
-                                r.run();
+                                runTask(t);
                             }
                         }
-                    }
-                }, "Contact.ContactsCache.TaskStack worker thread");
-                mWorkerThread.setPriority(Thread.MIN_PRIORITY);
-                mWorkerThread.start();
+                    }, "Contact.ContactsCache.TaskStack worker thread " + i);
+                    mWorkerThreads[i].setPriority(Thread.MIN_PRIORITY);
+                    mWorkerThreads[i].start();
+                }
             }
 
-            public void push(Runnable r) {
+            private void runTask(Task t) {
+                long start = SystemClock.elapsedRealtime();
+                t.mRunnable.run();
+                long end = SystemClock.elapsedRealtime();
+                int depth;
                 synchronized (mThingsToLoad) {
-                    mThingsToLoad.add(r);
+                    mCompleted++;
+                    mTotalWaitMs += start - t.mQueuedAt;
+                    mTotalRunMs += end - start;
+                    depth = mThingsToLoad.size();
+                }
+                if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                    log("TaskStack: loaded " + t.mContact.mNumber + " waited " +
+                            (start - t.mQueuedAt) + "ms, ran " + (end - start) +
+                            "ms, queue depth " + depth);
+                }
+            }
+
+            public void push(Contact contact, Runnable r) {
+                synchronized (mThingsToLoad) {
+                    if (promote(contact)) {
+                        return;
+                    }
+                    Task t = new Task(contact, r);
+                    mThingsToLoad.put(contact, t);
+                    linkTop(t);
+                    if (mThingsToLoad.size() > mMaxDepth) {
+                        mMaxDepth = mThingsToLoad.size();
+                    }
                     mThingsToLoad.notify();
                 }
             }
+
+            /**
+             * If there's a queued lookup for contact, count another requester and move it to
+             * the top of the stack. Returns the queued lookup, or null if nothing was queued.
+             */
+            public Task promote(Contact contact) {
+                synchronized (mThingsToLoad) {
+                    Task t = mThingsToLoad.get(contact);
+                    if (t == null) {
+                        return null;
+                    }
+                    t.mRequesters++;
+                    mMerged++;
+                    if (t != mTop) {
+                        unlink(t);
+                        linkTop(t);
+                    }
+                    return t;
+                }
+            }
+
+            /**
+             * Drop one requester of task, the lookup promote returned, removing it when
+             * nobody is left waiting on it. Nothing happens if task was already taken off
+             * the stack, even if contact has been queued again since. Returns true if the
+             * lookup was removed.
+             */
+            public boolean cancel(Contact contact, Task task) {
+                synchronized (mThingsToLoad) {
+                    Task t = mThingsToLoad.get(contact);
+                    if (t == null || t != task || --t.mRequesters > 0) {
+                        return false;
+                    }
+                    unlink(t);
+                    mThingsToLoad.remove(contact);
+                    mCancelled++;
+                    return true;
+                }
+            }
+
+            /**
+             * Take the queued lookup for contact off the stack so the caller can run it
+             * itself. Returns false if it isn't queued (it may already be running).
+             */
+            public boolean remove(Contact contact) {
+                synchronized (mThingsToLoad) {
+                    Task t = mThingsToLoad.remove(contact);
+                    if (t == null) {
+                        return false;
+                    }
+                    unlink(t);
+                    return true;
+                }
+            }
+
+            void dump() {
+                synchronized (mThingsToLoad) {
+                    Log.d(TAG, "TaskStack: workers=" + mWorkerThreads.length +
+                            " depth=" + mThingsToLoad.size() + " maxDepth=" + mMaxDepth +
+                            " completed=" + mCompleted + " merged=" + mMerged +
+                            " cancelled=" + mCancelled +
+                            " avgWaitMs=" + (mCompleted > 0 ? mTotalWaitMs / mCompleted : 0) +
+                            " avgRunMs=" + (mCompleted > 0 ? mTotalRunMs / mCompleted : 0));
+                }
+            }
+
+            private void linkTop(Task t) {
+                t.mPrev = null;
+                t.mNext = mTop;
+                if (mTop != null) {
+                    mTop.mPrev = t;
+                }
+                mTop = t;
+            }
+
+            private void unlink(Task t) {
+                if (t.mPrev != null) {
+                    t.mPrev.mNext = t.mNext;
+                } else {
+                    mTop = t.mNext;
+                }
+                if (t.mNext != null) {
+                    t.mNext.mPrev = t.mPrev;
+                }
+                t.mPrev = null;
+                t.mNext = null;
+            }
         }
 
-        public void pushTask(Runnable r) {
-            mTaskQueue.push(r);
+        public void pushTask(Contact contact, Runnable r) {
+            mTaskQueue.push(contact, r);
         }
 
         public Contact getMe(boolean canBlock) {
@@ -561,6 +820,12 @@ public class Contact {
                 // If there's a query pending and we're willing to block then
                 // wait here until the query completes.
                 while (canBlock && contact.mQueryPending) {
+                    // If the query is still waiting for a worker thread, run it
+                    // here rather than waiting behind everything else in the queue.
+                    if (mTaskQueue.remove(contact)) {
+                        r = newUpdateTask(contact);
+                        break;
+                    }
                     try {
                         contact.wait();
                     } catch (InterruptedException ex) {
@@ -568,9 +833,12 @@ public class Contact {
                     }
                 }
 
-                // If we're stale and we haven't already kicked off a query then kick
-                // it off here.
-                if (contact.mIsStale && !contact.mQueryPending) {
+                if (r == null && !canBlock && contact.mQueryPending) {
+                    // Someone wants this contact again, so load it sooner.
+                    mTaskQueue.promote(contact);
+                } else if (r == null && contact.mIsStale && !contact.mQueryPending) {
+                    // If we're stale and we haven't already kicked off a query then kick
+                    // it off here.
                     contact.mIsStale = false;
 
                     if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
@@ -578,13 +846,7 @@ public class Contact {
                                 " isStale: " + contact.mIsStale);
                     }
 
-                    final Contact c = contact;
-                    r = new Runnable() {
-                        @Override
-                        public void run() {
-                            updateContact(c);
-                        }
-                    };
+                    r = newUpdateTask(contact);
 
                     // set this to true while we have the lock on contact since we will
                     // either run the query directly (canBlock case) or push the query
@@ -599,12 +861,213 @@ public class Contact {
                 if (canBlock) {
                     r.run();
                 } else {
-                    pushTask(r);
+                    pushTask(contact, r);
                 }
             }
             return contact;
         }
 
+        private Runnable newUpdateTask(final Contact c) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    updateContact(c);
+                }
+            };
+        }
+
+        PendingUpdate requestPendingUpdate(Contact contact) {
+            synchronized (contact) {
+                if (!contact.mQueryPending) {
+                    return null;
+                }
+                TaskStack.Task task = mTaskQueue.promote(contact);
+                return task != null ? new PendingUpdate(contact, task) : null;
+            }
+        }
+
+        /**
+         * Drop a queued async update if no one else is waiting for it. The contact is left
+         * stale so the next get() queues it again.
+         */
+        void cancelPendingUpdate(PendingUpdate update) {
+            Contact contact = update.mContact;
+            synchronized (contact) {
+                if (contact.mQueryPending && mTaskQueue.cancel(contact, update.mTask)) {
+                    contact.mQueryPending = false;
+                    contact.mIsStale = true;
+                    contact.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Returns the contacts for numbers, in order. This is the same as calling
+         * get(number, canBlock) for each of them, except that when canBlock is true
+         * the phone numbers that need loading are resolved with a few batched
+         * queries instead of one query apiece.
+         */
+        public List<Contact> getAll(List<String> numbers, boolean canBlock) {
+            ArrayList<Contact> contacts = new ArrayList<Contact>(numbers.size());
+            if (!canBlock) {
+                for (String number : numbers) {
+                    contacts.add(get(number, false));
+                }
+                return contacts;
+            }
+
+            ArrayList<Contact> toLoad = new ArrayList<Contact>();
+            for (String number : numbers) {
+                Contact contact = internalGet(TextUtils.isEmpty(number) ? "" : number, false);
+                synchronized (contact) {
+                    if (contact.mIsStale && !contact.mQueryPending &&
+                            !Mms.isEmailAddress(contact.mNumber) &&
+                            !isAlphaNumber(contact.mNumber)) {
+                        // Claim it the same way get() does; updateContact() releases it.
+                        contact.mIsStale = false;
+                        contact.mQueryPending = true;
+                        toLoad.add(contact);
+                    }
+                }
+            }
+            if (toLoad.size() > 0) {
+                batchUpdateContacts(toLoad);
+            }
+
+            // Anything left (email addresses, contacts some other thread is already
+            // loading) goes through the usual path, which is a no-op for those just loaded.
+            for (String number : numbers) {
+                contacts.add(get(number, true));
+            }
+            return contacts;
+        }
+
+        /**
+         * Look up the caller id info for a set of phone number contacts, all of which
+         * must have mQueryPending set, and update them.
+         */
+        private void batchUpdateContacts(List<Contact> contacts) {
+            HashMap<String, ArrayList<Contact>> byMinMatch =
+                    new HashMap<String, ArrayList<Contact>>();
+            HashMap<Contact, Contact> entries = new HashMap<Contact, Contact>();
+            for (Contact c : contacts) {
+                final String strippedNumber = PhoneNumberUtils.stripSeparators(c.mNumber);
+                Contact entry = new Contact(strippedNumber);
+                entry.mContactMethodType = CONTACT_METHOD_TYPE_PHONE;
+                entries.put(c, entry);
+
+                String minMatch = PhoneNumberUtils.toCallerIDMinMatch(
+                        PhoneNumberUtils.normalizeNumber(strippedNumber));
+                if (!TextUtils.isEmpty(minMatch)) {
+                    ArrayList<Contact> group = byMinMatch.get(minMatch);
+                    if (group == null) {
+                        group = new ArrayList<Contact>();
+                        byMinMatch.put(minMatch, group);
+                    }
+                    group.add(c);
+                }
+            }
+
+            try {
+                ArrayList<String> minMatches = new ArrayList<String>(byMinMatch.keySet());
+                for (int start = 0; start < minMatches.size(); start += CALLER_ID_BATCH_SIZE) {
+                    List<String> batch = minMatches.subList(start,
+                            Math.min(start + CALLER_ID_BATCH_SIZE, minMatches.size()));
+                    queryCallerIdBatch(batch, byMinMatch, entries);
+                }
+            } finally {
+                // Always release the contacts, even if some of the queries failed; the
+                // ones that weren't found get the empty entry, as in the single lookup.
+                for (Contact c : contacts) {
+                    updateContact(c, entries.get(c));
+                }
+            }
+        }
+
+        private void queryCallerIdBatch(List<String> minMatches,
+                HashMap<String, ArrayList<Contact>> byMinMatch,
+                HashMap<Contact, Contact> entries) {
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < minMatches.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ",?");
+            }
+            String selection = String.format(CALLER_ID_BATCH_SELECTION, placeholders);
+
+            if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+                log("queryCallerIdBatch: " + minMatches.size() + " min_match values");
+            }
+            Cursor cursor = mContext.getContentResolver().query(PHONES_WITH_PRESENCE_URI,
+                    CALLER_ID_PROJECTION, selection,
+                    minMatches.toArray(new String[minMatches.size()]), null);
+            if (cursor == null) {
+                Log.w(TAG, "queryCallerIdBatch returned NULL cursor!"
+                        + " contact uri used " + PHONES_WITH_PRESENCE_URI);
+                return;
+            }
+
+            HashSet<Contact> found = new HashSet<Contact>();
+            try {
+                while (cursor.moveToNext()) {
+                    // phone_lookup has a row for the normalized number and one for the
+                    // E164 number, either of which may be what matched.
+                    String lookup = PhoneNumberUtils.normalizeNumber(
+                            cursor.getString(PHONE_NUMBER_COLUMN));
+                    String lookupE164 = cursor.getString(PHONE_NORMALIZED_NUMBER);
+                    ArrayList<Contact> candidates = new ArrayList<Contact>();
+                    addCandidates(candidates, byMinMatch, lookup);
+                    addCandidates(candidates, byMinMatch, lookupE164);
+                    for (Contact c : candidates) {
+                        if (found.contains(c)) {
+                            continue;
+                        }
+                        Contact entry = entries.get(c);
+                        if (matchesCallerId(entry.mNumber, lookup) ||
+                                matchesCallerId(entry.mNumber, lookupE164)) {
+                            fillPhoneTypeContact(entry, cursor);
+                            found.add(c);
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private static void addCandidates(ArrayList<Contact> candidates,
+                HashMap<String, ArrayList<Contact>> byMinMatch, String lookupNumber) {
+            if (TextUtils.isEmpty(lookupNumber)) {
+                return;
+            }
+            ArrayList<Contact> group = byMinMatch.get(
+                    PhoneNumberUtils.toCallerIDMinMatch(lookupNumber));
+            if (group != null) {
+                for (Contact c : group) {
+                    if (!candidates.contains(c)) {
+                        candidates.add(c);
+                    }
+                }
+            }
+        }
+
+        /**
+         * The client side half of CALLER_ID_SELECTION: number matches a normalized
+         * number from phone_lookup if it's that number in E164 form, or if the lookup
+         * number is a suffix of number's normalized form.
+         */
+        private static boolean matchesCallerId(String number, String lookupNumber) {
+            if (TextUtils.isEmpty(lookupNumber)) {
+                return false;
+            }
+            String numberE164 = PhoneNumberUtils.formatNumberToE164(
+                    number, MmsApp.getApplication().getCurrentCountryIso());
+            if (lookupNumber.equals(numberE164)) {
+                return true;
+            }
+            String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+            return lookupNumber.length() <= normalizedNumber.length() &&
+                    normalizedNumber.endsWith(lookupNumber);
+        }
+
         /**
          * Get CacheEntry list for given phone URIs. This method will do single one query to
          * get expected contacts from provider. Be sure passed in URIs are not null and contains
@@ -647,6 +1110,12 @@ public class Contact {
                     Contact entry = new Contact(cursor.getString(PHONE_NUMBER_COLUMN),
                             cursor.getString(CONTACT_NAME_COLUMN));
                     fillPhoneTypeContact(entry, cursor);
+                    // This entry goes into the cache itself, so don't let it hang on
+                    // to the raw avatar bytes.
+                    if (entry.mAvatarData != null) {
+                        sAvatarCache.put(entry.avatarKey(), entry.mAvatarData);
+                        entry.mAvatarData = null;
+                    }
                     ArrayList<Contact> value = new ArrayList<Contact>();
                     value.add(entry);
                     // Put the result in the cache.
@@ -708,7 +1177,7 @@ public class Contact {
                 return true;
             }
 
-            if (!Arrays.equals(orig.mAvatarData, newContactData.mAvatarData)) {
+            if (orig.mAvatarHash != newContactData.mAvatarHash) {
                 if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
                     Log.d(TAG, "avatar changed");
                 }
@@ -723,9 +1192,25 @@ public class Contact {
                 return;
             }
 
-            Contact entry = getContactInfo(c);
+            updateContact(c, getContactInfo(c));
+        }
+
+        /**
+         * Copy freshly loaded info from entry into the cached contact c, notify
+         * listeners if anything changed, and clear c's pending query.
+         */
+        private void updateContact(final Contact c, Contact entry) {
+            ContactSnapshot.Record snapshot = null;
+            boolean avatarChanged;
             synchronized (c) {
-                if (contactChanged(c, entry)) {
+                avatarChanged = c.mAvatarHash != entry.mAvatarHash;
+                boolean changed = contactChanged(c, entry);
+                if (!c.mIsMe && (changed || c.mPersonId > 0)) {
+                    // Write it out even when it hasn't changed, since it may not be in
+                    // the snapshot yet; ContactSnapshot skips identical records.
+                    snapshot = toSnapshotRecord(entry);
+                }
+                if (changed) {
                     if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                         log("updateContact: contact changed for " + entry.mName);
                     }
@@ -735,8 +1220,7 @@ public class Contact {
                     c.mPersonId = entry.mPersonId;
                     c.mPresenceResId = entry.mPresenceResId;
                     c.mPresenceText = entry.mPresenceText;
-                    c.mAvatarData = entry.mAvatarData;
-                    c.mAvatar = entry.mAvatar;
+                    c.mAvatarHash = entry.mAvatarHash;
                     c.mContactMethodId = entry.mContactMethodId;
                     c.mContactMethodType = entry.mContactMethodType;
                     c.mNumberE164 = entry.mNumberE164;
@@ -752,19 +1236,7 @@ public class Contact {
                     // again -- all in a vicious and unending loop. Break the cycle and don't
                     // notify if the number (the most important piece of information) is empty.
                     if (!TextUtils.isEmpty(c.mNumber)) {
-                        // clone the list of listeners in case the onUpdate call turns around and
-                        // modifies the list of listeners
-                        // access to mListeners is synchronized on ContactsCache
-                        HashSet<UpdateListener> iterator;
-                        synchronized (mListeners) {
-                            iterator = (HashSet<UpdateListener>)Contact.mListeners.clone();
-                        }
-                        for (UpdateListener l : iterator) {
-                            if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
-                                Log.d(TAG, "updating " + l);
-                            }
-                            l.onUpdate(c);
-                        }
+                        notifyListeners(c);
                     }
                 }
                 synchronized (c) {
@@ -772,6 +1244,51 @@ public class Contact {
                     c.notifyAll();
                 }
             }
+            if (snapshot != null) {
+                ContactSnapshot.put(snapshot);
+            }
+
+            // We've already got the avatar bytes in hand, so decode them now (we're on a
+            // background thread) rather than reading them again when the avatar is drawn.
+            long avatarKey = entry.avatarKey();
+            if (entry.mAvatarData != null) {
+                if (avatarChanged || sAvatarCache.get(avatarKey) == null) {
+                    sAvatarCache.put(avatarKey, entry.mAvatarData);
+                }
+            } else if (avatarChanged) {
+                sAvatarCache.remove(avatarKey);
+            }
+        }
+
+        private static ContactSnapshot.Record toSnapshotRecord(Contact entry) {
+            ContactSnapshot.Record r = new ContactSnapshot.Record();
+            r.number = entry.mNumber;
+            r.name = entry.mName;
+            r.label = entry.mLabel;
+            r.personId = entry.mPersonId;
+            r.contactMethodId = entry.mContactMethodId;
+            r.contactMethodType = entry.mContactMethodType;
+            r.avatarHash = entry.mAvatarHash;
+            return r;
+        }
+
+        /**
+         * Fill in a newly created contact with what the snapshot remembers about it.
+         * The contact stays stale, so the first get() still revalidates it. This runs
+         * under the cache lock, often on the UI thread, but the snapshot is in memory.
+         */
+        private static void fillFromSnapshot(Contact c, String numberOrEmail) {
+            ContactSnapshot.Record r = ContactSnapshot.get(numberOrEmail);
+            if (r == null) {
+                return;
+            }
+            c.mName = r.name;
+            c.mLabel = r.label;
+            c.mPersonId = r.personId;
+            c.mContactMethodId = r.contactMethodId;
+            c.mContactMethodType = r.contactMethodType;
+            c.mAvatarHash = r.avatarHash;
+            c.notSynchronizedUpdateNameAndNumber();
         }
 
         /**
@@ -929,7 +1446,7 @@ public class Contact {
             byte[] data = loadAvatarData(contact);
 
             synchronized (contact) {
-                contact.mAvatarData = data;
+                setAvatarData(contact, data);
             }
         }
 
@@ -947,20 +1464,21 @@ public class Contact {
             byte[] data = loadAvatarData(contact);
 
             synchronized (contact) {
-                contact.mAvatarData = data;
+                setAvatarData(contact, data);
             }
         }
+        private static void setAvatarData(Contact entry, byte[] data) {
+            entry.mAvatarData = data;
+            entry.mAvatarHash = data != null ? Arrays.hashCode(data) : 0;
+        }
+
         /*
-         * Load the avatar data from the cursor into memory.  Don't decode the data
-         * until someone calls for it (see getAvatar).  Hang onto the raw data so that
-         * we can compare it when the data is reloaded.
-         * TODO: consider comparing a checksum so that we don't have to hang onto
-         * the raw bytes after the image is decoded.
+         * Load the avatar data for a freshly queried entry.  updateContact decodes it
+         * into the avatar cache; the cached Contact only keeps a hash of it so that we
+         * can tell when the avatar changes.
          */
         private byte[] loadAvatarData(Contact entry) {
-            byte [] data = null;
-
-            if ((!entry.mIsMe && entry.mPersonId == 0) || entry.mAvatar != null) {
+            if (!entry.mIsMe && entry.mPersonId == 0) {
                 return null;
             }
 
@@ -968,32 +1486,7 @@ public class Contact {
                 log("loadAvatarData: name=" + entry.mName + ", number=" + entry.mNumber);
             }
 
-            // If the contact is "me", then use my local profile photo. Otherwise, build a
-            // uri to get the avatar of the contact.
-            Uri contactUri = entry.mIsMe ?
-                    Profile.CONTENT_URI :
-                    ContentUris.withAppendedId(Contacts.CONTENT_URI, entry.mPersonId);
-
-            InputStream avatarDataStream = Contacts.openContactPhotoInputStream(
-                        mContext.getContentResolver(),
-                        contactUri);
-            try {
-                if (avatarDataStream != null) {
-                    data = new byte[avatarDataStream.available()];
-                    avatarDataStream.read(data, 0, data.length);
-                }
-            } catch (IOException ex) {
-                //
-            } finally {
-                try {
-                    if (avatarDataStream != null) {
-                        avatarDataStream.close();
-                    }
-                } catch (IOException e) {
-                }
-            }
-
-            return data;
+            return sAvatarCache.loadAvatarData(entry.avatarKey());
         }
 
         private int getPresenceIconResourceId(int presence) {
@@ -1049,7 +1542,7 @@ public class Contact {
                         if (found) {
                             byte[] data = loadAvatarData(entry);
                             synchronized (entry) {
-                                entry.mAvatarData = data;
+                                setAvatarData(entry, data);
                             }
 
                             break;
@@ -1123,9 +1616,13 @@ public class Contact {
                     // call toString() since it may be the static CharBuffer
                     mContactsHash.put(key, candidates);
                 }
-                Contact c = isMe ?
-                        new Contact(true) :
-                        new Contact(numberOrEmail);
+                Contact c;
+                if (isMe) {
+                    c = new Contact(true);
+                } else {
+                    c = new Contact(numberOrEmail);
+                    fillFromSnapshot(c, numberOrEmail);
+                }
                 candidates.add(c);
                 return c;
             }
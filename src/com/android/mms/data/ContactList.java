@@ -15,12 +15,14 @@ public class ContactList extends ArrayList<Contact>  {
     private static final long serialVersionUID = 1L;
 
     public static ContactList getByNumbers(Iterable<String> numbers, boolean canBlock) {
-        ContactList list = new ContactList();
+        List<String> nonEmpty = new ArrayList<String>();
         for (String number : numbers) {
             if (!TextUtils.isEmpty(number)) {
-                list.add(Contact.get(number, canBlock));
+                nonEmpty.add(number);
             }
         }
+        ContactList list = new ContactList();
+        list.addAll(Contact.getAll(nonEmpty, canBlock));
         return list;
     }
 
@@ -70,14 +72,24 @@ public class ContactList extends ArrayList<Contact>  {
      * create the contact if it doesn't exist, and would inject the recipient id into the contact.
      */
     public static ContactList getByIds(String spaceSepIds, boolean canBlock) {
-        ContactList list = new ContactList();
+        List<RecipientIdCache.Entry> entries = new ArrayList<RecipientIdCache.Entry>();
+        List<String> numbers = new ArrayList<String>();
         for (RecipientIdCache.Entry entry : RecipientIdCache.getAddresses(spaceSepIds)) {
             if (entry != null && !TextUtils.isEmpty(entry.number)) {
-                Contact contact = Contact.get(entry.number, canBlock);
-                contact.setRecipientId(entry.id);
-                list.add(contact);
+                entries.add(entry);
+                numbers.add(entry.number);
             }
         }
+
+        // Look the contacts up together so that a blocking call makes a few batched
+        // queries rather than one per recipient.
+        List<Contact> contacts = Contact.getAll(numbers, canBlock);
+        ContactList list = new ContactList();
+        for (int i = 0; i < contacts.size(); i++) {
+            Contact contact = contacts.get(i);
+            contact.setRecipientId(entries.get(i).id);
+            list.add(contact);
+        }
         return list;
     }
 
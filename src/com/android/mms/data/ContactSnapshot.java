@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import android.content.Context;
+import android.provider.Telephony.Mms;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.mms.LogTag;
+import com.android.mms.util.BlobCache;
+
+/**
+ * A snapshot of the caller id info the ContactsCache has resolved, kept on disk so that
+ * after a process restart names can be shown right away instead of raw numbers.
+ * Entries are only a starting point: a contact filled in from the snapshot is still
+ * stale and gets revalidated against the contacts provider the first time it's used.
+ * <p>
+ * The whole snapshot is read into memory on a background thread when it's opened, and
+ * {@link #get} only ever looks in memory, since the ContactsCache calls it on the UI
+ * thread with its lock held. Until the read is done, get finds nothing. Changes are
+ * written out on a background thread, all of them at once a little while after the
+ * first.
+ */
+class ContactSnapshot {
+    private static final String TAG = "Mms/ContactSnapshot";
+
+    private static final String SNAPSHOT_FILE = "contactsnapshot";
+    // The BlobCache the snapshot used to be kept in.
+    private static final String OLD_CACHE_FILE = "contactcache";
+    private static final int MAX_ENTRIES = 2000;
+    private static final int VERSION = 2;
+
+    // How long after a change the snapshot is written, so a burst of lookups is written
+    // out once.
+    private static final long WRITE_DELAY_MS = 5000;
+
+    // Records by key(number), least recently used first. Guarded by ContactSnapshot.class.
+    private static LruCache<String, Record> sRecords = new LruCache<String, Record>(MAX_ENTRIES);
+    private static boolean sWriteScheduled;
+    private static File sFile;
+
+    // Held while the file is written, so two writes can't interleave.
+    private static final Object sWriteLock = new Object();
+
+    /**
+     * The same number can come in formatted differently (the ContactsCache formats the
+     * numbers it hands out), so phone numbers are keyed by their normalized form.
+     */
+    private static String key(String number) {
+        if (Mms.isEmailAddress(number) || !PhoneNumberUtils.isWellFormedSmsAddress(number)) {
+            return number;
+        }
+        return PhoneNumberUtils.normalizeNumber(number);
+    }
+
+    static class Record {
+        String number;
+        String name;
+        String label;
+        long personId;
+        long contactMethodId;
+        int contactMethodType;
+        int avatarHash;     // so a new avatar rewrites the record; the bytes aren't stored
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(number);
+            out.writeUTF(name != null ? name : "");
+            out.writeUTF(label != null ? label : "");
+            out.writeLong(personId);
+            out.writeLong(contactMethodId);
+            out.writeInt(contactMethodType);
+            out.writeInt(avatarHash);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        static Record fromBytes(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            Record r = new Record();
+            r.number = in.readUTF();
+            r.name = in.readUTF();
+            r.label = in.readUTF();
+            r.personId = in.readLong();
+            r.contactMethodId = in.readLong();
+            r.contactMethodType = in.readInt();
+            r.avatarHash = in.readInt();
+            return r;
+        }
+
+        boolean sameAs(Record r) {
+            return number.equals(r.number) && name.equals(r.name) && label.equals(r.label) &&
+                    personId == r.personId && contactMethodId == r.contactMethodId &&
+                    contactMethodType == r.contactMethodType && avatarHash == r.avatarHash;
+        }
+    }
+
+    /**
+     * Start reading the snapshot into memory. Called once from Contact.init.
+     */
+    static void init(Context context) {
+        final File cacheDir = context.getCacheDir();
+        synchronized (ContactSnapshot.class) {
+            sFile = new File(cacheDir, SNAPSHOT_FILE);
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                BlobCache.deleteFiles(new File(cacheDir, OLD_CACHE_FILE).getAbsolutePath());
+                load();
+            }
+        }, "ContactSnapshot.init").start();
+    }
+
+    private static void load() {
+        LruCache<String, Record> records = new LruCache<String, Record>(MAX_ENTRIES);
+        File file;
+        synchronized (ContactSnapshot.class) {
+            file = sFile;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == VERSION) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    Record r = Record.fromBytes(data);
+                    records.put(r.number, r);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (IOException e) {
+            Log.w(TAG, "load failed", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        synchronized (ContactSnapshot.class) {
+            // What was put while we were reading is newer than what we read.
+            for (Map.Entry<String, Record> entry : sRecords.snapshot().entrySet()) {
+                records.put(entry.getKey(), entry.getValue());
+            }
+            sRecords = records;
+        }
+        if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+            Log.d(TAG, "load: " + records.size() + " records");
+        }
+    }
+
+    /**
+     * Returns the last known info for number, or null if there is none. Never touches
+     * the disk.
+     */
+    static Record get(String number) {
+        number = key(number);
+        synchronized (ContactSnapshot.class) {
+            return sRecords.get(number);
+        }
+    }
+
+    /**
+     * Save r, unless the snapshot already has exactly the same info for its number.
+     */
+    static void put(Record r) {
+        r.number = key(r.number);
+        if (r.name == null) {
+            r.name = "";
+        }
+        if (r.label == null) {
+            r.label = "";
+        }
+        synchronized (ContactSnapshot.class) {
+            Record old = sRecords.get(r.number);
+            if (old != null && old.sameAs(r)) {
+                return;
+            }
+            sRecords.put(r.number, r);
+            if (sWriteScheduled || sFile == null) {
+                return;
+            }
+            sWriteScheduled = true;
+        }
+        if (Log.isLoggable(LogTag.CONTACT, Log.DEBUG)) {
+            Log.d(TAG, "put: " + r.number);
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(WRITE_DELAY_MS);
+                } catch (InterruptedException e) {
+                }
+                write();
+            }
+        }, "ContactSnapshot.write").start();
+    }
+
+    private static void write() {
+        Map<String, Record> records;
+        File file;
+        synchronized (ContactSnapshot.class) {
+            records = sRecords.snapshot();
+            file = sFile;
+            sWriteScheduled = false;
+        }
+        synchronized (sWriteLock) {
+            // Write a new file and rename it over the old one, so a crash part way through
+            // can't leave half a snapshot.
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                out.writeInt(VERSION);
+                out.writeInt(records.size());
+                // Least recently used first, so load puts them back in the same order.
+                for (Record r : records.values()) {
+                    byte[] data = r.toBytes();
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+                out.close();
+                out = null;
+                if (!tmp.renameTo(file)) {
+                    Log.w(TAG, "write: rename failed");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "write failed", e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                    tmp.delete();
+                }
+            }
+        }
+    }
+}
@@ -2,8 +2,10 @@ package com.android.mms.data;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import android.app.Activity;
@@ -16,6 +18,7 @@ import android.database.Cursor;
 import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -26,16 +29,20 @@ import android.provider.Telephony.ThreadsColumns;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.mms.LogTag;
 import com.android.mms.MmsApp;
 import com.android.mms.R;
 import com.android.mms.transaction.MessagingNotification;
 import com.android.mms.transaction.MmsMessageSender;
+import com.android.mms.transaction.SmsSendQueue;
 import com.android.mms.ui.ComposeMessageActivity;
 import com.android.mms.ui.MessageUtils;
 import com.android.mms.util.AddressUtils;
 import com.android.mms.util.DraftCache;
+import com.android.mms.util.LongHashMap;
+import com.android.mms.util.PduLoaderManager;
 
 import com.google.android.mms.pdu.PduHeaders;
 
@@ -106,6 +113,10 @@ public class Conversation {
     private boolean mMarkAsReadBlocked;
     private boolean mMarkAsReadWaiting;
 
+    // The keys this conversation is filed under in the Cache. Guarded by the Cache lock.
+    private long mCacheThreadId;
+    private RecipientKey mCacheKey;
+
     private Conversation(Context context) {
         mContext = context;
         mRecipients = new ContactList();
@@ -398,6 +409,7 @@ public class Conversation {
                                 UNREAD_SELECTION, null);
                     }
                     setHasUnreadMessages(false);
+                    MessagingNotification.removeUnreadThread(mThreadId);
                 }
 
                 if (updateNotifications) {
@@ -468,18 +480,28 @@ public class Conversation {
      *
      * @return The thread ID of this conversation in the database
      */
-    public synchronized long ensureThreadId() {
-        if (DEBUG || DELETEDEBUG) {
-            LogTag.debug("ensureThreadId before: " + mThreadId);
-        }
-        if (mThreadId <= 0) {
-            mThreadId = getOrCreateThreadId(mContext, mRecipients);
+    public long ensureThreadId() {
+        long threadId;
+        boolean created = false;
+        synchronized (this) {
+            if (DEBUG || DELETEDEBUG) {
+                LogTag.debug("ensureThreadId before: " + mThreadId);
+            }
+            if (mThreadId <= 0) {
+                mThreadId = getOrCreateThreadId(mContext, mRecipients);
+                created = true;
+            }
+            if (DEBUG || DELETEDEBUG) {
+                LogTag.debug("ensureThreadId after: " + mThreadId);
+            }
+            threadId = mThreadId;
         }
-        if (DEBUG || DELETEDEBUG) {
-            LogTag.debug("ensureThreadId after: " + mThreadId);
+        if (created) {
+            // Outside our own lock: the Cache takes its lock before ours.
+            Cache.updateThreadId(this);
         }
 
-        return mThreadId;
+        return threadId;
     }
 
     public synchronized void clearThreadId() {
@@ -488,6 +510,8 @@ public class Conversation {
             LogTag.debug("clearThreadId old threadId was: " + mThreadId + " now zero");
         }
         Cache.remove(mThreadId);
+        // Our thread may be gone; don't hand its id out again.
+        ThreadIdCache.remove(mThreadId);
 
         mThreadId = 0;
     }
@@ -640,7 +664,12 @@ public class Conversation {
                     break;
                 }
             }
-            long retVal = Threads.getOrCreateThreadId(context, recipients);
+            ArrayList<String> key = ThreadIdCache.keyFor(recipients);
+            long retVal = ThreadIdCache.get(key);
+            if (retVal <= 0) {
+                retVal = Threads.getOrCreateThreadId(context, recipients);
+                ThreadIdCache.put(key, retVal);
+            }
             if (DELETEDEBUG || Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                 LogTag.debug("[Conversation] getOrCreateThreadId for (%s) returned %d",
                         recipients, retVal);
@@ -670,7 +699,12 @@ public class Conversation {
                     break;
                 }
             }
-            long retVal = Threads.getOrCreateThreadId(context, address);
+            ArrayList<String> key = ThreadIdCache.keyFor(Collections.singleton(address));
+            long retVal = ThreadIdCache.get(key);
+            if (retVal <= 0) {
+                retVal = Threads.getOrCreateThreadId(context, address);
+                ThreadIdCache.put(key, retVal);
+            }
             if (DELETEDEBUG || Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                 LogTag.debug("[Conversation] getOrCreateThreadId for (%s) returned %d",
                         address, retVal);
@@ -709,9 +743,18 @@ public class Conversation {
      * that aren't referenced by any message in the pdu or sms tables.
      */
     public static void asyncDeleteObsoleteThreads(AsyncQueryHandler handler, int token) {
+        invalidateThreadIdCache();
         handler.startDelete(token, null, Threads.OBSOLETE_THREADS_URI, null, null);
     }
 
+    /**
+     * Forget every thread id found by recipient set. Must be called by anything outside
+     * this class that deletes threads, such as by deleting Threads.OBSOLETE_THREADS_URI.
+     */
+    public static void invalidateThreadIdCache() {
+        ThreadIdCache.clear();
+    }
+
     /**
      * Start a query for all conversations in the database on the specified
      * AsyncQueryHandler.
@@ -771,8 +814,13 @@ public class Conversation {
             if (sDeletingThreads) {
                 Log.e(TAG, "startDeleteAll already in the middle of a delete", new Exception());
             }
-            MmsApp.getApplication().getPduLoaderManager().clear();
+            PduLoaderManager pduLoaderManager = MmsApp.getApplication().getPduLoaderManager();
+            pduLoaderManager.clear();
+            pduLoaderManager.clearSummaryBackingStore();
             sDeletingThreads = true;
+            ThreadIdCache.remove(threadIds);
+            // The threads may have messages waiting to be sent.
+            SmsSendQueue.getInstance().invalidate();
 
             for (long threadId : threadIds) {
                 Uri uri = ContentUris.withAppendedId(Threads.CONTENT_URI, threadId);
@@ -804,10 +852,13 @@ public class Conversation {
                 Log.e(TAG, "startDeleteAll already in the middle of a delete", new Exception());
             }
             sDeletingThreads = true;
+            ThreadIdCache.clear();
+            SmsSendQueue.getInstance().invalidate();
             String selection = deleteAll ? null : "locked=0";
 
             MmsApp app = MmsApp.getApplication();
             app.getPduLoaderManager().clear();
+            app.getPduLoaderManager().clearSummaryBackingStore();
             app.getThumbnailManager().clear();
 
             handler.setDeleteToken(token);
@@ -941,13 +992,22 @@ public class Conversation {
 
     /**
      * Private cache for the use of the various forms of Conversation.get.
+     * Conversations are indexed both by thread ID and by recipient set so that
+     * either lookup is a hash probe rather than a scan of every cached thread.
+     * Both the thread ID and the recipients of a conversation can change in
+     * place, so each conversation remembers the keys it was filed under
+     * (mCacheThreadId and mCacheKey) and lookups verify what they find.
      */
     private static class Cache {
         private static Cache sInstance = new Cache();
         static Cache getInstance() { return sInstance; }
-        private final HashSet<Conversation> mCache;
+        private final LongHashMap<Conversation> mByThreadId;
+        private final HashMap<RecipientKey, Conversation> mByRecipients;
+        private int mHits;
+        private int mMisses;
         private Cache() {
-            mCache = new HashSet<Conversation>(10);
+            mByThreadId = new LongHashMap<Conversation>(10);
+            mByRecipients = new HashMap<RecipientKey, Conversation>(10);
         }
 
         /**
@@ -959,17 +1019,20 @@ public class Conversation {
                 if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
                     LogTag.debug("Conversation get with threadId: " + threadId);
                 }
-                for (Conversation c : sInstance.mCache) {
+                Conversation c = sInstance.mByThreadId.get(threadId);
+                if (c != null && c.getThreadId() != threadId) {
+                    // The thread ID was changed in place after the conversation was
+                    // filed. Move it to where it belongs now.
                     if (DEBUG) {
                         LogTag.debug("Conversation get() threadId: " + threadId +
                                 " c.getThreadId(): " + c.getThreadId());
                     }
-                    if (c.getThreadId() == threadId) {
-                        return c;
-                    }
+                    sInstance.refile(c);
+                    c = sInstance.mByThreadId.get(threadId);
                 }
+                sInstance.count(c);
+                return c;
             }
-            return null;
         }
 
         /**
@@ -981,13 +1044,15 @@ public class Conversation {
                 if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
                     LogTag.debug("Conversation get with ContactList: " + list);
                 }
-                for (Conversation c : sInstance.mCache) {
-                    if (c.getRecipients().equals(list)) {
-                        return c;
-                    }
+                RecipientKey key = new RecipientKey(list);
+                Conversation c = sInstance.mByRecipients.get(key);
+                if (c != null && !c.getRecipients().equals(list)) {
+                    sInstance.refile(c);
+                    c = sInstance.mByRecipients.get(key);
                 }
+                sInstance.count(c);
+                return c;
             }
-            return null;
         }
 
         /**
@@ -1003,14 +1068,15 @@ public class Conversation {
                     Log.d(TAG, "Conversation.Cache.put: conv= " + c + ", hash: " + c.hashCode());
                 }
 
-                if (sInstance.mCache.contains(c)) {
+                RecipientKey key = new RecipientKey(c.getRecipients());
+                if (sInstance.mByRecipients.containsKey(key)) {
                     if (DEBUG) {
                         dumpCache();
                     }
                     throw new IllegalStateException("cache already contains " + c +
                             " threadId: " + c.mThreadId);
                 }
-                sInstance.mCache.add(c);
+                sInstance.file(c, key, true);
             }
         }
 
@@ -1029,19 +1095,18 @@ public class Conversation {
                     LogTag.debug("Conversation.Cache.put: conv= " + c + ", hash: " + c.hashCode());
                 }
 
-                if (!sInstance.mCache.contains(c)) {
+                RecipientKey key = new RecipientKey(c.getRecipients());
+                Conversation stale = sInstance.mByRecipients.get(key);
+                if (stale == null) {
                     if (DEBUG) {
                         dumpCache();
                     }
                     return false;
                 }
-                // Here it looks like we're simply removing and then re-adding the same object
-                // to the hashset. Because the hashkey is the conversation's recipients, and not
-                // the thread id, we'll actually remove the object with the stale threadId and
-                // then add the the conversation with updated threadId, both having the same
-                // recipients.
-                sInstance.mCache.remove(c);
-                sInstance.mCache.add(c);
+                // The stale entry has the same recipients but an out of date thread id.
+                // Drop it from both indexes and file the new conversation in its place.
+                sInstance.unfile(stale);
+                sInstance.file(c, key, true);
                 return true;
             }
         }
@@ -1052,19 +1117,35 @@ public class Conversation {
                     LogTag.debug("remove threadid: " + threadId);
                     dumpCache();
                 }
-                for (Conversation c : sInstance.mCache) {
-                    if (c.getThreadId() == threadId) {
-                        sInstance.mCache.remove(c);
-                        return;
-                    }
+                // Note that this is called with the conversation's own lock held (see
+                // clearThreadId), so it must only look at the indexes and not the
+                // conversations themselves.
+                Conversation c = sInstance.mByThreadId.get(threadId);
+                if (c != null) {
+                    sInstance.unfile(c);
+                }
+            }
+        }
+
+        /**
+         * Re-index a cached conversation whose thread ID has been assigned or
+         * changed in place. Does nothing if the conversation isn't cached.
+         */
+        static void updateThreadId(Conversation c) {
+            synchronized (sInstance) {
+                if (c.mCacheKey != null) {
+                    sInstance.refile(c);
                 }
             }
         }
 
         static void dumpCache() {
             synchronized (sInstance) {
-                LogTag.debug("Conversation dumpCache: ");
-                for (Conversation c : sInstance.mCache) {
+                LogTag.debug("Conversation dumpCache: hits: " + sInstance.mHits +
+                        " misses: " + sInstance.mMisses + " size: " +
+                        sInstance.mByRecipients.size() + " indexed by threadId: " +
+                        sInstance.mByThreadId.size());
+                for (Conversation c : sInstance.mByRecipients.values()) {
                     LogTag.debug("   conv: " + c.toString() + " hash: " + c.hashCode());
                 }
             }
@@ -1076,19 +1157,214 @@ public class Conversation {
          */
         static void keepOnly(Set<Long> threads) {
             synchronized (sInstance) {
-                Iterator<Conversation> iter = sInstance.mCache.iterator();
-                while (iter.hasNext()) {
-                    Conversation c = iter.next();
+                ArrayList<Conversation> obsolete = new ArrayList<Conversation>();
+                for (Conversation c : sInstance.mByRecipients.values()) {
                     if (!threads.contains(c.getThreadId())) {
-                        iter.remove();
+                        obsolete.add(c);
                     }
                 }
+                for (Conversation c : obsolete) {
+                    sInstance.unfile(c);
+                }
             }
             if (DEBUG) {
                 LogTag.debug("after keepOnly");
                 dumpCache();
             }
         }
+
+        private void count(Conversation c) {
+            if (c != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+
+        /**
+         * Add c to the indexes. When displace is false an index slot already held by
+         * another conversation is left alone.
+         */
+        private void file(Conversation c, RecipientKey key, boolean displace) {
+            long threadId = c.getThreadId();
+            if (displace || !mByRecipients.containsKey(key)) {
+                Conversation previous = mByRecipients.put(key, c);
+                if (previous != null && previous != c) {
+                    unfile(previous);
+                }
+                c.mCacheKey = key;
+            }
+            if (threadId > 0 && (displace || !mByThreadId.containsKey(threadId))) {
+                mByThreadId.put(threadId, c);
+                c.mCacheThreadId = threadId;
+            }
+            if (c.mCacheKey == null && c.mCacheThreadId > 0) {
+                // Reachable by thread id only; give it its key so it can be unfiled.
+                c.mCacheKey = key;
+            }
+        }
+
+        /**
+         * Remove c from whichever indexes still point at it.
+         */
+        private void unfile(Conversation c) {
+            if (c.mCacheKey != null && mByRecipients.get(c.mCacheKey) == c) {
+                mByRecipients.remove(c.mCacheKey);
+            }
+            if (c.mCacheThreadId > 0 && mByThreadId.get(c.mCacheThreadId) == c) {
+                mByThreadId.remove(c.mCacheThreadId);
+            }
+            c.mCacheKey = null;
+            c.mCacheThreadId = 0;
+        }
+
+        private void refile(Conversation c) {
+            unfile(c);
+            file(c, new RecipientKey(c.getRecipients()), false);
+        }
+    }
+
+    /**
+     * Hash key for a recipient set. As in {@link ContactList#equals}, two sets are the
+     * same if they hold the same Contact objects in any order; Contacts are shared
+     * through Contact.get so identity is what matters.
+     */
+    private static final class RecipientKey {
+        private final Contact[] mContacts;
+        private final int mHash;
+
+        RecipientKey(ContactList list) {
+            mContacts = list.toArray(new Contact[list.size()]);
+            int hash = 0;
+            for (Contact c : mContacts) {
+                // Order-independent so the key doesn't depend on how the list was built.
+                hash += System.identityHashCode(c);
+            }
+            mHash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RecipientKey)) {
+                return false;
+            }
+            RecipientKey other = (RecipientKey) obj;
+            if (mHash != other.mHash || mContacts.length != other.mContacts.length) {
+                return false;
+            }
+            for (Contact c : mContacts) {
+                boolean found = false;
+                for (Contact o : other.mContacts) {
+                    if (c == o) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The thread ids getOrCreateThreadId has found, by recipient set, so sending to or
+     * hearing from the same people again doesn't ask the provider every time. A recipient
+     * set is keyed by its sorted addresses; sets that only differ in how a number is
+     * written miss, which is safe.
+     * <p>
+     * A thread id must not be handed out once its thread is deleted, or messages would be
+     * stored into a thread that no longer exists. Entries are dropped for threads deleted
+     * through startDelete, startDeleteAll and asyncDeleteObsoleteThreads, all threads when
+     * invalidateThreadIdCache is called, and for threads that clearThreadId is called on
+     * because their last message went. As a backstop for deletions made elsewhere,
+     * entries also expire after TTL_MS.
+     */
+    private static final class ThreadIdCache {
+        private static final int MAX_ENTRIES = 64;
+        private static final long TTL_MS = 5 * 60 * 1000;
+
+        private static final class Entry {
+            final long mThreadId;
+            final long mTime;
+
+            Entry(long threadId, long time) {
+                mThreadId = threadId;
+                mTime = time;
+            }
+        }
+
+        // All guarded by ThreadIdCache.class.
+        private static final LruCache<ArrayList<String>, Entry> sCache =
+                new LruCache<ArrayList<String>, Entry>(MAX_ENTRIES);
+        private static int sHits;
+        private static int sMisses;
+        private static int sExpired;
+        private static int sInvalidations;
+
+        static ArrayList<String> keyFor(Collection<String> recipients) {
+            ArrayList<String> key = new ArrayList<String>(recipients);
+            Collections.sort(key);
+            return key;
+        }
+
+        /**
+         * Returns the cached thread id for key, or 0 if there isn't one.
+         */
+        static synchronized long get(ArrayList<String> key) {
+            Entry entry = sCache.get(key);
+            if (entry != null && SystemClock.elapsedRealtime() - entry.mTime > TTL_MS) {
+                sCache.remove(key);
+                sExpired++;
+                entry = null;
+            }
+            if (entry == null) {
+                sMisses++;
+                return 0;
+            }
+            sHits++;
+            return entry.mThreadId;
+        }
+
+        static synchronized void put(ArrayList<String> key, long threadId) {
+            if (threadId > 0) {
+                sCache.put(key, new Entry(threadId, SystemClock.elapsedRealtime()));
+            }
+        }
+
+        static synchronized void remove(long threadId) {
+            if (threadId > 0) {
+                remove(Collections.singleton(threadId));
+            }
+        }
+
+        static synchronized void remove(Collection<Long> threadIds) {
+            for (Map.Entry<ArrayList<String>, Entry> entry : sCache.snapshot().entrySet()) {
+                if (threadIds.contains(entry.getValue().mThreadId)) {
+                    sCache.remove(entry.getKey());
+                    sInvalidations++;
+                }
+            }
+        }
+
+        static synchronized void clear() {
+            sInvalidations += sCache.size();
+            sCache.evictAll();
+        }
+
+        static synchronized void dump() {
+            int lookups = sHits + sMisses;
+            LogTag.debug("Conversation ThreadIdCache: hits: " + sHits + " misses: " + sMisses +
+                    " hit rate: " + (lookups > 0 ? sHits * 100 / lookups : 0) + "%" +
+                    " expired: " + sExpired + " invalidated: " + sInvalidations +
+                    " size: " + sCache.size() + "/" + sCache.maxSize());
+        }
     }
 
     /**
@@ -1139,6 +1415,7 @@ public class Conversation {
                 }
                 blockingMarkAllSmsAsRead(context);
                 blockingMarkAllMmsAsRead(context);
+                MessagingNotification.invalidateUnreadIndex();
 
                 // Always update notifications regardless of the read state.
                 MessagingNotification.blockingUpdateAllNotifications(context,
@@ -1162,6 +1439,7 @@ public class Conversation {
                 }
                 blockingMarkAllSmsMessagesAsSeen(context);
                 blockingMarkAllMmsMessagesAsSeen(context);
+                MessagingNotification.invalidateUnreadIndex();
 
                 // Always update notifications regardless of the read state.
                 MessagingNotification.blockingUpdateAllNotifications(context,
@@ -1343,6 +1621,7 @@ public class Conversation {
                 ALL_THREADS_PROJECTION, null, null, null);
         try {
             if (c != null) {
+                preloadRecipients(c);
                 while (c.moveToNext()) {
                     long threadId = c.getLong(ID);
                     threadsOnDisk.add(threadId);
@@ -1393,6 +1672,31 @@ public class Conversation {
         }
     }
 
+    /**
+     * Resolve the recipients of every thread in the cursor with one batched contact
+     * lookup, so that filling in each conversation afterwards finds its contacts
+     * already loaded. Leaves the cursor before the first row.
+     */
+    private static void preloadRecipients(Cursor c) {
+        StringBuilder allIds = new StringBuilder();
+        HashSet<String> seen = new HashSet<String>();
+        while (c.moveToNext()) {
+            String recipientIds = c.getString(RECIPIENT_IDS);
+            if (TextUtils.isEmpty(recipientIds)) {
+                continue;
+            }
+            for (String id : recipientIds.split(" ")) {
+                if (seen.add(id)) {
+                    allIds.append(id).append(' ');
+                }
+            }
+        }
+        c.moveToPosition(-1);
+        if (allIds.length() > 0) {
+            ContactList.getByIds(allIds.toString(), true);
+        }
+    }
+
     private boolean loadFromThreadId(long threadId, boolean allowQuery) {
         Cursor c = mContext.getContentResolver().query(sAllThreadsUri, ALL_THREADS_PROJECTION,
                 "_id=" + Long.toString(threadId), null, null);
@@ -1422,6 +1726,7 @@ public class Conversation {
 
     public static void dump() {
         Cache.dumpCache();
+        ThreadIdCache.dump();
     }
 
     public static void dumpThreadsTable(Context context) {
@@ -1,9 +1,7 @@
 package com.android.mms.data;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -20,6 +18,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.mms.LogTag;
+import com.android.mms.util.LongHashMap;
 
 @ThreadSafe
 public class RecipientIdCache {
@@ -36,7 +35,20 @@ public class RecipientIdCache {
     static RecipientIdCache getInstance() { return sInstance; }
 
     @GuardedBy("this")
-    private final Map<Long, String> mCache;
+    private LongHashMap<String> mCache;
+
+    // The highest id in mCache. canonical_addresses ids only ever grow, so anything
+    // above this is an address added since we last looked.
+    @GuardedBy("this")
+    private long mMaxId;
+
+    // Lookup statistics, for dump().
+    @GuardedBy("this")
+    private int mHits;
+    @GuardedBy("this")
+    private int mMisses;
+    @GuardedBy("this")
+    private int mRefreshes;
 
     private final Context mContext;
 
@@ -60,10 +72,14 @@ public class RecipientIdCache {
     }
 
     RecipientIdCache(Context context) {
-        mCache = new HashMap<Long, String>();
+        mCache = new LongHashMap<String>();
         mContext = context;
     }
 
+    /**
+     * Reload the whole canonical_addresses table. The query runs without the lock
+     * held, so lookups carry on against the old contents until it's swapped in.
+     */
     public static void fill() {
         if (LogTag.VERBOSE || Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
             LogTag.debug("[RecipientIdCache] fill: begin");
@@ -77,32 +93,121 @@ public class RecipientIdCache {
             return;
         }
 
+        LongHashMap<String> cache = new LongHashMap<String>(c.getCount());
+        long maxId = 0;
         try {
-            synchronized (sInstance) {
-                // Technically we don't have to clear this because the stupid
-                // canonical_addresses table is never GC'ed.
-                sInstance.mCache.clear();
-                while (c.moveToNext()) {
-                    // TODO: don't hardcode the column indices
-                    long id = c.getLong(0);
-                    String number = c.getString(1);
-                    sInstance.mCache.put(id, number);
+            while (c.moveToNext()) {
+                // TODO: don't hardcode the column indices
+                long id = c.getLong(0);
+                String number = c.getString(1);
+                if (number != null) {
+                    cache.put(id, number);
                 }
+                maxId = Math.max(maxId, id);
             }
         } finally {
             c.close();
         }
 
+        synchronized (sInstance) {
+            // Keep anything fillMissing() added while we were querying.
+            LongHashMap<String> old = sInstance.mCache;
+            for (int i = 0; i < old.capacity(); i++) {
+                if (old.valueAt(i) != null && !cache.containsKey(old.keyAt(i))) {
+                    cache.put(old.keyAt(i), old.valueAt(i));
+                }
+            }
+            sInstance.mCache = cache;
+            sInstance.mMaxId = Math.max(sInstance.mMaxId, maxId);
+        }
+
         if (LogTag.VERBOSE || Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
             LogTag.debug("[RecipientIdCache] fill: finished");
             dump();
         }
     }
 
+    /**
+     * Load just the given ids, which aren't in the cache. If they're all newer than
+     * anything cached, load everything added since the last load instead, which picks
+     * up the addresses of other new threads as well.
+     */
+    private static void fillMissing(List<Long> missingIds) {
+        long maxId;
+        synchronized (sInstance) {
+            maxId = sInstance.mMaxId;
+            sInstance.mRefreshes++;
+        }
+
+        boolean allNewer = true;
+        for (long id : missingIds) {
+            if (id <= maxId) {
+                allNewer = false;
+                break;
+            }
+        }
+
+        String selection;
+        if (allNewer) {
+            selection = Telephony.CanonicalAddressesColumns._ID + ">" + maxId;
+        } else {
+            StringBuilder buf = new StringBuilder(Telephony.CanonicalAddressesColumns._ID);
+            buf.append(" IN (");
+            for (int i = 0; i < missingIds.size(); i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                buf.append(missingIds.get(i));
+            }
+            buf.append(')');
+            selection = buf.toString();
+        }
+
+        if (LogTag.VERBOSE || Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+            LogTag.debug("[RecipientIdCache] fillMissing: " + selection);
+        }
+
+        Context context = sInstance.mContext;
+        Cursor c = SqliteWrapper.query(context, context.getContentResolver(),
+                sAllCanonical, null, selection, null, null);
+        if (c == null) {
+            Log.w(TAG, "null Cursor in fillMissing()");
+            return;
+        }
+
+        try {
+            // Read the rows before taking the lock; there are only a few of them.
+            int count = c.getCount();
+            long[] ids = new long[count];
+            String[] numbers = new String[count];
+            for (int i = 0; c.moveToNext(); i++) {
+                // TODO: don't hardcode the column indices
+                ids[i] = c.getLong(0);
+                numbers[i] = c.getString(1);
+            }
+            synchronized (sInstance) {
+                for (int i = 0; i < count; i++) {
+                    if (numbers[i] != null) {
+                        sInstance.mCache.put(ids[i], numbers[i]);
+                    }
+                    if (ids[i] > sInstance.mMaxId) {
+                        sInstance.mMaxId = ids[i];
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     public static List<Entry> getAddresses(String spaceSepIds) {
+        String[] ids = spaceSepIds.split(" ");
+        long[] longIds = new long[ids.length];
+        String[] numbers = new String[ids.length];
+        int count = 0;
+        ArrayList<Long> missing = null;
+
         synchronized (sInstance) {
-            List<Entry> numbers = new ArrayList<Entry>();
-            String[] ids = spaceSepIds.split(" ");
             for (String id : ids) {
                 long longId;
 
@@ -114,25 +219,47 @@ public class RecipientIdCache {
                 }
 
                 String number = sInstance.mCache.get(longId);
-
                 if (number == null) {
-                    Log.w(TAG, "RecipientId " + longId + " not in cache!");
-                    if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
-                        dump();
+                    sInstance.mMisses++;
+                    if (missing == null) {
+                        missing = new ArrayList<Long>();
                     }
-
-                    fill();
-                    number = sInstance.mCache.get(longId);
+                    missing.add(longId);
+                } else {
+                    sInstance.mHits++;
                 }
+                longIds[count] = longId;
+                numbers[count++] = number;
+            }
+        }
 
-                if (TextUtils.isEmpty(number)) {
-                    Log.w(TAG, "RecipientId " + longId + " has empty number!");
-                } else {
-                    numbers.add(new Entry(longId, number));
+        if (missing != null) {
+            Log.w(TAG, "RecipientIds " + missing + " not in cache!");
+            if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
+                dump();
+            }
+
+            // Fetch only what's missing, without holding the lock, so other threads
+            // can keep looking up the ids that are already cached.
+            fillMissing(missing);
+            synchronized (sInstance) {
+                for (int i = 0; i < count; i++) {
+                    if (numbers[i] == null) {
+                        numbers[i] = sInstance.mCache.get(longIds[i]);
+                    }
                 }
             }
-            return numbers;
         }
+
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            if (TextUtils.isEmpty(numbers[i])) {
+                Log.w(TAG, "RecipientId " + longIds[i] + " has empty number!");
+            } else {
+                entries.add(new Entry(longIds[i], numbers[i]));
+            }
+        }
+        return entries;
     }
 
     public static void updateNumbers(long threadId, ContactList contacts) {
@@ -205,8 +332,14 @@ public class RecipientIdCache {
         // Only dump user private data if we're in special debug mode
         synchronized (sInstance) {
             Log.d(TAG, "*** Recipient ID cache dump ***");
-            for (Long id : sInstance.mCache.keySet()) {
-                Log.d(TAG, id + ": " + sInstance.mCache.get(id));
+            Log.d(TAG, "size: " + sInstance.mCache.size() + " maxId: " + sInstance.mMaxId +
+                    " hits: " + sInstance.mHits + " misses: " + sInstance.mMisses +
+                    " refreshes: " + sInstance.mRefreshes);
+            LongHashMap<String> cache = sInstance.mCache;
+            for (int i = 0; i < cache.capacity(); i++) {
+                if (cache.valueAt(i) != null) {
+                    Log.d(TAG, cache.keyAt(i) + ": " + cache.valueAt(i));
+                }
             }
         }
     }
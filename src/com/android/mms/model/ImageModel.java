@@ -137,8 +137,16 @@ public class ImageModel extends RegionMediaModel {
     }
 
     public ItemLoadedFuture loadThumbnailBitmap(ItemLoadedCallback callback) {
+        return loadThumbnailBitmap(callback, ThumbnailManager.TYPE_THUMBNAIL);
+    }
+
+    /**
+     * @param type {@link ThumbnailManager#TYPE_THUMBNAIL} or
+     *        {@link ThumbnailManager#TYPE_MICROTHUMBNAIL}
+     */
+    public ItemLoadedFuture loadThumbnailBitmap(ItemLoadedCallback callback, int type) {
         ThumbnailManager thumbnailManager = MmsApp.getApplication().getThumbnailManager();
-        mItemLoadedFuture = thumbnailManager.getThumbnail(getUri(), callback);
+        mItemLoadedFuture = thumbnailManager.getThumbnail(getUri(), type, callback);
         return mItemLoadedFuture;
     }
 
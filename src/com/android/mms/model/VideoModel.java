@@ -197,8 +197,16 @@ public class VideoModel extends RegionMediaModel {
     }
 
     public ItemLoadedFuture loadThumbnailBitmap(ItemLoadedCallback callback) {
+        return loadThumbnailBitmap(callback, ThumbnailManager.TYPE_THUMBNAIL);
+    }
+
+    /**
+     * @param type {@link ThumbnailManager#TYPE_THUMBNAIL} or
+     *        {@link ThumbnailManager#TYPE_MICROTHUMBNAIL}
+     */
+    public ItemLoadedFuture loadThumbnailBitmap(ItemLoadedCallback callback, int type) {
         ThumbnailManager thumbnailManager = MmsApp.getApplication().getThumbnailManager();
-        mItemLoadedFuture = thumbnailManager.getVideoThumbnail(getUri(), callback);
+        mItemLoadedFuture = thumbnailManager.getVideoThumbnail(getUri(), type, callback);
         return mItemLoadedFuture;
     }
 
@@ -21,7 +21,12 @@ import com.android.mms.R;
 import com.android.mms.ui.MessagingPreferenceActivity;
 
 import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -232,44 +237,7 @@ public class HttpUtils {
                     }
                     if (entity.isChunked()) {
                         Log.v(TAG, "httpConnection: transfer encoding is chunked");
-                        int bytesTobeRead = MmsConfig.getMaxMessageSize();
-                        byte[] tempBody = new byte[bytesTobeRead];
-                        DataInputStream dis = new DataInputStream(entity.getContent());
-                        try {
-                            int bytesRead = 0;
-                            int offset = 0;
-                            boolean readError = false;
-                            do {
-                                try {
-                                    bytesRead = dis.read(tempBody, offset, bytesTobeRead);
-                                } catch (IOException e) {
-                                    readError = true;
-                                    Log.e(TAG, "httpConnection: error reading input stream"
-                                        + e.getMessage());
-                                    break;
-                                }
-                                if (bytesRead > 0) {
-                                    bytesTobeRead -= bytesRead;
-                                    offset += bytesRead;
-                                }
-                            } while (bytesRead >= 0 && bytesTobeRead > 0);
-                            if (bytesRead == -1 && offset > 0 && !readError) {
-                                // offset is same as total number of bytes read
-                                // bytesRead will be -1 if the data was read till the eof
-                                body = new byte[offset];
-                                System.arraycopy(tempBody, 0, body, 0, offset);
-                                Log.v(TAG, "httpConnection: Chunked response length ["
-                                    + Integer.toString(offset) + "]");
-                            } else {
-                                Log.e(TAG, "httpConnection: Response entity too large or empty");
-                            }
-                        } finally {
-                            try {
-                                dis.close();
-                            } catch (IOException e) {
-                                Log.e(TAG, "Error closing input stream: " + e.getMessage());
-                            }
-                        }
+                        body = readChunkedBody(context, entity.getContent());
                     }
                 } finally {
                     if (entity != null) {
@@ -297,6 +265,70 @@ public class HttpUtils {
         return null;
     }
 
+    /**
+     * Reads a response of unknown length. Rather than reading into a buffer as large as
+     * the biggest message we allow and then copying what arrived, the data is streamed
+     * into a file in the cache directory through a small buffer, and read back into an
+     * array of exactly the right size. So the only large allocation is the one the
+     * PduParser needs anyway, however big the message is.
+     *
+     * @return the response, or null if it was empty, too large or couldn't be read
+     */
+    private static byte[] readChunkedBody(Context context, InputStream in) throws IOException {
+        int bytesTobeRead = MmsConfig.getMaxMessageSize();
+        byte[] buffer = new byte[MMS_READ_BUFFER];
+        File file = File.createTempFile("mms_download", null, context.getCacheDir());
+        try {
+            int offset = 0;
+            boolean readError = false;
+            int bytesRead = 0;
+            OutputStream out = new FileOutputStream(file);
+            try {
+                do {
+                    try {
+                        bytesRead = in.read(buffer, 0,
+                                Math.min(buffer.length, bytesTobeRead + 1));
+                    } catch (IOException e) {
+                        readError = true;
+                        Log.e(TAG, "httpConnection: error reading input stream"
+                            + e.getMessage());
+                        break;
+                    }
+                    if (bytesRead > 0) {
+                        out.write(buffer, 0, bytesRead);
+                        bytesTobeRead -= bytesRead;
+                        offset += bytesRead;
+                    }
+                } while (bytesRead >= 0 && bytesTobeRead >= 0);
+            } finally {
+                out.close();
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing input stream: " + e.getMessage());
+                }
+            }
+            if (bytesRead == -1 && offset > 0 && !readError) {
+                // offset is same as total number of bytes read
+                // bytesRead will be -1 if the data was read till the eof
+                byte[] body = new byte[offset];
+                DataInputStream dis = new DataInputStream(new FileInputStream(file));
+                try {
+                    dis.readFully(body);
+                } finally {
+                    dis.close();
+                }
+                Log.v(TAG, "httpConnection: Chunked response length ["
+                    + Integer.toString(offset) + "]");
+                return body;
+            }
+            Log.e(TAG, "httpConnection: Response entity too large or empty");
+            return null;
+        } finally {
+            file.delete();
+        }
+    }
+
     private static void handleHttpConnectionException(Exception exception, String url)
             throws IOException {
         // Inner exception should be logged to make life easier.
@@ -34,6 +34,7 @@ import android.app.PendingIntent;
 import android.app.TaskStackBuilder;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -48,8 +49,10 @@ import android.media.AudioManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.provider.Telephony.Mms;
@@ -80,6 +83,7 @@ import com.android.mms.ui.MessageUtils;
 import com.android.mms.ui.MessagingPreferenceActivity;
 import com.android.mms.util.AddressUtils;
 import com.android.mms.util.DownloadManager;
+import com.android.mms.util.LongHashMap;
 import com.android.mms.widget.MmsWidgetProvider;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.EncodedStringValue;
@@ -113,7 +117,7 @@ public class MessagingNotification {
 
     // This must be consistent with the column constants below.
     private static final String[] SMS_STATUS_PROJECTION = new String[] {
-        Sms.THREAD_ID, Sms.DATE, Sms.ADDRESS, Sms.SUBJECT, Sms.BODY };
+        Sms.THREAD_ID, Sms.DATE, Sms.ADDRESS, Sms.SUBJECT, Sms.BODY, Sms._ID };
 
     // These must be consistent with MMS_STATUS_PROJECTION and
     // SMS_STATUS_PROJECTION.
@@ -124,6 +128,7 @@ public class MessagingNotification {
     private static final int COLUMN_SUBJECT     = 3;
     private static final int COLUMN_SUBJECT_CS  = 4;
     private static final int COLUMN_SMS_BODY    = 4;
+    private static final int COLUMN_SMS_ID      = 5;
 
     private static final String[] SMS_THREAD_ID_PROJECTION = new String[] { Sms.THREAD_ID };
     private static final String[] MMS_THREAD_ID_PROJECTION = new String[] { Mms.THREAD_ID };
@@ -180,6 +185,39 @@ public class MessagingNotification {
     private static final int MAX_MESSAGES_TO_SHOW = 8;  // the maximum number of new messages to
                                                         // show in a single notification.
 
+    // Requests to update the new message indicator that arrive within this long of each
+    // other are folded into a single blockingUpdateNewMessageIndicator pass.
+    private static final int UPDATE_COALESCE_DELAY_MS = 250;
+
+    private static final Object sUpdateLock = new Object();
+    private static Handler sUpdateHandler;          // guarded by sUpdateLock
+    private static boolean sUpdatePending;          // guarded by sUpdateLock
+    private static Context sPendingContext;         // guarded by sUpdateLock
+    private static long sPendingThreadId;           // guarded by sUpdateLock
+    private static boolean sPendingIsStatusMessage; // guarded by sUpdateLock
+    private static int sUpdateRequests;             // guarded by sUpdateLock
+    private static int sUpdatePasses;               // guarded by sUpdateLock
+
+    private static final UnreadMessageIndex sUnreadIndex = new UnreadMessageIndex();
+
+    private static final Runnable sUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Context context;
+            long threadId;
+            boolean isStatusMessage;
+            synchronized (sUpdateLock) {
+                context = sPendingContext;
+                threadId = sPendingThreadId;
+                isStatusMessage = sPendingIsStatusMessage;
+                sPendingContext = null;
+                sUpdatePending = false;
+                sUpdatePasses++;
+            }
+            blockingUpdateNewMessageIndicator(context, threadId, isStatusMessage);
+        }
+    };
+
 
     private MessagingNotification() {
     }
@@ -222,6 +260,11 @@ public class MessagingNotification {
      * reports.  Shows the most recent notification if there is one.
      * Does its work and query in a worker thread.
      *
+     * Requests that arrive while one is already waiting to run are merged into it,
+     * so a burst of incoming messages results in a single requery. The merged request
+     * is a status message if any of them was; see {@link #mergeThreadIds} for the thread
+     * it notifies about.
+     *
      * @param context the context to use
      */
     public static void nonBlockingUpdateNewMessageIndicator(final Context context,
@@ -232,12 +275,138 @@ public class MessagingNotification {
                     newMsgThreadId +
                     " sCurrentlyDisplayedThreadId: " + sCurrentlyDisplayedThreadId);
         }
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                blockingUpdateNewMessageIndicator(context, newMsgThreadId, isStatusMessage);
+        synchronized (sUpdateLock) {
+            sUpdateRequests++;
+            if (sUpdatePending) {
+                sPendingThreadId = mergeThreadIds(sPendingThreadId, newMsgThreadId);
+                sPendingIsStatusMessage |= isStatusMessage;
+                return;
+            }
+            if (sUpdateHandler == null) {
+                HandlerThread thread = new HandlerThread(
+                        "MessagingNotification.nonBlockingUpdateNewMessageIndicator",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sUpdateHandler = new Handler(thread.getLooper());
             }
-        }, "MessagingNotification.nonBlockingUpdateNewMessageIndicator").start();
+            sPendingContext = context.getApplicationContext();
+            sPendingThreadId = newMsgThreadId;
+            sPendingIsStatusMessage = isStatusMessage;
+            sUpdatePending = true;
+            sUpdateHandler.postDelayed(sUpdateRunnable, UPDATE_COALESCE_DELAY_MS);
+        }
+    }
+
+    /**
+     * The thread id for an update that covers requests for both pending and newMsgThreadId.
+     * A THREAD_NONE request must not hide a new message we were told about, and new
+     * messages in two different threads are THREAD_ALL: notifying about just one of them
+     * could drop the other's notification (if the one kept is the displayed thread) or
+     * lose the rescan THREAD_ALL forces.
+     */
+    private static long mergeThreadIds(long pending, long newMsgThreadId) {
+        if (newMsgThreadId == THREAD_NONE || newMsgThreadId == pending) {
+            return pending;
+        }
+        if (pending == THREAD_NONE) {
+            return newMsgThreadId;
+        }
+        return THREAD_ALL;
+    }
+
+    /**
+     * Returns the number of nonBlockingUpdateNewMessageIndicator requests made so far.
+     */
+    public static int getUpdateRequestCount() {
+        synchronized (sUpdateLock) {
+            return sUpdateRequests;
+        }
+    }
+
+    /**
+     * Returns the number of update passes the requests have been coalesced into.
+     */
+    public static int getUpdatePassCount() {
+        synchronized (sUpdateLock) {
+            return sUpdatePasses;
+        }
+    }
+
+    public static void dump() {
+        synchronized (sUpdateLock) {
+            Log.d(TAG, "MessagingNotification: update requests=" + sUpdateRequests +
+                    " passes=" + sUpdatePasses + " pending=" + sUpdatePending);
+        }
+        sUnreadIndex.dump();
+    }
+
+    /**
+     * Adds a newly stored incoming SMS or MMS to the index of unseen messages the new
+     * message notification is built from. Call this before updating the notification.
+     * Blocks while the message is queried, so don't call it on the UI thread.
+     *
+     * @param uri the sms or mms uri of the message
+     */
+    public static void addUnreadMessage(Context context, Uri uri) {
+        if (!sUnreadIndex.isValid()) {
+            // The next update will rescan everything anyway.
+            return;
+        }
+        long msgId;
+        try {
+            msgId = ContentUris.parseId(uri);
+        } catch (NumberFormatException e) {
+            sUnreadIndex.invalidate();
+            return;
+        }
+        boolean isSms = !"mms".equals(uri.getAuthority());
+        long key = UnreadMessageIndex.messageKey(isSms, msgId);
+
+        LongHashMap<NotificationInfo> infos = new LongHashMap<NotificationInfo>(1);
+        if (isSms) {
+            addSmsNotificationInfos(context,
+                    NEW_INCOMING_SM_CONSTRAINT + " AND " + Sms._ID + "=" + msgId, infos);
+        } else {
+            addMmsNotificationInfos(context,
+                    NEW_INCOMING_MM_CONSTRAINT + " AND " + Mms._ID + "=" + msgId, infos);
+        }
+        NotificationInfo info = infos.get(key);
+        if (info != null) {
+            sUnreadIndex.put(key, info);
+        } else {
+            // Already seen, or from someone we don't notify about.
+            sUnreadIndex.remove(key);
+        }
+    }
+
+    /**
+     * Removes a message that was deleted or replaced from the index of unseen messages.
+     */
+    public static void removeUnreadMessage(Uri uri) {
+        try {
+            long msgId = ContentUris.parseId(uri);
+            sUnreadIndex.remove(UnreadMessageIndex.messageKey(
+                    !"mms".equals(uri.getAuthority()), msgId));
+        } catch (NumberFormatException e) {
+            sUnreadIndex.invalidate();
+        }
+    }
+
+    /**
+     * Removes all messages of a thread that was marked read from the index of unseen
+     * messages.
+     */
+    public static void removeUnreadThread(long threadId) {
+        sUnreadIndex.removeThread(threadId);
+    }
+
+    /**
+     * Forces the next notification update to rescan all unseen messages. Call this after
+     * changes the index can't follow one message at a time, like deleting or marking
+     * whole sets of messages.
+     */
+    public static void invalidateUnreadIndex() {
+        sUnreadIndex.invalidate();
     }
 
     /**
@@ -263,8 +432,10 @@ public class MessagingNotification {
 
         Set<Long> threads = new HashSet<Long>(4);
 
-        addMmsNotificationInfos(context, threads, notificationSet);
-        addSmsNotificationInfos(context, threads, notificationSet);
+        if (sUnreadIndex.needsRescan(newMsgThreadId)) {
+            rescanUnreadMessages(context);
+        }
+        sUnreadIndex.collect(threads, notificationSet);
 
         if (notificationSet.isEmpty()) {
             if (DEBUG) {
@@ -600,8 +771,19 @@ public class MessagingNotification {
         }
     }
 
+    /**
+     * Rebuild the unread index from all unseen incoming SMS and MMS.
+     */
+    private static void rescanUnreadMessages(Context context) {
+        int generation = sUnreadIndex.getGeneration();
+        LongHashMap<NotificationInfo> infos = new LongHashMap<NotificationInfo>();
+        addMmsNotificationInfos(context, NEW_INCOMING_MM_CONSTRAINT, infos);
+        addSmsNotificationInfos(context, NEW_INCOMING_SM_CONSTRAINT, infos);
+        sUnreadIndex.reset(infos, generation);
+    }
+
     private static final void addMmsNotificationInfos(
-            Context context, Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
+            Context context, String selection, LongHashMap<NotificationInfo> infos) {
         ContentResolver resolver = context.getContentResolver();
 
         // This query looks like this when logged:
@@ -610,7 +792,7 @@ public class MessagingNotification {
         // AND seen=0 AND (m_type=130 OR m_type=132))) ORDER BY date desc
 
         Cursor cursor = SqliteWrapper.query(context, resolver, Mms.CONTENT_URI,
-                            MMS_STATUS_PROJECTION, NEW_INCOMING_MM_CONSTRAINT,
+                            MMS_STATUS_PROJECTION, selection,
                             null, Mms.DATE + " desc");
 
         if (cursor == null) {
@@ -679,9 +861,9 @@ public class MessagingNotification {
                         contact,
                         attachmentType);
 
-                notificationSet.add(info);
-
-                threads.add(threadId);
+                if (info != null) {
+                    infos.put(UnreadMessageIndex.messageKey(false, msgId), info);
+                }
             }
         } finally {
             cursor.close();
@@ -743,10 +925,10 @@ public class MessagingNotification {
     }
 
     private static final void addSmsNotificationInfos(
-            Context context, Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
+            Context context, String selection, LongHashMap<NotificationInfo> infos) {
         ContentResolver resolver = context.getContentResolver();
         Cursor cursor = SqliteWrapper.query(context, resolver, Sms.CONTENT_URI,
-                            SMS_STATUS_PROJECTION, NEW_INCOMING_SM_CONSTRAINT,
+                            SMS_STATUS_PROJECTION, selection,
                             null, Sms.DATE + " desc");
 
         if (cursor == null) {
@@ -779,10 +961,10 @@ public class MessagingNotification {
                         threadId, timeMillis, null /* attachmentBitmap */,
                         contact, WorkingMessage.TEXT);
 
-                notificationSet.add(info);
-
-                threads.add(threadId);
-                threads.add(cursor.getLong(COLUMN_THREAD_ID));
+                if (info != null) {
+                    infos.put(UnreadMessageIndex.messageKey(true,
+                            cursor.getLong(COLUMN_SMS_ID)), info);
+                }
             }
         } finally {
             cursor.close();
@@ -39,6 +39,7 @@ import android.util.Log;
 
 import com.android.mms.MmsApp;
 import com.android.mms.MmsConfig;
+import com.android.mms.data.Conversation;
 import com.android.mms.ui.MessagingPreferenceActivity;
 import com.android.mms.util.DownloadManager;
 import com.android.mms.util.Recycler;
@@ -128,7 +129,7 @@ public class NotificationTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this, "NotificationTransaction").start();
+        TransactionExecutor.getInstance().execute(this, this);
     }
 
     public static boolean allowAutoDownload() {
@@ -198,6 +199,7 @@ public class NotificationTransaction extends Transaction implements Runnable {
                                          mUri, null, null);
                     Log.v(TAG, "NotificationTransaction received new mms message: " + uri);
                     // Delete obsolete threads
+                    Conversation.invalidateThreadIdCache();
                     SqliteWrapper.delete(mContext, mContext.getContentResolver(),
                             Threads.OBSOLETE_THREADS_URI, null, null);
 
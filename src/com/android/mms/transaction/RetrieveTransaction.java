@@ -123,7 +123,7 @@ public class RetrieveTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this, "RetrieveTransaction").start();
+        TransactionExecutor.getInstance().execute(this, this);
     }
 
     public void run() {
@@ -172,6 +172,7 @@ public class RetrieveTransaction extends Transaction implements Runnable {
             // Delete the corresponding M-Notification.ind.
             SqliteWrapper.delete(mContext, mContext.getContentResolver(),
                                  mUri, null, null);
+            MessagingNotification.removeUnreadMessage(mUri);
 
             if (msgUri != null) {
                 // Have to delete messages over limit *after* the delete above. Otherwise,
@@ -57,7 +57,6 @@ import com.google.android.mms.pdu.SendReq;
 public class SendTransaction extends Transaction implements Runnable {
     private static final String TAG = "SendTransaction";
 
-    private Thread mThread;
     private final Uri mSendReqURI;
 
     public SendTransaction(Context context,
@@ -76,8 +75,7 @@ public class SendTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        mThread = new Thread(this, "SendTransaction");
-        mThread.start();
+        TransactionExecutor.getInstance().execute(this, this);
     }
 
     public void run() {
@@ -17,13 +17,16 @@
 
 package com.android.mms.transaction;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SqliteWrapper;
-import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Inbox;
@@ -59,6 +62,9 @@ public class SmsMessageSender implements MessageSender {
     private static final int COLUMN_REPLY_PATH_PRESENT = 0;
     private static final int COLUMN_SERVICE_CENTER     = 1;
 
+    // Sends that queue at least this many rows always log how long queueing took.
+    private static final int LARGE_BATCH_SIZE = 20;
+
     public SmsMessageSender(Context context, String[] dests, String msgText, long threadId) {
         mContext = context;
         mMessageText = msgText;
@@ -108,54 +114,54 @@ public class SmsMessageSender implements MessageSender {
 
         int nSmsPages = params[0];
 
+        ArrayList<String> bodies;
         // To split or not to split, that is THE question!
-        if (splitMessage && (nSmsPages >  1))
-        {
+        if (splitMessage && (nSmsPages >  1)) {
             // Split the message by encoding
-            ArrayList<String> MessageBody = SmsMessage.fragmentText(mMessageText);
-
-            // Start send loop for split messages
-            for(int page = 0; page < nSmsPages; page++)
-                {
-                    // Adds counter at end of message
-                    if(splitCounter) {
-                        String counterText = MessageBody.get(page) +  "(" + (page + 1) + "/" + nSmsPages + ")";
-                        MessageBody.set(page, counterText);
-                    }
-
-                    for (int i = 0; i < mNumberOfDests; i++) {
-                    try {
-                            Sms.addMessageToUri(mContext.getContentResolver(),
-                            Uri.parse("content://sms/queued"), mDests[i],
-                            MessageBody.get(page), null, mTimestamp,
-                            true /* read */,
-                            requestDeliveryReport,
-                            mThreadId);
-                        } catch (SQLiteException e) {
-                            SqliteWrapper.checkSQLiteException(mContext, e);
-                        }
-                    }
+            bodies = SmsMessage.fragmentText(mMessageText);
+
+            // Adds counter at end of message
+            if (splitCounter) {
+                for (int page = 0; page < nSmsPages; page++) {
+                    bodies.set(page, bodies.get(page) + "(" + (page + 1) + "/" + nSmsPages + ")");
                 }
+            }
         } else { // Send without split or counter
-        for (int i = 0; i < mNumberOfDests; i++) {
-            try {
+            bodies = new ArrayList<String>(1);
+            bodies.add(mMessageText);
+        }
+
+        // Queue a row for every page and every destination, page by page, in one batch so a
+        // long message to a large group doesn't take a provider call per row.
+        long start = SystemClock.elapsedRealtime();
+        ArrayList<ContentValues> rows =
+                new ArrayList<ContentValues>(bodies.size() * mNumberOfDests);
+        for (String body : bodies) {
+            for (int i = 0; i < mNumberOfDests; i++) {
                 if (LogTag.DEBUG_SEND) {
                     Log.v(TAG, "queueMessage mDests[i]: " + mDests[i] + " mThreadId: " + mThreadId);
                 }
-                Sms.addMessageToUri(mContext.getContentResolver(),
-                    Uri.parse("content://sms/queued"), mDests[i],
-                    mMessageText, null, mTimestamp,
-                    true /* read */,
-                    requestDeliveryReport,
-                    mThreadId);
-                } catch (SQLiteException e) {
-                    if (LogTag.DEBUG_SEND) {
-                        Log.e(TAG, "queueMessage SQLiteException", e);
-                    }
-                    SqliteWrapper.checkSQLiteException(mContext, e);
-                }
+                rows.add(getQueuedValues(mDests[i], body, requestDeliveryReport));
+            }
+        }
+        try {
+            SmsSendQueue.getInstance().insert(mContext, rows);
+        } catch (SQLiteException e) {
+            if (LogTag.DEBUG_SEND) {
+                Log.e(TAG, "queueMessage SQLiteException", e);
             }
+            SqliteWrapper.checkSQLiteException(mContext, e);
+        } catch (RemoteException e) {
+            Log.e(TAG, "queueMessage failed to queue " + rows.size() + " messages", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "queueMessage failed to queue " + rows.size() + " messages", e);
         }
+        long time = SystemClock.elapsedRealtime() - start;
+        if (rows.size() >= LARGE_BATCH_SIZE || LogTag.DEBUG_SEND) {
+            Log.d(TAG, "queueMessage queued " + bodies.size() + " pages to " + mNumberOfDests +
+                    " recipients in " + time + "ms");
+        }
+
         // Notify the SmsReceiverService to send the message out
         mContext.sendBroadcast(new Intent(SmsReceiverService.ACTION_SEND_MESSAGE,
                 null,
@@ -164,6 +170,25 @@ public class SmsMessageSender implements MessageSender {
         return false;
     }
 
+    /**
+     * The values Sms.addMessageToUri would insert for a queued message to the given address.
+     */
+    private ContentValues getQueuedValues(String address, String body, boolean deliveryReport) {
+        ContentValues values = new ContentValues(7);
+        values.put(Sms.ADDRESS, address);
+        values.put(Sms.DATE, mTimestamp);
+        values.put(Sms.READ, 1);
+        values.putNull(Sms.SUBJECT);
+        values.put(Sms.BODY, body);
+        if (deliveryReport) {
+            values.put(Sms.STATUS, Sms.STATUS_PENDING);
+        }
+        if (mThreadId != -1L) {
+            values.put(Sms.THREAD_ID, mThreadId);
+        }
+        return values;
+    }
+
     /**
      * Get the service center to use for a reply.
      *
@@ -20,18 +20,27 @@ package com.android.mms.transaction;
 import static android.content.Intent.ACTION_BOOT_COMPLETED;
 import static android.provider.Telephony.Sms.Intents.SMS_RECEIVED_ACTION;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.app.Activity;
 import android.app.Service;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
 import android.os.Handler;
@@ -40,6 +49,8 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Inbox;
 import android.provider.Telephony.Sms.Intents;
@@ -73,7 +84,14 @@ public class SmsReceiverService extends Service {
 
     private ServiceHandler mServiceHandler;
     private Looper mServiceLooper;
-    private boolean mSending;
+
+    // The messages handed to the radio whose last part hasn't reported back yet, with the
+    // time each was handed over.
+    private final HashMap<Uri, Long> mOutstanding = new HashMap<Uri, Long>();
+
+    // Received messages waiting for the service thread, which stores all that are waiting
+    // at once. Guarded by itself.
+    private final ArrayList<Intent> mReceivedIntents = new ArrayList<Intent>();
 
     public static final String MESSAGE_SENT_ACTION =
         "com.android.mms.transaction.MESSAGE_SENT";
@@ -86,25 +104,8 @@ public class SmsReceiverService extends Service {
     public static final String ACTION_SEND_INACTIVE_MESSAGE =
             "com.android.mms.transaction.SEND_INACTIVE_MESSAGE";
 
-    // This must match the column IDs below.
-    private static final String[] SEND_PROJECTION = new String[] {
-        Sms._ID,        //0
-        Sms.THREAD_ID,  //1
-        Sms.ADDRESS,    //2
-        Sms.BODY,       //3
-        Sms.STATUS,     //4
-
-    };
-
     public Handler mToastHandler = new Handler();
 
-    // This must match SEND_PROJECTION.
-    private static final int SEND_COLUMN_ID         = 0;
-    private static final int SEND_COLUMN_THREAD_ID  = 1;
-    private static final int SEND_COLUMN_ADDRESS    = 2;
-    private static final int SEND_COLUMN_BODY       = 3;
-    private static final int SEND_COLUMN_STATUS     = 4;
-
     private int mResultCode;
 
     @Override
@@ -135,6 +136,12 @@ public class SmsReceiverService extends Service {
                     " = " + translateResultCode(mResultCode));
         }
 
+        if (intent != null && SMS_RECEIVED_ACTION.equals(intent.getAction())) {
+            synchronized (mReceivedIntents) {
+                mReceivedIntents.add(intent);
+            }
+        }
+
         Message msg = mServiceHandler.obtainMessage();
         msg.arg1 = startId;
         msg.obj = intent;
@@ -205,7 +212,7 @@ public class SmsReceiverService extends Service {
                 if (MESSAGE_SENT_ACTION.equals(intent.getAction())) {
                     handleSmsSent(intent, error);
                 } else if (SMS_RECEIVED_ACTION.equals(action)) {
-                    handleSmsReceived(intent, error);
+                    handleSmsReceived();
                 } else if (ACTION_BOOT_COMPLETED.equals(action)) {
                     handleBootCompleted();
                 } else if (TelephonyIntents.ACTION_SERVICE_STATE_CHANGED.equals(action)) {
@@ -218,8 +225,8 @@ public class SmsReceiverService extends Service {
             }
 
             // Stop service only if there's no outstanding messages being sent, otherwise
-            // mSending state is lost and multiple messages may be dispatched at once.
-            if (!mSending) {
+            // mOutstanding is lost and more messages may be dispatched at once than allowed.
+            if (mOutstanding.isEmpty()) {
                 // NOTE: We MUST not call stopSelf() directly, since we need to
                 // make sure the wake lock acquired by AlertReceiver is released.
                 SmsReceiver.finishStartingService(SmsReceiverService.this, serviceId);
@@ -231,73 +238,69 @@ public class SmsReceiverService extends Service {
         // If service just returned, start sending out the queued messages
         ServiceState serviceState = ServiceState.newFromBundle(intent.getExtras());
         if (serviceState.getState() == ServiceState.STATE_IN_SERVICE) {
-            sendFirstQueuedMessage();
+            sendQueuedMessages();
         }
     }
 
     private void handleSendMessage() {
-        if (!mSending) {
-            sendFirstQueuedMessage();
-        }
+        sendQueuedMessages();
     }
 
     private void handleSendInactiveMessage() {
         // Inactive messages includes all messages in outbox and queued box.
         moveOutboxMessagesToQueuedBox();
-        sendFirstQueuedMessage();
+        SmsSendQueue.getInstance().invalidate();
+        sendQueuedMessages();
     }
 
-    public synchronized void sendFirstQueuedMessage() {
+    /**
+     * Hand queued messages to the radio, oldest first, until there are as many outstanding
+     * as mms_config.xml's "maxOutstandingSmsSends" allows or there are none left. The
+     * radio sends them in the order it gets them; their results come back to
+     * {@link #handleSmsSent} by message uri.
+     */
+    public synchronized void sendQueuedMessages() {
         boolean success = true;
-        // get all the queued messages from the database
-        final Uri uri = Uri.parse("content://sms/queued");
-        ContentResolver resolver = getContentResolver();
-        Cursor c = SqliteWrapper.query(this, resolver, uri,
-                        SEND_PROJECTION, null, null, "date ASC");   // date ASC so we send out in
-                                                                    // same order the user tried
-                                                                    // to send messages.
-        if (c != null) {
+        int maxOutstanding = Math.max(1, MmsConfig.getMaxOutstandingSmsSends());
+        SmsSendQueue queue = SmsSendQueue.getInstance();
+        while (mOutstanding.size() < maxOutstanding) {
+            SmsSendQueue.Entry entry = queue.poll(this);
+            if (entry == null) {
+                break;
+            }
+            Uri msgUri = entry.mUri;
+            if (mOutstanding.containsKey(msgUri)) {
+                // Moved back to the queued box while the radio still had it.
+                continue;
+            }
+
+            SmsMessageSender sender = new SmsSingleRecipientSender(this,
+                    entry.mAddress, entry.mBody, entry.mThreadId, entry.mDeliveryReport,
+                    msgUri);
+
+            if (LogTag.DEBUG_SEND ||
+                    LogTag.VERBOSE ||
+                    Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "sendQueuedMessages " + msgUri +
+                        ", address: " + entry.mAddress +
+                        ", threadId: " + entry.mThreadId +
+                        ", outstanding: " + mOutstanding.size());
+            }
+
             try {
-                if (c.moveToFirst()) {
-                    String msgText = c.getString(SEND_COLUMN_BODY);
-                    String address = c.getString(SEND_COLUMN_ADDRESS);
-                    int threadId = c.getInt(SEND_COLUMN_THREAD_ID);
-                    int status = c.getInt(SEND_COLUMN_STATUS);
-
-                    int msgId = c.getInt(SEND_COLUMN_ID);
-                    Uri msgUri = ContentUris.withAppendedId(Sms.CONTENT_URI, msgId);
-
-                    SmsMessageSender sender = new SmsSingleRecipientSender(this,
-                            address, msgText, threadId, status == Sms.STATUS_PENDING,
-                            msgUri);
-
-                    if (LogTag.DEBUG_SEND ||
-                            LogTag.VERBOSE ||
-                            Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "sendFirstQueuedMessage " + msgUri +
-                                ", address: " + address +
-                                ", threadId: " + threadId);
-                    }
-
-                    try {
-                        sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);;
-                        mSending = true;
-                    } catch (MmsException e) {
-                        Log.e(TAG, "sendFirstQueuedMessage: failed to send message " + msgUri
-                                + ", caught ", e);
-                        mSending = false;
-                        messageFailedToSend(msgUri, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
-                        success = false;
-                        // Sending current message fails. Try to send more pending messages
-                        // if there is any.
-                        sendBroadcast(new Intent(SmsReceiverService.ACTION_SEND_MESSAGE,
-                                null,
-                                this,
-                                SmsReceiver.class));
-                    }
+                sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);
+                mOutstanding.put(msgUri, SystemClock.elapsedRealtime());
+            } catch (MmsException e) {
+                if (!messageExists(msgUri)) {
+                    // Deleted while it was waiting in the queue; nothing to send or report.
+                    Log.w(TAG, "sendQueuedMessages: message " + msgUri + " is gone, skipping");
+                    continue;
                 }
-            } finally {
-                c.close();
+                Log.e(TAG, "sendQueuedMessages: failed to send message " + msgUri
+                        + ", caught ", e);
+                messageFailedToSend(msgUri, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
+                success = false;
+                // Sending current message fails. Go on with the next one, if there is any.
             }
         }
         if (success) {
@@ -307,11 +310,35 @@ public class SmsReceiverService extends Service {
         }
     }
 
+    private boolean messageExists(Uri uri) {
+        Cursor c = SqliteWrapper.query(this, getContentResolver(), uri,
+                new String[] { Sms._ID }, null, null, null);
+        if (c == null) {
+            // Can't tell; treat it as a failure as before.
+            return true;
+        }
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
     private void handleSmsSent(Intent intent, int error) {
         Uri uri = intent.getData();
-        mSending = false;
         boolean sendNextMsg = intent.getBooleanExtra(EXTRA_MESSAGE_SENT_SEND_NEXT, false);
 
+        if (sendNextMsg) {
+            // This is the result for the last part, so the radio is done with the message.
+            Long start = mOutstanding.remove(uri);
+            if (start != null && (LogTag.DEBUG_SEND ||
+                    Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE))) {
+                Log.v(TAG, "handleSmsSent " + uri + " took " +
+                        (SystemClock.elapsedRealtime() - start) + "ms, " +
+                        mOutstanding.size() + " still outstanding");
+            }
+        }
+
         if (LogTag.DEBUG_SEND) {
             Log.v(TAG, "handleSmsSent uri: " + uri + " sendNextMsg: " + sendNextMsg +
                     " mResultCode: " + mResultCode +
@@ -326,7 +353,7 @@ public class SmsReceiverService extends Service {
                 Log.e(TAG, "handleSmsSent: failed to move message " + uri + " to sent folder");
             }
             if (sendNextMsg) {
-                sendFirstQueuedMessage();
+                sendQueuedMessages();
             }
 
             // Update the notification for failed messages since they may be deleted.
@@ -341,7 +368,9 @@ public class SmsReceiverService extends Service {
             // queued up messages.
             registerForServiceStateChanges();
             // We couldn't send the message, put in the queue to retry later.
+            mOutstanding.remove(uri);
             Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_QUEUED, error);
+            SmsSendQueue.getInstance().invalidate();
             mToastHandler.post(new Runnable() {
                 public void run() {
                     Toast.makeText(SmsReceiverService.this, getString(R.string.message_queued),
@@ -358,7 +387,7 @@ public class SmsReceiverService extends Service {
         } else {
             messageFailedToSend(uri, error);
             if (sendNextMsg) {
-                sendFirstQueuedMessage();
+                sendQueuedMessages();
             }
         }
     }
@@ -371,23 +400,94 @@ public class SmsReceiverService extends Service {
         MessagingNotification.notifySendFailed(getApplicationContext(), true);
     }
 
-    private void handleSmsReceived(Intent intent, int error) {
-        SmsMessage[] msgs = Intents.getMessagesFromIntent(intent);
-        String format = intent.getStringExtra("format");
-        Uri messageUri = insertMessage(this, msgs, error, format);
+    /**
+     * Store all the received messages waiting for the service thread. A burst of messages,
+     * such as the ones held for us while we were out of coverage, is written a thread at a
+     * time in one provider batch, each thread is trimmed once, and the new message
+     * notification is updated once for the lot.
+     */
+    private void handleSmsReceived() {
+        ArrayList<Intent> intents;
+        synchronized (mReceivedIntents) {
+            if (mReceivedIntents.isEmpty()) {
+                // Stored along with an earlier one.
+                return;
+            }
+            intents = new ArrayList<Intent>(mReceivedIntents);
+            mReceivedIntents.clear();
+        }
 
-        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE) || LogTag.DEBUG_SEND) {
+        // Thread id -> the messages to store in it, in the order they arrived.
+        LinkedHashMap<Long, ArrayList<ContentValues>> toStore =
+                new LinkedHashMap<Long, ArrayList<ContentValues>>();
+        // Address -> thread id, so a burst from one sender looks its thread up once.
+        HashMap<String, Long> threadIds = new HashMap<String, Long>();
+        ArrayList<Uri> messageUris = new ArrayList<Uri>(intents.size());
+        HashSet<Long> threads = new HashSet<Long>();
+
+        for (Intent intent : intents) {
+            SmsMessage[] msgs = Intents.getMessagesFromIntent(intent);
+            String format = intent.getStringExtra("format");
+            int error = intent.getIntExtra("errorCode", 0);
             SmsMessage sms = msgs[0];
-            Log.v(TAG, "handleSmsReceived" + (sms.isReplace() ? "(replace)" : "") +
-                    " messageUri: " + messageUri +
-                    ", address: " + sms.getOriginatingAddress() +
-                    ", body: " + sms.getMessageBody());
+
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE) || LogTag.DEBUG_SEND) {
+                Log.v(TAG, "handleSmsReceived" + (sms.isReplace() ? "(replace)" : "") +
+                        ", address: " + sms.getOriginatingAddress() +
+                        ", body: " + sms.getMessageBody());
+            }
+
+            if (sms.getMessageClass() == SmsMessage.MessageClass.CLASS_0) {
+                displayClassZeroMessage(this, sms, format);
+                continue;
+            } else if (sms.isReplace()) {
+                Uri messageUri = replaceMessage(this, msgs, error);
+                if (messageUri != null) {
+                    messageUris.add(messageUri);
+                    threads.add(MessagingNotification.getSmsThreadId(this, messageUri));
+                    continue;
+                }
+                // Nothing to replace; store it like any other message.
+            } else if (MmsConfig.isSuppressedSprintVVM(sms.getOriginatingAddress())) {
+                continue;
+            }
+
+            ContentValues values = extractStoreValues(this, msgs, error, threadIds);
+            Long threadId = values.getAsLong(Sms.THREAD_ID);
+            ArrayList<ContentValues> threadValues = toStore.get(threadId);
+            if (threadValues == null) {
+                threadValues = new ArrayList<ContentValues>();
+                toStore.put(threadId, threadValues);
+            }
+            threadValues.add(values);
         }
 
-        if (messageUri != null) {
-            long threadId = MessagingNotification.getSmsThreadId(this, messageUri);
+        for (Map.Entry<Long, ArrayList<ContentValues>> entry : toStore.entrySet()) {
+            Long threadId = entry.getKey();
+            storeMessages(this, entry.getValue(), messageUris);
+            threads.add(threadId);
+
+            // Now make sure we're not over the limit in stored messages
+            if (threadId != null) {
+                Recycler.getSmsRecycler().deleteOldMessagesByThreadId(this, threadId);
+            }
+        }
+        if (!toStore.isEmpty()) {
+            MmsWidgetProvider.notifyDatasetChanged(this);
+        }
+
+        if (!messageUris.isEmpty()) {
+            long threadId = threads.size() == 1 ?
+                    threads.iterator().next() : MessagingNotification.THREAD_ALL;
+            Log.d(TAG, "handleSmsReceived stored " + messageUris.size() + " messages in " +
+                    threads.size() + " threads, threadId: " + threadId);
+            if (threadId != MessagingNotification.THREAD_ALL) {
+                // With THREAD_ALL the notification update below rescans everything anyway.
+                for (Uri messageUri : messageUris) {
+                    MessagingNotification.addUnreadMessage(this, messageUri);
+                }
+            }
             // Called off of the UI thread so ok to block.
-            Log.d(TAG, "handleSmsReceived messageUri: " + messageUri + " threadId: " + threadId);
             MessagingNotification.blockingUpdateNewMessageIndicator(this, threadId, false);
         }
     }
@@ -402,7 +502,8 @@ public class SmsReceiverService extends Service {
         }
 
         // Send any queued messages that were waiting from before the reboot.
-        sendFirstQueuedMessage();
+        SmsSendQueue.getInstance().invalidate();
+        sendQueuedMessages();
 
         // Called off of the UI thread so ok to block.
         MessagingNotification.blockingUpdateNewMessageIndicator(
@@ -459,35 +560,13 @@ public class SmsReceiverService extends Service {
     // This must match REPLACE_PROJECTION.
     private static final int REPLACE_COLUMN_ID = 0;
 
-    /**
-     * If the message is a class-zero message, display it immediately
-     * and return null.  Otherwise, store it using the
-     * <code>ContentResolver</code> and return the
-     * <code>Uri</code> of the thread containing this message
-     * so that we can use it for notification.
-     */
-    private Uri insertMessage(Context context, SmsMessage[] msgs, int error, String format) {
-        // Build the helper classes to parse the messages.
-        SmsMessage sms = msgs[0];
-
-        if (sms.getMessageClass() == SmsMessage.MessageClass.CLASS_0) {
-            displayClassZeroMessage(context, sms, format);
-            return null;
-        } else if (sms.isReplace()) {
-            return replaceMessage(context, msgs, error);
-        } else if (MmsConfig.isSuppressedSprintVVM(sms.getOriginatingAddress())) {
-            return null;
-        } else {
-            return storeMessage(context, msgs, error);
-        }
-    }
-
     /**
      * This method is used if this is a "replace short message" SMS.
      * We find any existing message that matches the incoming
      * message's originating address and protocol identifier.  If
      * there is one, we replace its fields with those of the new
-     * message.  Otherwise, we store the new message as usual.
+     * message and return its uri.  Otherwise, we return null and the
+     * new message is to be stored as usual.
      *
      * See TS 23.040 9.2.3.9.
      */
@@ -540,7 +619,7 @@ public class SmsReceiverService extends Service {
                 cursor.close();
             }
         }
-        return storeMessage(context, msgs, error);
+        return null;
     }
 
     public static String replaceFormFeeds(String s) {
@@ -550,7 +629,12 @@ public class SmsReceiverService extends Service {
 
 //    private static int count = 0;
 
-    private Uri storeMessage(Context context, SmsMessage[] msgs, int error) {
+    /**
+     * The values to store a received message with, including the id of the thread it goes
+     * in. threadIds caches the thread ids found by address.
+     */
+    private ContentValues extractStoreValues(Context context, SmsMessage[] msgs, int error,
+            HashMap<String, Long> threadIds) {
         SmsMessage sms = msgs[0];
 
         // Store the message in the content provider.
@@ -602,19 +686,43 @@ public class SmsReceiverService extends Service {
         }
 
         if (((threadId == null) || (threadId == 0)) && (address != null)) {
-            threadId = Conversation.getOrCreateThreadId(context, address);
+            threadId = threadIds.get(address);
+            if (threadId == null) {
+                threadId = Conversation.getOrCreateThreadId(context, address);
+                threadIds.put(address, threadId);
+            }
             values.put(Sms.THREAD_ID, threadId);
         }
+        return values;
+    }
 
-        ContentResolver resolver = context.getContentResolver();
-
-        Uri insertedUri = SqliteWrapper.insert(context, resolver, Inbox.CONTENT_URI, values);
-
-        // Now make sure we're not over the limit in stored messages
-        Recycler.getSmsRecycler().deleteOldMessagesByThreadId(context, threadId);
-        MmsWidgetProvider.notifyDatasetChanged(context);
-
-        return insertedUri;
+    /**
+     * Insert received messages into the inbox in one provider batch, adding the uris of
+     * the ones that were stored to messageUris.
+     */
+    private void storeMessages(Context context, ArrayList<ContentValues> messages,
+            ArrayList<Uri> messageUris) {
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(messages.size());
+        for (ContentValues values : messages) {
+            ops.add(ContentProviderOperation.newInsert(Inbox.CONTENT_URI)
+                    .withValues(values).build());
+        }
+        try {
+            ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                    Inbox.CONTENT_URI.getAuthority(), ops);
+            for (ContentProviderResult result : results) {
+                if (result.uri != null) {
+                    messageUris.add(result.uri);
+                }
+            }
+        } catch (SQLiteException e) {
+            SqliteWrapper.checkSQLiteException(context, e);
+        } catch (RemoteException e) {
+            Log.e(TAG, "storeMessages failed to store " + ops.size() + " messages", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "storeMessages failed to store " + ops.size() + " messages", e);
+        }
     }
 
     /**
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SqliteWrapper;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.Telephony.Sms;
+import android.util.Log;
+
+/**
+ * The messages in the queued box waiting to be sent, in the order they are to be sent, so
+ * SmsReceiverService doesn't have to query the queued box again after every message.
+ * <p>
+ * The queue is loaded from the queued box the first time it's used, and after that
+ * SmsMessageSender adds the messages it queues through {@link #insert}. Anything else
+ * that moves messages into the queued box, or deletes messages that may be in it, must
+ * {@link #invalidate} the queue, which has it loaded again the next time a message is
+ * taken from it.
+ */
+public final class SmsSendQueue {
+    private static final String TAG = "Mms/SmsSendQueue";
+
+    static final Uri QUEUED_URI = Uri.parse("content://sms/queued");
+
+    // This must match the column IDs below.
+    private static final String[] SEND_PROJECTION = new String[] {
+        Sms._ID,        //0
+        Sms.THREAD_ID,  //1
+        Sms.ADDRESS,    //2
+        Sms.BODY,       //3
+        Sms.STATUS,     //4
+    };
+
+    // This must match SEND_PROJECTION.
+    private static final int SEND_COLUMN_ID         = 0;
+    private static final int SEND_COLUMN_THREAD_ID  = 1;
+    private static final int SEND_COLUMN_ADDRESS    = 2;
+    private static final int SEND_COLUMN_BODY       = 3;
+    private static final int SEND_COLUMN_STATUS     = 4;
+
+    private static SmsSendQueue sInstance;
+
+    /**
+     * A queued message: everything needed to send it.
+     */
+    static final class Entry {
+        final Uri mUri;
+        final String mAddress;
+        final String mBody;
+        final long mThreadId;
+        final boolean mDeliveryReport;
+
+        Entry(Uri uri, String address, String body, long threadId, boolean deliveryReport) {
+            mUri = uri;
+            mAddress = address;
+            mBody = body;
+            mThreadId = threadId;
+            mDeliveryReport = deliveryReport;
+        }
+    }
+
+    // Message uri -> entry, in sending order.
+    private final LinkedHashMap<Uri, Entry> mEntries = new LinkedHashMap<Uri, Entry>();
+
+    private boolean mValid;
+
+    private int mLoads;
+    private int mInserted;
+    private int mTaken;
+
+    public static synchronized SmsSendQueue getInstance() {
+        if (sInstance == null) {
+            sInstance = new SmsSendQueue();
+        }
+        return sInstance;
+    }
+
+    private SmsSendQueue() {
+    }
+
+    /**
+     * Inserts rows into the queued box, all in one provider batch, and adds them to the
+     * queue if it's loaded. The queue is locked for the whole insert, so a load can't
+     * find the new rows in the queued box and then have them added a second time.
+     */
+    synchronized void insert(Context context, ArrayList<ContentValues> rows)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(rows.size());
+        for (ContentValues row : rows) {
+            ops.add(ContentProviderOperation.newInsert(QUEUED_URI).withValues(row).build());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(QUEUED_URI.getAuthority(), ops);
+        } catch (RemoteException e) {
+            // Some of the rows may have gone in.
+            invalidate();
+            throw e;
+        } catch (OperationApplicationException e) {
+            invalidate();
+            throw e;
+        } catch (RuntimeException e) {
+            invalidate();
+            throw e;
+        }
+
+        if (!mValid) {
+            return;
+        }
+        for (int i = 0; i < results.length; i++) {
+            ContentValues row = rows.get(i);
+            Long threadId = row.getAsLong(Sms.THREAD_ID);
+            if (results[i].uri == null || threadId == null) {
+                // The provider picks the thread itself; find out what it picked by loading.
+                invalidate();
+                return;
+            }
+            Integer status = row.getAsInteger(Sms.STATUS);
+            Uri uri = ContentUris.withAppendedId(Sms.CONTENT_URI,
+                    ContentUris.parseId(results[i].uri));
+            mEntries.put(uri, new Entry(uri, row.getAsString(Sms.ADDRESS),
+                    row.getAsString(Sms.BODY), threadId,
+                    status != null && status == Sms.STATUS_PENDING));
+            mInserted++;
+        }
+    }
+
+    /**
+     * Removes and returns the next message to send, loading the queue from the queued box
+     * first if needed, or returns null if there is none.
+     */
+    synchronized Entry poll(Context context) {
+        if (!mValid) {
+            load(context);
+        }
+        if (mEntries.isEmpty()) {
+            return null;
+        }
+        Uri uri = mEntries.keySet().iterator().next();
+        mTaken++;
+        return mEntries.remove(uri);
+    }
+
+    /**
+     * Forget the queue; it's loaded from the queued box the next time a message is taken.
+     * Must be called when messages are moved into the queued box or deleted from it by
+     * anything but this class.
+     */
+    public synchronized void invalidate() {
+        mValid = false;
+        mEntries.clear();
+    }
+
+    private void load(Context context) {
+        mEntries.clear();
+        Cursor c = SqliteWrapper.query(context, context.getContentResolver(), QUEUED_URI,
+                SEND_PROJECTION, null, null, "date ASC");   // date ASC so we send out in
+                                                            // same order the user tried
+                                                            // to send messages.
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                Uri uri = ContentUris.withAppendedId(Sms.CONTENT_URI, c.getLong(SEND_COLUMN_ID));
+                mEntries.put(uri, new Entry(uri, c.getString(SEND_COLUMN_ADDRESS),
+                        c.getString(SEND_COLUMN_BODY), c.getLong(SEND_COLUMN_THREAD_ID),
+                        c.getInt(SEND_COLUMN_STATUS) == Sms.STATUS_PENDING));
+            }
+        } finally {
+            c.close();
+        }
+        mValid = true;
+        mLoads++;
+    }
+
+    public static void dump() {
+        SmsSendQueue queue = getInstance();
+        synchronized (queue) {
+            Log.d(TAG, "SmsSendQueue: valid=" + queue.mValid + " size=" +
+                    queue.mEntries.size() + " loads=" + queue.mLoads + " inserted=" +
+                    queue.mInserted + " taken=" + queue.mTaken);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.mms.LogTag;
+import com.android.mms.MmsConfig;
+
+/**
+ * Runs transactions on a small pool of worker threads, so a slow retrieve from a bad
+ * MMSC doesn't hold up sends and read reports behind it. Transactions for the same
+ * message (same transaction id) still run one at a time, in the order they were
+ * submitted.
+ * <p>
+ * The pool size comes from the "maxTransactionWorkers" value in mms_config.xml.
+ */
+class TransactionExecutor {
+    private static final String TAG = "TransactionExecutor";
+
+    private static final int TYPE_COUNT = Transaction.READREC_TRANSACTION + 1;
+
+    private static TransactionExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Transactions waiting behind a running one with the same id, by id. An id is in
+    // here, possibly with an empty queue, for as long as a transaction with it runs.
+    private final HashMap<String, ArrayDeque<Runnable>> mSerialQueues =
+            new HashMap<String, ArrayDeque<Runnable>>();
+
+    // Statistics, guarded by mSerialQueues.
+    private int mInFlight;
+    private int mMaxInFlight;
+    private final int[] mCompleted = new int[TYPE_COUNT];
+    private final long[] mTotalTime = new long[TYPE_COUNT];
+    private final long[] mMaxTime = new long[TYPE_COUNT];
+
+    static synchronized TransactionExecutor getInstance() {
+        if (sInstance == null) {
+            int workers = Math.max(1, MmsConfig.getMaxTransactionWorkers());
+            sInstance = new TransactionExecutor(workers);
+        }
+        return sInstance;
+    }
+
+    private TransactionExecutor(int workers) {
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "TransactionExecutor #" + count.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run the transaction's work on a worker thread.
+     *
+     * @param transaction the transaction, used for ordering and statistics
+     * @param work what to run; normally the transaction itself
+     */
+    void execute(Transaction transaction, Runnable work) {
+        String id = transaction.mId;
+        Runnable task = new TimedTask(transaction, id, work);
+        synchronized (mSerialQueues) {
+            ArrayDeque<Runnable> queue = mSerialQueues.get(id);
+            if (queue != null) {
+                // Another transaction for this message is running; go after it.
+                queue.add(task);
+                return;
+            }
+            mSerialQueues.put(id, new ArrayDeque<Runnable>());
+        }
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Returns the number of transactions currently running.
+     */
+    int getInFlightCount() {
+        synchronized (mSerialQueues) {
+            return mInFlight;
+        }
+    }
+
+    /**
+     * Returns the average time in ms transactions of the given type took to run, or 0 if
+     * none has completed.
+     */
+    long getAverageTime(int type) {
+        synchronized (mSerialQueues) {
+            return mCompleted[type] > 0 ? mTotalTime[type] / mCompleted[type] : 0;
+        }
+    }
+
+    void dump() {
+        synchronized (mSerialQueues) {
+            Log.d(TAG, "TransactionExecutor: workers=" + mExecutor.getMaximumPoolSize() +
+                    " inFlight=" + mInFlight + " maxInFlight=" + mMaxInFlight +
+                    " queued=" + mExecutor.getQueue().size());
+            for (int type = 0; type < TYPE_COUNT; type++) {
+                if (mCompleted[type] > 0) {
+                    Log.d(TAG, "  type " + type + ": completed=" + mCompleted[type] +
+                            " avg=" + (mTotalTime[type] / mCompleted[type]) + "ms" +
+                            " max=" + mMaxTime[type] + "ms");
+                }
+            }
+        }
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Transaction mTransaction;
+        private final String mId;
+        private final Runnable mWork;
+
+        TimedTask(Transaction transaction, String id, Runnable work) {
+            mTransaction = transaction;
+            mId = id;
+            mWork = work;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mSerialQueues) {
+                mInFlight++;
+                mMaxInFlight = Math.max(mMaxInFlight, mInFlight);
+            }
+            long start = SystemClock.elapsedRealtime();
+            try {
+                mWork.run();
+            } finally {
+                long time = SystemClock.elapsedRealtime() - start;
+                int type = mTransaction.getType();
+                Runnable next;
+                synchronized (mSerialQueues) {
+                    mInFlight--;
+                    if (type >= 0 && type < TYPE_COUNT) {
+                        mCompleted[type]++;
+                        mTotalTime[type] += time;
+                        mMaxTime[type] = Math.max(mMaxTime[type], time);
+                    }
+                    ArrayDeque<Runnable> queue = mSerialQueues.get(mId);
+                    next = queue != null ? queue.poll() : null;
+                    if (next == null) {
+                        mSerialQueues.remove(mId);
+                    }
+                }
+                if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                    Log.v(TAG, mTransaction + " took " + time + "ms");
+                }
+                if (next != null) {
+                    mExecutor.execute(next);
+                }
+            }
+        }
+    }
+}
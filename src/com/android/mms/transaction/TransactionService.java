@@ -63,7 +63,9 @@ import com.google.android.mms.pdu.PduPersister;
  * </ul>
  * The TransactionService runs locally in the same process as the application.
  * It contains a HandlerThread to which messages are posted from the
- * intent-receivers of this application.
+ * intent-receivers of this application. The transactions themselves run in
+ * parallel on the workers of a {@link TransactionExecutor}, all sharing one
+ * lease on the MMS connectivity.
  * <p/>
  * <b>IMPORTANT</b>: This is currently the only instance in the system in
  * which simultaneous connectivity to both the mobile data network and
@@ -399,8 +401,9 @@ public class TransactionService extends Service implements Observer {
                             EVENT_HANDLE_NEXT_PENDING_TRANSACTION,
                             transaction.getConnectionSettings());
                     mServiceHandler.sendMessage(msg);
-                }
-                else {
+                } else if (mProcessing.isEmpty()) {
+                    // Other transactions may still be using the connection; the last
+                    // one to finish gives it up.
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "update: endMmsConnectivity");
                     }
@@ -429,6 +432,10 @@ public class TransactionService extends Service implements Observer {
                             // NotificationTransacation.run(), so ok to block here.
                             long threadId = MessagingNotification.getThreadId(
                                     this, state.getContentUri());
+                            if (state.getContentUri() != null) {
+                                MessagingNotification.addUnreadMessage(this,
+                                        state.getContentUri());
+                            }
                             MessagingNotification.blockingUpdateNewMessageIndicator(this,
                                     threadId,
                                     false);
@@ -508,6 +515,24 @@ public class TransactionService extends Service implements Observer {
         throw new IOException("Cannot establish MMS connectivity");
     }
 
+    /**
+     * End MMS connectivity unless some other transaction is still using it.
+     */
+    private void endMmsConnectivityIfIdle() {
+        synchronized (mProcessing) {
+            if (mProcessing.isEmpty() && mPending.isEmpty()) {
+                endMmsConnectivity();
+            }
+        }
+    }
+
+    /**
+     * Logs how many transactions are running and how long each type has taken.
+     */
+    public static void dump() {
+        TransactionExecutor.getInstance().dump();
+    }
+
     protected void endMmsConnectivity() {
         try {
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -718,7 +743,7 @@ public class TransactionService extends Service implements Observer {
                             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                                 Log.v(TAG, "Transaction was null. Stopping self: " + serviceId);
                             }
-                            endMmsConnectivity();
+                            endMmsConnectivityIfIdle();
                             stopSelf(serviceId);
                         }
                     }
@@ -739,40 +764,46 @@ public class TransactionService extends Service implements Observer {
                 Log.v(TAG, "processPendingTxn: transaction=" + transaction);
             }
 
+            // Once connectivity is up, start everything that was waiting for it; the
+            // executor runs them side by side.
+            ArrayList<Transaction> transactions = new ArrayList<Transaction>();
             int numProcessTransaction = 0;
             synchronized (mProcessing) {
-                if (mPending.size() != 0) {
-                    transaction = mPending.remove(0);
+                if (transaction != null) {
+                    transactions.add(transaction);
                 }
+                transactions.addAll(mPending);
+                mPending.clear();
                 numProcessTransaction = mProcessing.size();
             }
 
-            if (transaction != null) {
-                if (settings != null) {
-                    transaction.setConnectionSettings(settings);
-                }
-
-                /*
-                 * Process deferred transaction
-                 */
-                try {
-                    int serviceId = transaction.getServiceId();
-
-                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "processPendingTxn: process " + serviceId);
+            if (!transactions.isEmpty()) {
+                for (Transaction t : transactions) {
+                    if (settings != null) {
+                        t.setConnectionSettings(settings);
                     }
 
-                    if (processTransaction(transaction)) {
+                    /*
+                     * Process deferred transaction
+                     */
+                    try {
+                        int serviceId = t.getServiceId();
+
                         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "Started deferred processing of transaction  "
-                                    + transaction);
+                            Log.v(TAG, "processPendingTxn: process " + serviceId);
                         }
-                    } else {
-                        transaction = null;
-                        stopSelf(serviceId);
+
+                        if (processTransaction(t)) {
+                            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                                Log.v(TAG, "Started deferred processing of transaction  "
+                                        + t);
+                            }
+                        } else {
+                            stopSelf(serviceId);
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, e.getMessage(), e);
                     }
-                } catch (IOException e) {
-                    Log.w(TAG, e.getMessage(), e);
                 }
             } else {
                 if (numProcessTransaction == 0) {
@@ -838,7 +869,9 @@ public class TransactionService extends Service implements Observer {
                 mProcessing.add(transaction);
             }
 
-            // Set a timer to keep renewing our "lease" on the MMS connection
+            // Set a timer to keep renewing our "lease" on the MMS connection. All the
+            // running transactions share the one lease, so only keep one timer.
+            removeMessages(EVENT_CONTINUE_MMS_CONNECTIVITY);
             sendMessageDelayed(obtainMessage(EVENT_CONTINUE_MMS_CONNECTIVITY),
                                APN_EXTENSION_WAIT);
 
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.Set;
+import java.util.SortedSet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.mms.transaction.MessagingNotification.NotificationInfo;
+import com.android.mms.util.LongHashMap;
+
+/**
+ * The unseen incoming messages the new message notification is built from, grouped by
+ * thread id. Messages are added as they arrive and threads are dropped as they're marked
+ * read, so updating the notification doesn't have to requery every unseen SMS and MMS.
+ * <p>
+ * Anything the index isn't told about (messages deleted, marked seen elsewhere, ...) is
+ * picked up by a full rescan, which happens the first time the index is used, whenever
+ * it has been invalidated, and periodically as a consistency check.
+ * <p>
+ * Messages are keyed by their SMS id, or the negated id for MMS, since the two tables
+ * have separate id spaces.
+ */
+final class UnreadMessageIndex {
+    private static final String TAG = "Mms/UnreadIndex";
+
+    private static final long RESCAN_INTERVAL_MS = 15 * 60 * 1000;
+
+    // thread id -> (message key -> info)
+    private final LongHashMap<LongHashMap<NotificationInfo>> mByThread =
+            new LongHashMap<LongHashMap<NotificationInfo>>();
+
+    private boolean mValid;
+    private long mLastRescan;
+
+    // Bumped on every change, so a rescan can tell whether the index was changed while
+    // it was querying.
+    private int mGeneration;
+
+    private int mRescans;
+    private int mUpdates;
+
+    static long messageKey(boolean isSms, long msgId) {
+        return isSms ? msgId : -msgId;
+    }
+
+    /**
+     * Returns true if the index has to be rebuilt before it can be used for a
+     * notification about newMsgThreadId.
+     */
+    synchronized boolean needsRescan(long newMsgThreadId) {
+        if (!mValid || newMsgThreadId == MessagingNotification.THREAD_ALL) {
+            return true;
+        }
+        if (SystemClock.elapsedRealtime() - mLastRescan > RESCAN_INTERVAL_MS) {
+            return true;
+        }
+        // We were told about a new message in a thread we don't know about; somebody
+        // stored it without updating the index.
+        return newMsgThreadId > 0 && mByThread.get(newMsgThreadId) == null;
+    }
+
+    synchronized boolean isValid() {
+        return mValid;
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Replace the contents of the index with the result of a full scan. If the index was
+     * changed after the scan started, the scan may be missing those changes, so the index
+     * stays invalid and the next update scans again.
+     */
+    synchronized void reset(LongHashMap<NotificationInfo> infos, int generation) {
+        mByThread.clear();
+        for (int i = 0; i < infos.capacity(); i++) {
+            NotificationInfo info = infos.valueAt(i);
+            if (info != null) {
+                add(infos.keyAt(i), info);
+            }
+        }
+        mValid = generation == mGeneration;
+        mLastRescan = SystemClock.elapsedRealtime();
+        mRescans++;
+    }
+
+    /**
+     * Add or replace the message with key. Ignored while the index is invalid; the
+     * rescan will find it.
+     */
+    synchronized void put(long key, NotificationInfo info) {
+        mGeneration++;
+        if (mValid) {
+            removeKey(key);
+            add(key, info);
+            mUpdates++;
+        }
+    }
+
+    synchronized void remove(long key) {
+        mGeneration++;
+        if (mValid && removeKey(key)) {
+            mUpdates++;
+        }
+    }
+
+    synchronized void removeThread(long threadId) {
+        mGeneration++;
+        if (mValid && mByThread.remove(threadId) != null) {
+            mUpdates++;
+        }
+    }
+
+    synchronized void invalidate() {
+        mGeneration++;
+        mValid = false;
+    }
+
+    /**
+     * Add every indexed message to notificationSet, and their thread ids to threads.
+     */
+    synchronized void collect(Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
+        for (int i = 0; i < mByThread.capacity(); i++) {
+            LongHashMap<NotificationInfo> messages = mByThread.valueAt(i);
+            if (messages == null) {
+                continue;
+            }
+            threads.add(mByThread.keyAt(i));
+            for (int j = 0; j < messages.capacity(); j++) {
+                NotificationInfo info = messages.valueAt(j);
+                if (info != null) {
+                    notificationSet.add(info);
+                }
+            }
+        }
+    }
+
+    synchronized void dump() {
+        int messages = 0;
+        for (int i = 0; i < mByThread.capacity(); i++) {
+            if (mByThread.valueAt(i) != null) {
+                messages += mByThread.valueAt(i).size();
+            }
+        }
+        Log.d(TAG, "UnreadMessageIndex: valid=" + mValid + " threads=" + mByThread.size() +
+                " messages=" + messages + " rescans=" + mRescans + " updates=" + mUpdates);
+    }
+
+    private void add(long key, NotificationInfo info) {
+        LongHashMap<NotificationInfo> messages = mByThread.get(info.mThreadId);
+        if (messages == null) {
+            messages = new LongHashMap<NotificationInfo>(4);
+            mByThread.put(info.mThreadId, messages);
+        }
+        messages.put(key, info);
+    }
+
+    private boolean removeKey(long key) {
+        // There are only ever a handful of threads with unseen messages.
+        for (int i = 0; i < mByThread.capacity(); i++) {
+            LongHashMap<NotificationInfo> messages = mByThread.valueAt(i);
+            if (messages != null && messages.remove(key) != null) {
+                if (messages.size() == 0) {
+                    mByThread.remove(mByThread.keyAt(i));
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -32,6 +32,7 @@ import com.android.mms.R;
 import com.android.mms.data.WorkingMessage;
 import com.android.mms.model.SlideModel;
 import com.android.mms.model.SlideshowModel;
+import com.android.mms.util.ThumbnailManager;
 
 /**
  * This is an embedded editor/view to add photos and sound/video clips
@@ -85,6 +86,9 @@ public class AttachmentEditor extends LinearLayout {
         if ((mPresenter == null) || !mSlideshow.equals(mPresenter.getModel())) {
             mPresenter = PresenterFactory.getPresenter(
                     "MmsThumbnailPresenter", mContext, mView, mSlideshow);
+            // The editor shows the attachment larger than a message list row does.
+            ((MmsThumbnailPresenter) mPresenter).setThumbnailType(
+                    ThumbnailManager.TYPE_THUMBNAIL);
         } else {
             mPresenter.setView(mView);
         }
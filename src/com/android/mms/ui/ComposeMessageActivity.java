@@ -92,7 +92,6 @@ import android.provider.Telephony.Sms;
 import android.support.v4.widget.CursorAdapter;
 import android.support.v4.widget.SimpleCursorAdapter;
 import android.telephony.PhoneNumberUtils;
-import android.telephony.SmsMessage;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.InputFilter.LengthFilter;
@@ -150,15 +149,19 @@ import com.android.mms.model.SlideshowModel;
 import com.android.mms.templates.TemplateGesturesLibrary;
 import com.android.mms.templates.TemplatesProvider.Template;
 import com.android.mms.transaction.MessagingNotification;
+import com.android.mms.transaction.SmsSendQueue;
 import com.android.mms.ui.MessageListView.OnSizeChangedListener;
 import com.android.mms.ui.MessageUtils.ResizeImageResultCallback;
 import com.android.mms.ui.MessagingPreferenceActivity;
 import com.android.mms.ui.RecipientsEditor.RecipientContextMenuInfo;
 import com.android.mms.util.DraftCache;
 import com.android.mms.util.EmojiParser;
+import com.android.mms.util.PduLoaderManager;
 import com.android.mms.util.PhoneNumberFormatter;
 import com.android.mms.util.SendingProgressTokenManager;
 import com.android.mms.util.SmileyParser;
+import com.android.mms.util.SmsSegmentCounter;
+import com.android.mms.util.ThumbnailManager;
 import com.android.mms.util.UnicodeFilter;
 import com.android.mms.widget.MmsWidgetProvider;
 import com.google.android.mms.ContentType;
@@ -405,6 +408,9 @@ public class ComposeMessageActivity extends Activity
 
     private UnicodeFilter mUnicodeFilter = null;
 
+    // Counts the sms segments the text in mTextEditor needs as it's edited.
+    private SmsSegmentCounter mSegmentCounter;
+
     private Handler mHandler = new Handler();
 
     // keys for extras and icicles
@@ -544,9 +550,7 @@ public class ComposeMessageActivity extends Activity
                             case WorkingMessage.VIDEO:
                             case WorkingMessage.AUDIO:
                             case WorkingMessage.SLIDESHOW:
-                                MessageUtils.viewMmsMessageAttachment(ComposeMessageActivity.this,
-                                        msgItem.mMessageUri, msgItem.mSlideshow,
-                                        getAsyncDialog());
+                                viewMmsMessageAttachment(msgItem);
                                 break;
                         }
                         break;
@@ -635,7 +639,7 @@ public class ComposeMessageActivity extends Activity
             }
         }
 
-        int[] params = SmsMessage.calculateLength(text, false);
+        int[] params = mSegmentCounter.calculateLength(text);
             /* SmsMessage.calculateLength returns an int[4] with:
              *   int[0] being the number of SMS's required,
              *   int[1] the number of code units used,
@@ -713,10 +717,30 @@ public class ComposeMessageActivity extends Activity
             new AsyncTask<Void, Void, Void>() {
                 protected Void doInBackground(Void... none) {
                     if (mMessageItem.isMms()) {
-                        WorkingMessage.removeThumbnailsFromCache(mMessageItem.getSlideshow());
+                        // Rows drawn from the pdu summary have no slideshow yet.
+                        SlideshowModel slideshow = null;
+                        try {
+                            slideshow = mMessageItem.loadSlideshow();
+                        } catch (MmsException e) {
+                            Log.e(TAG, "DeleteMessageListener: failed to load slideshow for " +
+                                    mMessageItem.mMessageUri, e);
+                        }
+                        if (slideshow != null) {
+                            WorkingMessage.removeThumbnailsFromCache(slideshow);
+                        } else if (mMessageItem.mThumbnailUri != null) {
+                            // Part ids get reused, so the cache must not outlive the part;
+                            // see removeThumbnailsFromCache.
+                            ThumbnailManager thumbnailManager =
+                                    MmsApp.getApplication().getThumbnailManager();
+                            thumbnailManager.removeThumbnail(mMessageItem.mThumbnailUri);
+                            thumbnailManager.clearBackingStore();
+                        }
 
-                        MmsApp.getApplication().getPduLoaderManager()
-                            .removePdu(mMessageItem.mMessageUri);
+                        PduLoaderManager pduLoaderManager =
+                                MmsApp.getApplication().getPduLoaderManager();
+                        pduLoaderManager.removePdu(mMessageItem.mMessageUri);
+                        // The summary on disk holds the message's text.
+                        pduLoaderManager.clearSummaryBackingStore();
                         // Delete the message *after* we've removed the thumbnails because we
                         // need the pdu and slideshow for removeThumbnailsFromCache to work.
                     }
@@ -730,6 +754,10 @@ public class ComposeMessageActivity extends Activity
                     mBackgroundQueryHandler.startDelete(DELETE_MESSAGE_TOKEN,
                             deletingLastItem, mMessageItem.mMessageUri,
                             mMessageItem.mLocked ? null : "locked=0", null);
+                    if (!mMessageItem.isMms()) {
+                        // It may be a queued message waiting to be sent.
+                        SmsSendQueue.getInstance().invalidate();
+                    }
                     return null;
                 }
             }.execute();
@@ -1244,6 +1272,7 @@ public class ComposeMessageActivity extends Activity
         Uri uri = ContentUris.withAppendedId(Sms.CONTENT_URI, msgItem.mMsgId);
         SqliteWrapper.delete(ComposeMessageActivity.this,
                 mContentResolver, uri, null, null);
+        SmsSendQueue.getInstance().invalidate();
 
         mWorkingMessage.setText(msgItem.mBody);
     }
@@ -1292,6 +1321,32 @@ public class ComposeMessageActivity extends Activity
         startActivity(calendarIntent);
     }
 
+    private void viewMmsMessageAttachment(final MessageItem msgItem) {
+        if (msgItem.mSlideshow != null) {
+            MessageUtils.viewMmsMessageAttachment(this, msgItem.mMessageUri,
+                    msgItem.mSlideshow, getAsyncDialog());
+            return;
+        }
+        // The list item was drawn from the message's summary, so the slideshow hasn't been
+        // loaded yet.
+        getAsyncDialog().runAsync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    msgItem.loadSlideshow();
+                } catch (MmsException e) {
+                    Log.e(TAG, "Failed to load message: " + msgItem, e);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                MessageUtils.viewMmsMessageAttachment(ComposeMessageActivity.this,
+                        msgItem.mMessageUri, msgItem.mSlideshow, getAsyncDialog());
+            }
+        }, R.string.building_slideshow_title);
+    }
+
     private void forwardMessage(final MessageItem msgItem) {
         mTempThreadId = 0;
         // The user wants to forward the message. If the message is an mms message, we need to
@@ -1310,7 +1365,12 @@ public class ComposeMessageActivity extends Activity
                         subject += msgItem.mSubject;
                     }
                     sendReq.setSubject(new EncodedStringValue(subject));
-                    sendReq.setBody(msgItem.mSlideshow.makeCopy());
+                    try {
+                        sendReq.setBody(msgItem.loadSlideshow().makeCopy());
+                    } catch (MmsException e) {
+                        Log.e(TAG, "Failed to load message for forwarding: " + msgItem, e);
+                        return;
+                    }
 
                     mTempMmsUri = null;
                     try {
@@ -1996,17 +2056,23 @@ public class ComposeMessageActivity extends Activity
         getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE |
                 WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN);
 
-        // Initialize members for UI elements.
-        initResourceRefs();
-
-        LengthFilter lengthFilter = new LengthFilter(MmsConfig.getMaxTextLimit());
-        mTextEditor.setFilters(new InputFilter[] { lengthFilter });
-
         if (unicodeStripping != MessagingPreferenceActivity.UNICODE_STRIPPING_LEAVE_INTACT) {
             boolean stripNonDecodableOnly =
                     unicodeStripping == MessagingPreferenceActivity.UNICODE_STRIPPING_NON_DECODABLE;
             mUnicodeFilter = new UnicodeFilter(stripNonDecodableOnly);
         }
+        // The counter has to hear about each edit exactly once, and before
+        // mTextEditorWatcher asks it for the length, so it's added here, ahead of the
+        // watcher initResourceRefs adds on every resume.
+        mSegmentCounter = new SmsSegmentCounter(mUnicodeFilter);
+        ((EditText) findViewById(R.id.embedded_text_editor))
+                .addTextChangedListener(mSegmentCounter);
+
+        // Initialize members for UI elements.
+        initResourceRefs();
+
+        LengthFilter lengthFilter = new LengthFilter(MmsConfig.getMaxTextLimit());
+        mTextEditor.setFilters(new InputFilter[] { lengthFilter });
 
         mContentResolver = getContentResolver();
         mBackgroundQueryHandler = new BackgroundQueryHandler(mContentResolver);
@@ -3777,8 +3843,6 @@ public class ComposeMessageActivity extends Activity
 
             updateSendButtonState();
 
-            // strip unicode for counting characters
-            s = stripUnicodeIfRequested(s);
             updateCounter(s, start, before, count);
 
             ensureCorrectButtonHeight();
@@ -3861,6 +3925,8 @@ public class ComposeMessageActivity extends Activity
         mBottomPanel = findViewById(R.id.bottom_panel);
         mTextEditor = (EditText) findViewById(R.id.embedded_text_editor);
         mTextEditor.setOnEditorActionListener(this);
+        // This runs on every resume, and TextView would call a listener added twice twice.
+        mTextEditor.removeTextChangedListener(mTextEditorWatcher);
         mTextEditor.addTextChangedListener(mTextEditorWatcher);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         mTextEditor.setMaxLines(prefs.getInt(MessagingPreferenceActivity.TEXT_AREA_SIZE, 3));
@@ -4138,6 +4204,7 @@ public class ComposeMessageActivity extends Activity
 
         // Clear the text box.
         TextKeyListener.clear(mTextEditor.getText());
+        mSegmentCounter.reset();
 
         mWorkingMessage.clearConversation(mConversation, false);
         mWorkingMessage = WorkingMessage.createEmpty(this);
@@ -4567,6 +4634,7 @@ public class ComposeMessageActivity extends Activity
                     }
                     // Update the notification for new messages since they
                     // may be deleted.
+                    MessagingNotification.invalidateUnreadIndex();
                     MessagingNotification.nonBlockingUpdateNewMessageIndicator(
                             ComposeMessageActivity.this, MessagingNotification.THREAD_NONE, false);
                     // Update the notification for failed messages since they
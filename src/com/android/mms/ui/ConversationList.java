@@ -867,6 +867,7 @@ public class ConversationList extends ListActivity implements DraftCache.OnDraft
 
                 // Update the notification for new messages since they
                 // may be deleted.
+                MessagingNotification.invalidateUnreadIndex();
                 MessagingNotification.nonBlockingUpdateNewMessageIndicator(ConversationList.this,
                         MessagingNotification.THREAD_NONE, false);
                 // Update the notification for failed messages since they
@@ -17,6 +17,8 @@
 
 package com.android.mms.ui;
 
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Typeface;
@@ -42,6 +44,7 @@ import com.android.mms.data.Contact;
 import com.android.mms.data.ContactList;
 import com.android.mms.data.Conversation;
 import com.android.mms.util.EmojiParser;
+import com.android.mms.util.FormattedTextCache;
 import com.android.mms.util.SmileyParser;
 
 /**
@@ -66,6 +69,11 @@ public class ConversationListItem extends RelativeLayout implements Contact.Upda
 
     private Conversation mConversation;
 
+    // The recipients' queued updates this row asked for when it was bound, to cancel if it's
+    // recycled before they're loaded.
+    private final ArrayList<Contact.PendingUpdate> mPendingUpdates =
+            new ArrayList<Contact.PendingUpdate>();
+
     public static final StyleSpan STYLE_BOLD = new StyleSpan(Typeface.BOLD);
 
     public ConversationListItem(Context context) {
@@ -140,6 +148,28 @@ public class ConversationListItem extends RelativeLayout implements Contact.Upda
         return buf;
     }
 
+    private CharSequence formatSnippet(Conversation conversation) {
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(mContext);
+        boolean enableEmojis = prefs.getBoolean(MessagingPreferenceActivity.ENABLE_EMOJIS, false);
+        String snippet = conversation.getSnippet();
+        int hash = snippet == null ? 0 : snippet.hashCode();
+        String style = "snippet:" + enableEmojis;
+
+        FormattedTextCache cache = FormattedTextCache.getInstance();
+        CharSequence smileySubject = cache.get(conversation.getThreadId(), hash, style);
+        if (smileySubject == null) {
+            SmileyParser parser = SmileyParser.getInstance();
+            smileySubject = parser.addSmileySpans(snippet);
+            if(enableEmojis) {
+                EmojiParser emojiParser = EmojiParser.getInstance();
+                smileySubject = emojiParser.addEmojiSpans(smileySubject);
+            }
+            smileySubject = cache.put(conversation.getThreadId(), hash, style, smileySubject);
+        }
+        return smileySubject;
+    }
+
     private void updateAvatarView() {
         Drawable avatarDrawable;
         if (mConversation.getRecipients().size() == 1) {
@@ -217,17 +247,17 @@ public class ConversationListItem extends RelativeLayout implements Contact.Upda
         }
         Contact.addListener(this);
 
-        // Subject
-        SmileyParser parser = SmileyParser.getInstance();
-        CharSequence smileySubject = parser.addSmileySpans(conversation.getSnippet());
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(mContext);
-        boolean enableEmojis = prefs.getBoolean(MessagingPreferenceActivity.ENABLE_EMOJIS, false);
-        if(enableEmojis) {
-            EmojiParser emojiParser = EmojiParser.getInstance();
-            smileySubject = emojiParser.addEmojiSpans(smileySubject);
+        // Ask for the recipients that are still loading ahead of rows bound earlier.
+        cancelPendingUpdates();
+        for (Contact contact : contacts) {
+            Contact.PendingUpdate update = contact.requestPendingUpdate();
+            if (update != null) {
+                mPendingUpdates.add(update);
+            }
         }
-        mSubjectView.setText(smileySubject);
+
+        // Subject
+        mSubjectView.setText(formatSnippet(conversation));
         LayoutParams subjectLayout = (LayoutParams)mSubjectView.getLayoutParams();
         // We have to make the subject left of whatever optional items are shown on the right.
         subjectLayout.addRule(RelativeLayout.LEFT_OF, hasAttachment ? R.id.attachment :
@@ -258,6 +288,16 @@ public class ConversationListItem extends RelativeLayout implements Contact.Upda
         }
         // Unregister contact update callbacks.
         Contact.removeListener(this);
+
+        // This row is off screen now; don't make visible rows wait for its contacts.
+        cancelPendingUpdates();
+    }
+
+    private void cancelPendingUpdates() {
+        for (Contact.PendingUpdate update : mPendingUpdates) {
+            update.cancel();
+        }
+        mPendingUpdates.clear();
     }
 
     public void setChecked(boolean checked) {
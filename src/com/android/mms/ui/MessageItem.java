@@ -34,23 +34,19 @@ import com.android.mms.MmsApp;
 import com.android.mms.R;
 import com.android.mms.data.Contact;
 import com.android.mms.data.WorkingMessage;
-import com.android.mms.model.SlideModel;
 import com.android.mms.model.SlideshowModel;
-import com.android.mms.model.TextModel;
 import com.android.mms.ui.MessageListAdapter.ColumnsMap;
 import com.android.mms.util.AddressUtils;
 import com.android.mms.util.DownloadManager;
 import com.android.mms.util.ItemLoadedCallback;
 import com.android.mms.util.ItemLoadedFuture;
 import com.android.mms.util.PduLoaderManager;
+import com.android.mms.util.PduSummary;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.EncodedStringValue;
-import com.google.android.mms.pdu.MultimediaMessagePdu;
 import com.google.android.mms.pdu.NotificationInd;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.pdu.PduPersister;
-import com.google.android.mms.pdu.RetrieveConf;
-import com.google.android.mms.pdu.SendReq;
 
 /**
  * Mostly immutable model for an SMS/MMS message.
@@ -98,7 +94,14 @@ public class MessageItem {
     int mMessageType;
     int mAttachmentType;
     String mSubject;
+    // Only loaded for a downloaded message when it couldn't be drawn from its summary;
+    // see loadSlideshow().
     SlideshowModel mSlideshow;
+    // The image or video on the first slide, to show a thumbnail of.
+    Uri mThumbnailUri;
+    boolean mThumbnailIsVideo;
+    // Whether the pdu or its summary has been loaded and the fields above filled in.
+    boolean mPduLoaded;
     int mMessageSize;
     int mErrorType;
     int mErrorCode;
@@ -192,13 +195,18 @@ public class MessageItem {
             mAttachmentType = cursor.getInt(columnsMap.mColumnMmsTextOnly) != 0 ?
                     WorkingMessage.TEXT : ATTACHMENT_TYPE_NOT_LOADED;
 
-            // Start an async load of the pdu. If the pdu is already loaded, the callback
-            // will get called immediately
-            boolean loadSlideshow = mMessageType != PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND;
-
-            mItemLoadedFuture = MmsApp.getApplication().getPduLoaderManager()
-                    .getPdu(mMessageUri, loadSlideshow,
-                    new PduLoadedMessageItemCallback());
+            // Start an async load of the pdu, or for a downloaded message just its summary.
+            // If it's already loaded, the callback will get called immediately
+            PduLoaderManager pduLoaderManager = MmsApp.getApplication().getPduLoaderManager();
+            if (mMessageType != PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND) {
+                // The summary is made again when the message is moved to another box.
+                String version = cursor.getLong(columnsMap.mColumnMmsDate) + "/" + mBoxId;
+                mItemLoadedFuture = pduLoaderManager.getPduSummary(mMessageUri, version,
+                        new PduLoadedMessageItemCallback());
+            } else {
+                mItemLoadedFuture = pduLoaderManager.getPdu(mMessageUri, false,
+                        new PduLoadedMessageItemCallback());
+            }
 
         } else {
             throw new MmsException("Unknown type of the message: " + type);
@@ -206,8 +214,12 @@ public class MessageItem {
     }
 
     private void interpretFrom(EncodedStringValue from, Uri messageUri) {
+        interpretFrom(from != null ? from.getString() : null, messageUri);
+    }
+
+    private void interpretFrom(String from, Uri messageUri) {
         if (from != null) {
-            mAddress = from.getString();
+            mAddress = from;
         } else {
             // In the rare case when getting the "from" address from the pdu fails,
             // (e.g. from == null) fall back to a slower, yet more reliable method of
@@ -331,33 +343,31 @@ public class MessageItem {
                 if (mCursor.isClosed()) {
                     return;
                 }
-                MultimediaMessagePdu msg = (MultimediaMessagePdu)pduLoaded.mPdu;
                 mSlideshow = pduLoaded.mSlideshow;
-                mAttachmentType = MessageUtils.getAttachmentType(mSlideshow, msg);
+                PduSummary summary = pduLoaded.mSummary;
+                if (summary == null) {
+                    // The message couldn't be loaded.
+                    summary = PduSummary.create(null, null, null);
+                }
+                mAttachmentType = summary.mAttachmentType;
+                mThumbnailUri = summary.mThumbnailUri;
+                mThumbnailIsVideo = summary.mThumbnailIsVideo;
 
                 if (mMessageType == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF) {
-                    if (msg == null) {
-                        interpretFrom(null, mMessageUri);
-                    } else {
-                        RetrieveConf retrieveConf = (RetrieveConf) msg;
-                        interpretFrom(retrieveConf.getFrom(), mMessageUri);
-                        timestamp = retrieveConf.getDate() * 1000L;
-                    }
+                    interpretFrom(summary.mFrom, mMessageUri);
                 } else {
                     // Use constant string for outgoing messages
                     mContact = mAddress =
                             mContext.getString(R.string.messagelist_sender_self);
-                    timestamp = msg == null ? 0 : ((SendReq) msg).getDate() * 1000L;
                 }
+                timestamp = summary.mDate * 1000L;
 
-                SlideModel slide = mSlideshow == null ? null : mSlideshow.get(0);
-                if ((slide != null) && slide.hasText()) {
-                    TextModel tm = slide.getText();
-                    mBody = tm.getText();
-                    mTextContentType = tm.getContentType();
+                if (summary.mTextContentType != null) {
+                    mBody = summary.mBody;
+                    mTextContentType = summary.mTextContentType;
                 }
 
-                mMessageSize = mSlideshow == null ? 0 : mSlideshow.getTotalMessageSize();
+                mMessageSize = summary.mMessageSize;
 
                 String report = mCursor.getString(mColumnsMap.mColumnMmsDeliveryReport);
                 if ((report == null) || !mAddress.equals(mContext.getString(
@@ -401,6 +411,7 @@ public class MessageItem {
                     mTimestamp =  MessageUtils.formatTimeStampString(mContext, timestamp, mFullTimestamp);
                 }
             }
+            mPduLoaded = true;
             if (mPduLoadedCallback != null) {
                 mPduLoadedCallback.onPduLoaded(MessageItem.this);
             }
@@ -433,4 +444,15 @@ public class MessageItem {
     public SlideshowModel getSlideshow() {
         return mSlideshow;
     }
+
+    /**
+     * Returns the slideshow, first loading it if the item was drawn from the message's
+     * summary. Loads from the provider, so don't call it on the UI thread.
+     */
+    public SlideshowModel loadSlideshow() throws MmsException {
+        if (mSlideshow == null && isMms() && isDownloaded()) {
+            mSlideshow = SlideshowModel.createFromMessageUri(mContext, mMessageUri);
+        }
+        return mSlideshow;
+    }
 }
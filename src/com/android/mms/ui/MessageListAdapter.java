@@ -111,6 +111,9 @@ public class MessageListAdapter extends CursorAdapter {
 
     private static final int CACHE_SIZE         = 50;
 
+    // How many rows either side of the one being bound to format in the background.
+    private static final int PREFETCH_DISTANCE  = 8;
+
     public static final int INCOMING_ITEM_TYPE_SMS = 0;
     public static final int OUTGOING_ITEM_TYPE_SMS = 1;
     public static final int INCOMING_ITEM_TYPE_MMS = 2;
@@ -126,6 +129,8 @@ public class MessageListAdapter extends CursorAdapter {
     private boolean mIsGroupConversation;
     private boolean mFullTimestamp;
     private boolean mSentTimestamp;
+    // The position prefetching was last done around, or -1.
+    private int mLastPrefetchPosition = -1;
 
     public MessageListAdapter(
             Context context, Cursor c, ListView listView,
@@ -173,6 +178,42 @@ public class MessageListAdapter extends CursorAdapter {
                 mli.bind(msgItem, mIsGroupConversation, position);
                 mli.setMsgListItemHandler(mMsgListItemHandler);
             }
+            prefetchFormattedMessages(cursor);
+        }
+    }
+
+    /**
+     * Formats the bodies of the sms messages near the cursor's position in the background,
+     * so they're cached by the time their rows are bound. Mms bodies aren't in the cursor,
+     * and are formatted when their pdus have loaded. Leaves the cursor where it was.
+     */
+    private void prefetchFormattedMessages(Cursor cursor) {
+        int position = cursor.getPosition();
+        if (mLastPrefetchPosition >= 0 &&
+                Math.abs(position - mLastPrefetchPosition) < PREFETCH_DISTANCE / 2) {
+            return;
+        }
+        mLastPrefetchPosition = position;
+
+        boolean enableEmojis = MessageListItem.isEmojiEnabled(mContext);
+        Context appContext = mContext.getApplicationContext();
+        int end = Math.min(cursor.getCount() - 1, position + PREFETCH_DISTANCE);
+        try {
+            for (int i = Math.max(0, position - PREFETCH_DISTANCE); i <= end; i++) {
+                if (i == position || !cursor.moveToPosition(i)) {
+                    continue;
+                }
+                String type = cursor.getString(mColumnsMap.mColumnMsgType);
+                if (!"sms".equals(type)) {
+                    continue;
+                }
+                long key = getKey(type, cursor.getLong(mColumnsMap.mColumnMsgId));
+                MessageListItem.prefetchFormattedMessage(appContext, key,
+                        cursor.getString(mColumnsMap.mColumnSmsBody), null, mHighlight, null,
+                        enableEmojis);
+            }
+        } finally {
+            cursor.moveToPosition(position);
         }
     }
 
@@ -207,6 +248,7 @@ public class MessageListAdapter extends CursorAdapter {
         }
 
         mMessageItemCache.evictAll();
+        mLastPrefetchPosition = -1;
 
         if (mOnDataSetChangedListener != null) {
             mOnDataSetChangedListener.onDataSetChanged(this);
@@ -257,7 +299,7 @@ public class MessageListAdapter extends CursorAdapter {
         return true;
     }
 
-    private static long getKey(String type, long id) {
+    static long getKey(String type, long id) {
         if (type.equals("mms")) {
             return -id;
         } else {
@@ -361,6 +403,7 @@ public class MessageListAdapter extends CursorAdapter {
             mColumnSmsErrorCode       = COLUMN_SMS_ERROR_CODE;
             mColumnMmsSubject         = COLUMN_MMS_SUBJECT;
             mColumnMmsSubjectCharset  = COLUMN_MMS_SUBJECT_CHARSET;
+            mColumnMmsDate            = COLUMN_MMS_DATE;
             mColumnMmsMessageType     = COLUMN_MMS_MESSAGE_TYPE;
             mColumnMmsMessageBox      = COLUMN_MMS_MESSAGE_BOX;
             mColumnMmsDeliveryReport  = COLUMN_MMS_DELIVERY_REPORT;
@@ -447,6 +490,12 @@ public class MessageListAdapter extends CursorAdapter {
                 Log.w("colsMap", e.getMessage());
             }
 
+            try {
+                mColumnMmsDate = cursor.getColumnIndexOrThrow(Mms.DATE);
+            } catch (IllegalArgumentException e) {
+                Log.w("colsMap", e.getMessage());
+            }
+
             try {
                 mColumnMmsMessageType = cursor.getColumnIndexOrThrow(Mms.MESSAGE_TYPE);
             } catch (IllegalArgumentException e) {
@@ -47,6 +47,7 @@ import android.text.style.LineHeightSpan;
 import android.text.style.StyleSpan;
 import android.text.style.TextAppearanceSpan;
 import android.text.style.URLSpan;
+import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
@@ -71,8 +72,11 @@ import com.android.mms.transaction.TransactionBundle;
 import com.android.mms.transaction.TransactionService;
 import com.android.mms.util.DownloadManager;
 import com.android.mms.util.ItemLoadedCallback;
+import com.android.mms.util.ItemLoadedFuture;
 import com.android.mms.util.EmojiParser;
+import com.android.mms.util.FormattedTextCache;
 import com.android.mms.util.SmileyParser;
+import com.android.mms.util.ThumbnailManager;
 import com.android.mms.util.ThumbnailManager.ImageLoaded;
 import com.google.android.mms.ContentType;
 import com.google.android.mms.pdu.PduHeaders;
@@ -111,6 +115,9 @@ public class MessageListItem extends LinearLayout implements
     private Presenter mPresenter;
     private int mPosition;      // for debugging
     private ImageLoadedCallback mImageLoadedCallback;
+    // The thumbnail load for an item drawn from its summary, which has no presenter.
+    private ItemLoadedFuture mThumbnailFuture;
+    private Uri mThumbnailUri;
     private boolean mMultiRecipients;
 
     public MessageListItem(Context context) {
@@ -192,6 +199,12 @@ public class MessageListItem extends LinearLayout implements
         if (mPresenter != null) {
             mPresenter.cancelBackgroundLoading();
         }
+        if (mThumbnailFuture != null) {
+            if (!mThumbnailFuture.isDone()) {
+                mThumbnailFuture.cancel(mThumbnailUri);
+            }
+            mThumbnailFuture = null;
+        }
     }
 
     public MessageItem getMessageItem() {
@@ -209,10 +222,12 @@ public class MessageListItem extends LinearLayout implements
                                 + String.valueOf((mMessageItem.mMessageSize + 1023) / 1024)
                                 + mContext.getString(R.string.kilobyte);
 
-        mBodyTextView.setText(formatMessage(mMessageItem, null,
-                                            mMessageItem.mSubject,
-                                            mMessageItem.mHighlight,
-                                            mMessageItem.mTextContentType));
+        mBodyTextView.setText(getFormattedMessage(mContext, getMessageKey(mMessageItem),
+                                                  null,
+                                                  mMessageItem.mSubject,
+                                                  mMessageItem.mHighlight,
+                                                  mMessageItem.mTextContentType,
+                                                  isEmojiEnabled(mContext)));
 
         mDateView.setText(buildTimestampLine(msgSizeText + " " + mMessageItem.mTimestamp));
 
@@ -314,7 +329,7 @@ public class MessageListItem extends LinearLayout implements
         // displaying it by the Presenter.
         mBodyTextView.setTransformationMethod(HideReturnsTransformationMethod.getInstance());
 
-        boolean haveLoadedPdu = mMessageItem.isSms() || mMessageItem.mSlideshow != null;
+        boolean haveLoadedPdu = mMessageItem.isSms() || mMessageItem.mPduLoaded;
         // Here we're avoiding reseting the avatar to the empty avatar when we're rebinding
         // to the same item. This happens when there's a DB change which causes the message item
         // cache in the MessageListAdapter to get cleared. When an mms MessageItem is newly
@@ -332,14 +347,18 @@ public class MessageListItem extends LinearLayout implements
         // Get and/or lazily set the formatted message from/on the
         // MessageItem.  Because the MessageItem instances come from a
         // cache (currently of size ~50), the hit rate on avoiding the
-        // expensive formatMessage() call is very high.
+        // expensive formatMessage() call is very high. Items that have
+        // dropped out of that cache find it in the shared
+        // FormattedTextCache, often prefetched by MessageListAdapter.
         CharSequence formattedMessage = mMessageItem.getCachedFormattedMessage();
         if (formattedMessage == null) {
-            formattedMessage = formatMessage(mMessageItem,
-                                             mMessageItem.mBody,
-                                             mMessageItem.mSubject,
-                                             mMessageItem.mHighlight,
-                                             mMessageItem.mTextContentType);
+            formattedMessage = getFormattedMessage(mContext,
+                                                   getMessageKey(mMessageItem),
+                                                   mMessageItem.mBody,
+                                                   mMessageItem.mSubject,
+                                                   mMessageItem.mHighlight,
+                                                   mMessageItem.mTextContentType,
+                                                   isEmojiEnabled(mContext));
             mMessageItem.setCachedFormattedMessage(formattedMessage);
         }
         if (!sameItem || haveLoadedPdu) {
@@ -390,7 +409,7 @@ public class MessageListItem extends LinearLayout implements
             } else {
                 showMmsView(false);
             }
-            if (mMessageItem.mSlideshow == null) {
+            if (!mMessageItem.mPduLoaded) {
                 mMessageItem.setOnPduLoaded(new MessageItem.PduLoadedCallback() {
                     public void onPduLoaded(MessageItem messageItem) {
                         if (DEBUG) {
@@ -406,6 +425,12 @@ public class MessageListItem extends LinearLayout implements
                         }
                     }
                 });
+            } else if (mMessageItem.mSlideshow == null) {
+                // Drawn from the message's summary; the slideshow isn't loaded until the
+                // message is opened.
+                if (mMessageItem.mThumbnailUri != null) {
+                    presentSummaryThumbnail();
+                }
             } else {
                 if (mPresenter == null) {
                     mPresenter = PresenterFactory.getPresenter(
@@ -428,6 +453,23 @@ public class MessageListItem extends LinearLayout implements
         requestLayout();
     }
 
+    private void presentSummaryThumbnail() {
+        if (mImageLoadedCallback == null) {
+            mImageLoadedCallback = new ImageLoadedCallback(this);
+        } else {
+            mImageLoadedCallback.reset(this);
+        }
+        ThumbnailManager thumbnailManager = MmsApp.getApplication().getThumbnailManager();
+        mThumbnailUri = mMessageItem.mThumbnailUri;
+        if (mMessageItem.mThumbnailIsVideo) {
+            mThumbnailFuture = thumbnailManager.getVideoThumbnail(mThumbnailUri,
+                    ThumbnailManager.TYPE_MICROTHUMBNAIL, mImageLoadedCallback);
+        } else {
+            mThumbnailFuture = thumbnailManager.getThumbnail(mThumbnailUri,
+                    ThumbnailManager.TYPE_MICROTHUMBNAIL, mImageLoadedCallback);
+        }
+    }
+
     static private class ImageLoadedCallback implements ItemLoadedCallback<ImageLoaded> {
         private long mMessageId;
         private final MessageListItem mListItem;
@@ -449,6 +491,9 @@ public class MessageListItem extends LinearLayout implements
             // been recycled.
             MessageItem msgItem = mListItem.mMessageItem;
             if (msgItem != null && msgItem.getMessageId() == mMessageId) {
+                if (mListItem.mThumbnailFuture != null) {
+                    mListItem.mThumbnailFuture.setIsDone(true);
+                }
                 if (imageLoaded.mIsVideo) {
                     mListItem.setVideoThumbnail(null, imageLoaded.mBitmap);
                 } else {
@@ -532,14 +577,65 @@ public class MessageListItem extends LinearLayout implements
 
     ForegroundColorSpan mColorSpan = null;  // set in ctor
 
-    private CharSequence formatMessage(MessageItem msgItem, String body,
-                                       String subject, Pattern highlight,
-                                       String contentType) {
-        SpannableStringBuilder buf = new SpannableStringBuilder();
+    static boolean isEmojiEnabled(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getBoolean(MessagingPreferenceActivity.ENABLE_EMOJIS, false);
+    }
+
+    static long getMessageKey(MessageItem msgItem) {
+        return MessageListAdapter.getKey(msgItem.mType, msgItem.mMsgId);
+    }
+
+    /**
+     * Returns the formatted subject and body of a message, from the shared
+     * {@link FormattedTextCache} if it's there. May be called on any thread.
+     *
+     * @param key the message's key in the message list; see {@link #getMessageKey}
+     */
+    static CharSequence getFormattedMessage(Context context, long key, String body,
+            String subject, Pattern highlight, String contentType, boolean enableEmojis) {
+        FormattedTextCache cache = FormattedTextCache.getInstance();
+        int hash = hashMessage(body, subject, contentType);
+        String style = getFormatStyle(highlight, enableEmojis);
+        CharSequence formatted = cache.get(key, hash, style);
+        if (formatted == null) {
+            formatted = cache.put(key, hash, style,
+                    formatMessage(context, body, subject, highlight, contentType, enableEmojis));
+        }
+        return formatted;
+    }
+
+    /**
+     * Formats a message in the background so {@link #getFormattedMessage} finds it cached
+     * when its row is bound.
+     */
+    static void prefetchFormattedMessage(final Context context, long key, final String body,
+            final String subject, final Pattern highlight, final String contentType,
+            final boolean enableEmojis) {
+        FormattedTextCache.getInstance().prefetch(key, hashMessage(body, subject, contentType),
+                getFormatStyle(highlight, enableEmojis), new FormattedTextCache.Formatter() {
+            @Override
+            public CharSequence format() {
+                return formatMessage(context, body, subject, highlight, contentType,
+                        enableEmojis);
+            }
+        });
+    }
+
+    private static int hashMessage(String body, String subject, String contentType) {
+        int hash = body == null ? 0 : body.hashCode();
+        hash = hash * 31 + (subject == null ? 0 : subject.hashCode());
+        return hash * 31 + (contentType == null ? 0 : contentType.hashCode());
+    }
 
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(mContext);
-        boolean enableEmojis = prefs.getBoolean(MessagingPreferenceActivity.ENABLE_EMOJIS, false);
+    private static String getFormatStyle(Pattern highlight, boolean enableEmojis) {
+        return "message:" + enableEmojis + ":" + (highlight == null ? "" : highlight.pattern());
+    }
+
+    private static CharSequence formatMessage(Context context, String body,
+                                              String subject, Pattern highlight,
+                                              String contentType, boolean enableEmojis) {
+        SpannableStringBuilder buf = new SpannableStringBuilder();
 
         boolean hasSubject = !TextUtils.isEmpty(subject);
         SmileyParser parser = SmileyParser.getInstance();
@@ -552,7 +648,7 @@ public class MessageListItem extends LinearLayout implements
             // Can't use the normal getString() with extra arguments for string replacement
             // because it doesn't preserve the SpannableText returned by addSmileySpans.
             // We have to manually replace the %s with our text.
-            buf.append(TextUtils.replace(mContext.getResources().getString(R.string.inline_subject),
+            buf.append(TextUtils.replace(context.getResources().getString(R.string.inline_subject),
                     new String[] { "%s" }, new CharSequence[] { smilizedSubject }));
         }
 
@@ -574,6 +670,9 @@ public class MessageListItem extends LinearLayout implements
             }
         }
 
+        // The body view used to do this itself (android:autoLink), on every bind.
+        Linkify.addLinks(buf, Linkify.ALL);
+
         if (highlight != null) {
             Matcher m = highlight.matcher(buf.toString());
             while (m.find()) {
@@ -27,6 +27,7 @@ import com.android.mms.model.SlideshowModel;
 import com.android.mms.model.VideoModel;
 import com.android.mms.util.ItemLoadedCallback;
 import com.android.mms.util.ItemLoadedFuture;
+import com.android.mms.util.ThumbnailManager;
 import com.android.mms.util.ThumbnailManager.ImageLoaded;
 
 public class MmsThumbnailPresenter extends Presenter {
@@ -34,10 +35,22 @@ public class MmsThumbnailPresenter extends Presenter {
     private ItemLoadedCallback mOnLoadedCallback;
     private ItemLoadedFuture mItemLoadedFuture;
 
+    // Message list rows only need a thumbnail as big as they show it; views that show the
+    // picture larger, like the attachment editor, ask for the full one.
+    private int mThumbnailType = ThumbnailManager.TYPE_MICROTHUMBNAIL;
+
     public MmsThumbnailPresenter(Context context, ViewInterface view, Model model) {
         super(context, view, model);
     }
 
+    /**
+     * @param type {@link ThumbnailManager#TYPE_THUMBNAIL} or
+     *        {@link ThumbnailManager#TYPE_MICROTHUMBNAIL}
+     */
+    public void setThumbnailType(int type) {
+        mThumbnailType = type;
+    }
+
     @Override
     public void present(ItemLoadedCallback callback) {
         mOnLoadedCallback = callback;
@@ -87,11 +100,11 @@ public class MmsThumbnailPresenter extends Presenter {
     };
 
     private void presentVideoThumbnail(SlideViewInterface view, VideoModel video) {
-        mItemLoadedFuture = video.loadThumbnailBitmap(mImageLoadedCallback);
+        mItemLoadedFuture = video.loadThumbnailBitmap(mImageLoadedCallback, mThumbnailType);
     }
 
     private void presentImageThumbnail(SlideViewInterface view, ImageModel image) {
-        mItemLoadedFuture = image.loadThumbnailBitmap(mImageLoadedCallback);
+        mItemLoadedFuture = image.loadThumbnailBitmap(mImageLoadedCallback, mThumbnailType);
     }
 
     protected void presentAudioThumbnail(SlideViewInterface view, AudioModel audio) {
@@ -20,8 +20,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -30,6 +29,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -44,13 +44,18 @@ import android.util.Log;
  * request lots of images around the same time, and AsyncTask may reject tasks
  * in that case and has no way of bounding the number of threads used by those
  * tasks.
+ * <p>
+ * Queued tasks run newest first, so after a fling the rows that are on screen now load
+ * before the ones that were scrolled past. A queued task is dropped when the last
+ * callback waiting for it is cancelled.
  *
  * Based on BooksImageManager by Virgil King.
  */
 abstract class BackgroundLoaderManager {
     private static final String TAG = "BackgroundLoaderManager";
 
-    private static final int MAX_THREADS = 2;
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 4;
 
     /**
      * URIs for which tasks are currently enqueued. Don't enqueue new tasks for
@@ -60,21 +65,46 @@ abstract class BackgroundLoaderManager {
 
     protected final HashMap<Uri, Set<ItemLoadedCallback>> mCallbacks;
 
-    protected final Executor mExecutor;
+    private final ThreadPoolExecutor mExecutor;
 
     protected final Handler mCallbackHandler;
 
+    // Tasks that haven't started running yet, by uri. Guarded by itself, since the
+    // tasks take themselves out when a worker thread starts them.
+    private final HashMap<Uri, QueuedTask> mQueuedTasks = new HashMap<Uri, QueuedTask>();
+
+    // Statistics, guarded by mQueuedTasks.
+    private int mSubmittedCount;
+    private int mStartedCount;
+    private int mCancelledCount;
+    private long mTotalWaitTime;
+    private long mMaxWaitTime;
+
     BackgroundLoaderManager(Context context) {
         mPendingTaskUris = new HashSet<Uri>();
         mCallbacks = new HashMap<Uri, Set<ItemLoadedCallback>>();
-        final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
-        final int poolSize = MAX_THREADS;
+        final int poolSize = Math.max(MIN_THREADS,
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
         mExecutor = new ThreadPoolExecutor(
-                poolSize, poolSize, 5, TimeUnit.SECONDS, queue,
+                poolSize, poolSize, 5, TimeUnit.SECONDS, new LifoBlockingDeque(),
                 new BackgroundLoaderThreadFactory(getTag()));
         mCallbackHandler = new Handler();
     }
 
+    /**
+     * Queue task to load the item for uri. The caller must have added uri to
+     * {@link #mPendingTaskUris}; it's removed again if the task is cancelled before it
+     * runs.
+     */
+    protected void submitTask(Uri uri, Runnable task) {
+        QueuedTask queuedTask = new QueuedTask(uri, task);
+        synchronized (mQueuedTasks) {
+            mQueuedTasks.put(uri, queuedTask);
+            mSubmittedCount++;
+        }
+        mExecutor.execute(queuedTask);
+    }
+
     /**
      * Release memory if possible.
      */
@@ -127,9 +157,87 @@ abstract class BackgroundLoaderManager {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "Cancelling image callback " + callback);
         }
+        ArrayList<Uri> unwanted = null;
         for (final Uri uri : mCallbacks.keySet()) {
             final Set<ItemLoadedCallback> callbacks = mCallbacks.get(uri);
-            callbacks.remove(callback);
+            if (callbacks.remove(callback) && callbacks.isEmpty()) {
+                if (unwanted == null) {
+                    unwanted = new ArrayList<Uri>();
+                }
+                unwanted.add(uri);
+            }
+        }
+        if (unwanted != null) {
+            for (Uri uri : unwanted) {
+                cancelTask(uri);
+            }
+        }
+    }
+
+    // Nobody is waiting for the item any more. If its task hasn't started yet, drop it.
+    private void cancelTask(Uri uri) {
+        QueuedTask task;
+        synchronized (mQueuedTasks) {
+            task = mQueuedTasks.remove(uri);
+            if (task == null) {
+                return;     // already running; let it finish and fill the cache
+            }
+            task.mCancelled = true;
+            mCancelledCount++;
+        }
+        mExecutor.remove(task);
+        mCallbacks.remove(uri);
+        mPendingTaskUris.remove(uri);
+    }
+
+    public void dump() {
+        synchronized (mQueuedTasks) {
+            Log.d(TAG, getTag() + ": threads=" + mExecutor.getMaximumPoolSize() +
+                    " queued=" + mExecutor.getQueue().size() +
+                    " submitted=" + mSubmittedCount + " started=" + mStartedCount +
+                    " cancelled=" + mCancelledCount +
+                    " avgWait=" + (mStartedCount > 0 ? mTotalWaitTime / mStartedCount : 0) +
+                    "ms maxWait=" + mMaxWaitTime + "ms");
+        }
+    }
+
+    private final class QueuedTask implements Runnable {
+        private final Uri mUri;
+        private final Runnable mTask;
+        private final long mQueuedTime = SystemClock.elapsedRealtime();
+        private boolean mCancelled;     // guarded by mQueuedTasks
+
+        QueuedTask(Uri uri, Runnable task) {
+            mUri = uri;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mQueuedTasks) {
+                // A cancelled task may already have been taken off the queue by a worker.
+                if (mCancelled) {
+                    return;
+                }
+                if (mQueuedTasks.get(mUri) == this) {
+                    mQueuedTasks.remove(mUri);
+                }
+                long wait = SystemClock.elapsedRealtime() - mQueuedTime;
+                mStartedCount++;
+                mTotalWaitTime += wait;
+                mMaxWaitTime = Math.max(mMaxWaitTime, wait);
+            }
+            mTask.run();
+        }
+    }
+
+    /**
+     * A work queue that hands out the most recently added task first.
+     */
+    private static class LifoBlockingDeque extends LinkedBlockingDeque<Runnable> {
+        @Override
+        public boolean offer(Runnable r) {
+            return offerFirst(r);
         }
     }
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Mutable ARGB_8888 bitmaps that are no longer used, bucketed by size, so the thumbnail
+ * loaders can decode into them (with {@link android.graphics.BitmapFactory.Options#inBitmap})
+ * or draw scaled and rotated copies into them instead of allocating new ones.
+ * <p>
+ * Only bitmaps nobody else can still reference may be put in the pool: a bitmap handed to
+ * a view could be drawn again after it has been reused. The pool is bounded by the number
+ * of bytes it holds; the bitmaps that have been in it longest are dropped first.
+ * <p>
+ * This class is safe to use from several threads.
+ */
+class BitmapPool {
+    private static final String TAG = "Mms/BitmapPool";
+
+    private final int mMaxBytes;
+
+    // (width << 32 | height) -> bitmaps of that size
+    private final LongHashMap<ArrayList<Bitmap>> mBuckets = new LongHashMap<ArrayList<Bitmap>>();
+
+    // Every pooled bitmap, oldest first.
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    private int mBytes;
+    private int mHits;
+    private int mMisses;
+    private int mDropped;
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    private static long sizeKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Returns a pooled bitmap of exactly width x height, taking it out of the pool, or
+     * null if there is none. Its contents are undefined.
+     */
+    synchronized Bitmap get(int width, int height) {
+        ArrayList<Bitmap> bucket = mBuckets.get(sizeKey(width, height));
+        if (bucket == null) {
+            mMisses++;
+            return null;
+        }
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(sizeKey(width, height));
+        }
+        mOrder.remove(bitmap);
+        mBytes -= sizeOf(bitmap);
+        mHits++;
+        return bitmap;
+    }
+
+    /**
+     * Returns a cleared width x height ARGB_8888 bitmap, from the pool if there is one
+     * of that size.
+     */
+    Bitmap getCleared(int width, int height) {
+        Bitmap bitmap = get(width, height);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Give bitmap to the pool. The caller must not use it afterwards. Bitmaps that can't
+     * be reused are ignored.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        int size = sizeOf(bitmap);
+        if (size > mMaxBytes) {
+            return;
+        }
+        long key = sizeKey(bitmap.getWidth(), bitmap.getHeight());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(2);
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mBytes += size;
+
+        while (mBytes > mMaxBytes) {
+            Bitmap eldest = mOrder.removeFirst();
+            long eldestKey = sizeKey(eldest.getWidth(), eldest.getHeight());
+            ArrayList<Bitmap> eldestBucket = mBuckets.get(eldestKey);
+            eldestBucket.remove(eldest);
+            if (eldestBucket.isEmpty()) {
+                mBuckets.remove(eldestKey);
+            }
+            mBytes -= sizeOf(eldest);
+            mDropped++;
+        }
+    }
+
+    synchronized void clear() {
+        mBuckets.clear();
+        mOrder.clear();
+        mBytes = 0;
+    }
+
+    synchronized void dump() {
+        Log.d(TAG, "BitmapPool: " + mOrder.size() + " bitmaps, " + mBytes + "/" + mMaxBytes +
+                " bytes, hits=" + mHits + " misses=" + mMisses + " dropped=" + mDropped);
+    }
+}
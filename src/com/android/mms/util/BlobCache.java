@@ -51,8 +51,9 @@
 // [16] Length of this blob (not including header)
 // [20] Blob
 //
-// Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// Below are the interface for BlobCache. Lookups can run concurrently on
+// multiple threads: they only read the memory mapped index and read blobs with
+// positional reads, so they only wait for inserts, which are exclusive.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
@@ -69,9 +70,11 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
 import android.util.Log;
@@ -123,6 +126,11 @@ public class BlobCache implements Closeable {
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
 
+    // Held for reading by lookups and for writing by anything that changes the
+    // index or the data files. mBlobHeader, mAdler32, mSlotOffset and
+    // mFileOffset are only used with the write lock held.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
     // The ".0" file and the ".1" file each stores data for a region. Each of
@@ -173,8 +181,13 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        mLock.writeLock().lock();
+        try {
+            syncAll();
+            closeAll();
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     private void closeAll() {
@@ -363,20 +376,25 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
-            flipRegion();
-        }
+        mLock.writeLock().lock();
+        try {
+            if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
+                    || mActiveEntries * 2 >= mMaxEntries) {
+                flipRegion();
+            }
 
-        if (!lookupInternal(key, mActiveHashStart)) {
-            // If we don't have an existing entry with the same key, increase
-            // the entry count.
-            mActiveEntries++;
-            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-        }
+            if (!lookupInternal(key, mActiveHashStart)) {
+                // If we don't have an existing entry with the same key, increase
+                // the entry count.
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            }
 
-        insertInternal(key, data, data.length);
-        updateIndexHeader();
+            insertInternal(key, data, data.length);
+            updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     // Appends the data to the active file. It also updates the hash entry.
@@ -407,12 +425,11 @@ public class BlobCache implements Closeable {
 
     // This method is for one-off lookup. For repeated lookup, use the version
     // accepting LookupRequest to avoid repeated memory allocation.
-    private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -429,42 +446,49 @@ public class BlobCache implements Closeable {
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
     public boolean lookup(LookupRequest req) throws IOException {
-        // Look up in the active region first.
-        if (lookupInternal(req.key, mActiveHashStart)) {
-            if (getBlob(mActiveDataFile, mFileOffset, req)) {
+        mLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            int offset = findBlob(req.key, mActiveHashStart);
+            if (offset != 0 && getBlob(mActiveDataFile, offset, req)) {
                 return true;
             }
+
+            // Look up in the inactive region.
+            offset = findBlob(req.key, mInactiveHashStart);
+            if (offset == 0 || !getBlob(mInactiveDataFile, offset, req)) {
+                return false;
+            }
+        } finally {
+            mLock.readLock().unlock();
         }
 
         // We want to copy the data from the inactive file to the active file
-        // if it's available. So we keep the offset of the hash entry so we can
-        // avoid looking it up again.
-        int insertOffset = mSlotOffset;
-
-        // Look up in the inactive region.
-        if (lookupInternal(req.key, mInactiveHashStart)) {
-            if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-                // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
-                    || mActiveEntries * 2 >= mMaxEntries) {
-                    return true;
-                }
-                // Otherwise copy it over.
-                mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
-                    mActiveEntries++;
-                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-                    updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
-                }
+        // so it survives the next flip. That needs the write lock; if somebody
+        // else is using the cache, don't wait for it, just return the blob.
+        if (!mLock.writeLock().tryLock()) {
+            return true;
+        }
+        try {
+            // If we don't have enough space to insert this blob into
+            // the active file, just return it.
+            if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
+                || mActiveEntries * 2 >= mMaxEntries) {
                 return true;
             }
+            // Another lookup may have copied it over already.
+            if (!lookupInternal(req.key, mActiveHashStart)) {
+                insertInternal(req.key, req.buffer, req.length);
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                updateIndexHeader();
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mLock.writeLock().unlock();
         }
-
-        return false;
+        return true;
     }
 
 
@@ -474,13 +498,15 @@ public class BlobCache implements Closeable {
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
+    //
+    // This uses positional reads and its own buffers, so it can run on several
+    // threads at once.
     private boolean getBlob(RandomAccessFile file, int offset,
             LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
-        long oldPosition = file.getFilePointer();
+        byte[] header = new byte[BLOB_HEADER_SIZE];
         try {
-            file.seek(offset);
-            if (file.read(header) != BLOB_HEADER_SIZE) {
+            FileChannel channel = file.getChannel();
+            if (!readFully(channel, header, BLOB_HEADER_SIZE, offset)) {
                 Log.w(TAG, "cannot read blob header");
                 return false;
             }
@@ -507,11 +533,13 @@ public class BlobCache implements Closeable {
             byte[] blob = req.buffer;
             req.length = length;
 
-            if (file.read(blob, 0, length) != length) {
+            if (!readFully(channel, blob, length, offset + BLOB_HEADER_SIZE)) {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            Adler32 adler32 = new Adler32();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -519,11 +547,46 @@ public class BlobCache implements Closeable {
         } catch (Throwable t)  {
             Log.e(TAG, "getBlob failed.", t);
             return false;
-        } finally {
-            file.seek(oldPosition);
         }
     }
 
+    // Reads length bytes at position into buf. Returns false at end of file.
+    private static boolean readFully(FileChannel channel, byte[] buf, int length,
+            long position) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, length);
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + dst.position());
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Looks up a key in the specified hash region without changing anything, so
+    // it's safe with only the read lock held. Returns the file offset of the
+    // blob, or 0 if the key isn't there.
+    private int findBlob(long key, int hashStart) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        for (int i = 0; i < mMaxEntries; i++) {
+            int offset = hashStart + slot * 12;
+            long candidateKey = mIndexBuffer.getLong(offset);
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset == 0) {
+                return 0;
+            } else if (candidateKey == key) {
+                return candidateOffset;
+            }
+            if (++slot >= mMaxEntries) {
+                slot = 0;
+            }
+        }
+        // The table is full, which shouldn't happen; the next insert will
+        // notice and fix it.
+        return 0;
+    }
+
     // Tries to look up a key in the specified hash region.
     // Returns true if the lookup is successful.
     // The slot offset in the index file is saved in mSlotOffset. If the lookup
@@ -561,6 +624,8 @@ public class BlobCache implements Closeable {
     }
 
     public void syncIndex() {
+        // This is also called by flipRegion() with the write lock held; it
+        // doesn't need the lock itself.
         try {
             mIndexBuffer.force();
         } catch (Throwable t) {
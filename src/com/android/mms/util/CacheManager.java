@@ -30,6 +30,8 @@ public class CacheManager {
     private static final String KEY_CACHE_UP_TO_DATE = "cache-up-to-date";
     private static HashMap<String, BlobCache> sCacheMap =
             new HashMap<String, BlobCache>();
+    private static HashMap<String, ShardedBlobCache> sShardedCacheMap =
+            new HashMap<String, ShardedBlobCache>();
     private static boolean sOldCheckDone = false;
 
     private static final boolean PUT_CACHE_ON_SDCARD = false;
@@ -62,6 +64,34 @@ public class CacheManager {
         }
     }
 
+    // Like getCache(), but returns a cache split into the given number of
+    // shards. The same filename must always be used with the same number of
+    // shards.
+    public static ShardedBlobCache getShardedCache(Context context, String filename,
+            int shards, int maxEntries, int maxBytes, int version) {
+        synchronized (sCacheMap) {
+            if (!sOldCheckDone) {
+                removeOldFilesIfNecessary(context);
+                sOldCheckDone = true;
+            }
+            ShardedBlobCache cache = sShardedCacheMap.get(filename);
+            if (cache == null) {
+                File cacheDir = PUT_CACHE_ON_SDCARD ? context.getExternalCacheDir()
+                        : context.getCacheDir();
+                String path = cacheDir.getAbsolutePath() + "/" + filename;
+                Log.d(TAG, "Cache dir: " + path + " shards: " + shards);
+                try {
+                    cache = new ShardedBlobCache(path, shards, maxEntries, maxBytes, false,
+                            version);
+                    sShardedCacheMap.put(filename, cache);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot instantiate cache!", e);
+                }
+            }
+            return cache;
+        }
+    }
+
     // Removes the old files if the data is wiped.
     private static void removeOldFilesIfNecessary(Context context) {
         SharedPreferences pref = PreferenceManager
@@ -83,7 +113,30 @@ public class CacheManager {
                 : context.getCacheDir();
         String prefix = cacheDir.getAbsolutePath() + "/";
 
+        // The image cache used to be a single BlobCache; delete those files too.
         BlobCache.deleteFiles(prefix + ImageCacheService.IMAGE_CACHE_FILE);
-        sCacheMap.remove(ImageCacheService.IMAGE_CACHE_FILE);
+        ShardedBlobCache.deleteFiles(prefix + ImageCacheService.IMAGE_CACHE_FILE,
+                ImageCacheService.IMAGE_CACHE_SHARDS);
+        synchronized (sCacheMap) {
+            sCacheMap.remove(ImageCacheService.IMAGE_CACHE_FILE);
+            sShardedCacheMap.remove(ImageCacheService.IMAGE_CACHE_FILE);
+        }
+
+        // Pdu summaries hold message text, so they go too.
+        deleteCache(context, PduSummaryCache.SUMMARY_CACHE_FILE);
+    }
+
+    // Close the BlobCache getCache() opened for filename, if it did, and delete its files.
+    // The next getCache() for filename starts an empty one.
+    public static void deleteCache(Context context, String filename) {
+        File cacheDir = PUT_CACHE_ON_SDCARD ? context.getExternalCacheDir()
+                : context.getCacheDir();
+        synchronized (sCacheMap) {
+            BlobCache cache = sCacheMap.remove(filename);
+            if (cache != null) {
+                cache.close();
+            }
+            BlobCache.deleteFiles(cacheDir.getAbsolutePath() + "/" + filename);
+        }
     }
 }
@@ -24,8 +24,6 @@ import android.text.style.ImageSpan;
 import com.android.mms.R;
 
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A class for annotating a CharSequence with spans to convert textual Softbank
@@ -46,13 +44,19 @@ public class EmojiParser {
     }
 
     private final Context mContext;
-    private final Pattern mPattern;
-    private final HashMap<String, Integer> mSmileyToRes;
+    private final TokenMatcher mMatcher;
+    // The icon of each of mMatcher's tokens.
+    private final int[] mTokenToRes;
 
     private EmojiParser(Context context) {
         mContext = context;
-        mSmileyToRes = buildSmileyToRes();
-        mPattern = buildPattern();
+        HashMap<String, Integer> smileyToRes = buildSmileyToRes();
+        String[] tokens = buildTokens();
+        mMatcher = new TokenMatcher(tokens);
+        mTokenToRes = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            mTokenToRes[i] = smileyToRes.get(tokens[i]);
+        }
     }
 
     static class Emojis {
@@ -804,29 +808,16 @@ public class EmojiParser {
     }
 
     /**
-     * Builds the regular expression we use to find emojis in
-     * {@link #addEmojiSpans}.
+     * Returns the emojis for {@link #addEmojiSpans} to look for, in the order they take
+     * precedence: the Softbank and the Unicode version of each emoji in turn.
      */
-    private Pattern buildPattern() {
-        // Set the StringBuilder capacity with the assumption that one emoji is
-        // 5 char (1 surrogate pair, 1 separator, 1 utf-8 char and 1 separator)
-        StringBuilder patternString = new StringBuilder(mEmojiTexts.length * 5);
-
-        // Build a regex that looks like (\uDAAA\uDBBB|\uCCCC|...), but escaping
-        // the emojis
-        // properly so they will be interpreted literally by the regex matcher.
-        patternString.append('(');
+    static String[] buildTokens() {
+        String[] tokens = new String[mSoftbankEmojiTexts.length * 2];
         for (int i = 0; i < mSoftbankEmojiTexts.length; i++) {
-            patternString.append(Pattern.quote(mSoftbankEmojiTexts[i]));
-            patternString.append('|');
-            patternString.append(Pattern.quote(mEmojiTexts[i]));
-            patternString.append('|');
+            tokens[i * 2] = mSoftbankEmojiTexts[i];
+            tokens[i * 2 + 1] = mEmojiTexts[i];
         }
-
-        // Replace the extra '|' with a ')'
-        patternString.replace(patternString.length() - 1, patternString.length(), ")");
-
-        return Pattern.compile(patternString.toString());
+        return tokens;
     }
 
     /**
@@ -843,11 +834,18 @@ public class EmojiParser {
         // Scan for both Softbank private Unicode emoji code points (every
         // Android SMS app + iOS < 5) and Unicode 6.1 emoji BMP and non-BMP
         // codes
-        Matcher matcher = mPattern.matcher(text);
-        while (matcher.find()) {
-            int resId = mSmileyToRes.get(matcher.group());
-            builder.setSpan(new ImageSpan(mContext, resId), matcher.start(), matcher.end(),
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int token = mMatcher.match(text, start);
+            if (token < 0) {
+                start++;
+                continue;
+            }
+            int end = start + mMatcher.getToken(token).length();
+            builder.setSpan(new ImageSpan(mContext, mTokenToRes[token]), start, end,
                     Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            start = end;
         }
 
         return builder;
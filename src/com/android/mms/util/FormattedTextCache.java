@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.HashSet;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.util.Log;
+
+/**
+ * The formatted text of message bodies and conversation snippets (with their smiley,
+ * emoji, link and highlight spans), shared by all the lists that show them, so a row
+ * that is bound again doesn't parse its text again. An entry is found by the id of the
+ * message or thread, a hash of the text it was made from, and a string describing how it
+ * was formatted (whether emojis were on, the search highlight and so on), so a stale
+ * entry is never returned for an edited message or a changed setting.
+ * <p>
+ * The cache is bounded by the bytes its text and spans are estimated to take.
+ * {@link #prefetch} formats text on a background thread ahead of the rows that will show it.
+ * <p>
+ * This class is safe to use from several threads.
+ */
+public class FormattedTextCache {
+    private static final String TAG = "Mms/FormattedTextCache";
+
+    private static final int MAX_BYTES = 512 * 1024;
+
+    // Rough size of a span and its entry in the spanned text's tables.
+    private static final int SPAN_WEIGHT = 48;
+
+    private static final WeightedLruCache.Weigher<CharSequence> WEIGHER =
+            new WeightedLruCache.Weigher<CharSequence>() {
+        @Override
+        public int weightOf(CharSequence value) {
+            int weight = 64 + value.length() * 2;
+            if (value instanceof Spanned) {
+                Spanned spanned = (Spanned) value;
+                weight += spanned.getSpans(0, spanned.length(), Object.class).length *
+                        SPAN_WEIGHT;
+            }
+            return weight;
+        }
+    };
+
+    private static FormattedTextCache sInstance;
+
+    /**
+     * Makes the text for a cache entry. Called on the cache's background thread.
+     */
+    public interface Formatter {
+        CharSequence format();
+    }
+
+    private final WeightedLruCache<Key, CharSequence> mCache =
+            new WeightedLruCache<Key, CharSequence>("FormattedTextCache", MAX_BYTES, WEIGHER);
+
+    // Keys that have been handed to the background thread and aren't formatted yet.
+    private final HashSet<Key> mPending = new HashSet<Key>();  // guarded by mPending
+
+    private final Handler mHandler;
+
+    private int mPrefetched;    // guarded by mPending
+
+    private FormattedTextCache() {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static void init() {
+        sInstance = new FormattedTextCache();
+    }
+
+    public static FormattedTextCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the text cached for the given id, text hash and style, or null.
+     */
+    public CharSequence get(long id, int hash, String style) {
+        return mCache.get(new Key(id, hash, style));
+    }
+
+    /**
+     * Caches text for the given id, text hash and style. The text must not be changed
+     * afterwards; it's stored as an immutable copy if it isn't one already.
+     *
+     * @return the text as stored, which the caller should use from now on
+     */
+    public CharSequence put(long id, int hash, String style, CharSequence text) {
+        CharSequence stored = text instanceof Spanned ? new SpannedString(text) : text;
+        mCache.put(new Key(id, hash, style), stored);
+        return stored;
+    }
+
+    /**
+     * Formats text for the given id, text hash and style on a background thread and caches
+     * it, unless it's cached already. The most recently requested text is formatted first.
+     */
+    public void prefetch(long id, int hash, String style, final Formatter formatter) {
+        final Key key = new Key(id, hash, style);
+        if (mCache.get(key) != null) {
+            return;
+        }
+        synchronized (mPending) {
+            if (!mPending.add(key)) {
+                return;
+            }
+        }
+        mHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mCache.get(key) == null) {
+                        put(key.mId, key.mHash, key.mStyle, formatter.format());
+                        synchronized (mPending) {
+                            mPrefetched++;
+                        }
+                    }
+                } finally {
+                    synchronized (mPending) {
+                        mPending.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    public void clear() {
+        mCache.clear();
+    }
+
+    public void dump() {
+        mCache.dump();
+        synchronized (mPending) {
+            Log.d(TAG, "pending=" + mPending.size() + " prefetched=" + mPrefetched);
+        }
+    }
+
+    private static final class Key {
+        final long mId;
+        final int mHash;
+        final String mStyle;
+
+        Key(long id, int hash, String style) {
+            mId = id;
+            mHash = hash;
+            mStyle = style;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mId == other.mId && mHash == other.mHash && mStyle.equals(other.mStyle);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((int) (mId ^ (mId >>> 32)) * 31 + mHash) * 31 + mStyle.hashCode();
+        }
+    }
+}
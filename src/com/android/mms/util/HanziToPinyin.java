@@ -19,10 +19,11 @@ package com.android.mms.util;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * An object to convert Chinese character to its corresponding pinyin string.
@@ -32,6 +33,10 @@ import java.util.Locale;
  * runtime resources with tolerable sacrifice of accuracy. This implementation
  * highly depends on zh_CN ICU collation data and must be always synchronized
  * with ICU. Currently this file is aligned to zh.txt in ICU 4.6
+ * <p>
+ * The collator is used to fill in a table giving the pinyin of every char from
+ * {@link #FIRST_UNIHAN} up, one block of 256 chars at a time the first time a char in the
+ * block is looked up; after that a lookup is two array reads.
  */
 public class HanziToPinyin {
     private static final String TAG = "HanziToPinyin";
@@ -1065,9 +1070,30 @@ public class HanziToPinyin {
     private static final char FIRST_UNIHAN = '\u3400';
     private static final Collator COLLATOR = Collator.getInstance(Locale.CHINA);
 
+    // The pinyin table is split into blocks of 256 chars; FIRST_UNIHAN starts a block.
+    private static final int BLOCK_SHIFT = 8;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_COUNT = (Character.MAX_VALUE + 1 - FIRST_UNIHAN) >> BLOCK_SHIFT;
+
     private static HanziToPinyin sInstance;
     private final boolean mHasChinaCollator;
 
+    // For each char from FIRST_UNIHAN to U+FFFF, one more than its offset in UNIHANS
+    // and PINYINS, or 0 if it has no pinyin; indexed by block, then by the char's low byte.
+    // A block is filled in the first time one of its chars is looked up, so a few names
+    // don't pay for the whole table. Blocks without any pinyin are all EMPTY_BLOCK. null
+    // without a China collator.
+    private final AtomicReferenceArray<char[]> mPinyinTable;
+    // The collation keys of UNIHANS, FIRST_PINYIN_UNIHAN and LAST_PINYIN_UNIHAN, for
+    // filling in blocks.
+    private final CollationKey[] mUnihanKeys;
+    private final CollationKey mFirstKey;
+    private final CollationKey mLastKey;
+    // The strings in PINYINS.
+    private final String[] mPinyins;
+
+    private static final char[] EMPTY_BLOCK = new char[BLOCK_SIZE];
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -1104,6 +1130,100 @@ public class HanziToPinyin {
 
     protected HanziToPinyin(boolean hasChinaCollator) {
         mHasChinaCollator = hasChinaCollator;
+        if (hasChinaCollator) {
+            mPinyinTable = new AtomicReferenceArray<char[]>(BLOCK_COUNT);
+            mUnihanKeys = new CollationKey[UNIHANS.length];
+            for (int i = 0; i < UNIHANS.length; i++) {
+                mUnihanKeys[i] = COLLATOR.getCollationKey(Character.toString(UNIHANS[i]));
+            }
+            mFirstKey = COLLATOR.getCollationKey(FIRST_PINYIN_UNIHAN);
+            mLastKey = COLLATOR.getCollationKey(LAST_PINYIN_UNIHAN);
+            mPinyins = new String[PINYINS.length];
+            for (int i = 0; i < PINYINS.length; i++) {
+                StringBuilder pinyin = new StringBuilder();
+                for (int j = 0; j < PINYINS[i].length && PINYINS[i][j] != 0; j++) {
+                    pinyin.append((char) PINYINS[i][j]);
+                }
+                mPinyins[i] = pinyin.toString();
+            }
+        } else {
+            mPinyinTable = null;
+            mUnihanKeys = null;
+            mFirstKey = null;
+            mLastKey = null;
+            mPinyins = null;
+        }
+    }
+
+    /**
+     * Returns block b of the pinyin table, filling it in first if it hasn't been. Each
+     * char's pinyin is looked up the way it used to be: a binary search of UNIHANS in
+     * collation order. Comparing collation keys gives the same order as the collator, and
+     * each char's key is made only once. Two threads may fill the same block at once;
+     * they fill it with the same values.
+     */
+    private char[] getBlock(int b) {
+        char[] block = mPinyinTable.get(b);
+        if (block != null) {
+            return block;
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            final char c = (char) (FIRST_UNIHAN + (b << BLOCK_SHIFT) + i);
+            final int offset = findPinyin(COLLATOR.getCollationKey(Character.toString(c)),
+                    mFirstKey, mLastKey, mUnihanKeys);
+            if (offset >= 0) {
+                if (block == null) {
+                    block = new char[BLOCK_SIZE];
+                }
+                block[i] = (char) (offset + 1);
+            }
+        }
+        if (block == null) {
+            block = EMPTY_BLOCK;
+        }
+        mPinyinTable.set(b, block);
+        return block;
+    }
+
+    /**
+     * Returns the offset in UNIHANS of the pinyin of the char whose collation key is
+     * given, or -1 if it has none.
+     */
+    private static int findPinyin(CollationKey letter, CollationKey first, CollationKey last,
+            CollationKey[] unihans) {
+        int cmp = letter.compareTo(first);
+        if (cmp < 0) {
+            return -1;
+        } else if (cmp == 0) {
+            return 0;
+        }
+        cmp = letter.compareTo(last);
+        if (cmp > 0) {
+            return -1;
+        } else if (cmp == 0) {
+            return UNIHANS.length - 1;
+        }
+
+        int offset = -1;
+        int begin = 0;
+        int end = UNIHANS.length - 1;
+        while (begin <= end) {
+            offset = (begin + end) / 2;
+            cmp = letter.compareTo(unihans[offset]);
+            if (cmp == 0) {
+                break;
+            } else if (cmp > 0) {
+                begin = offset + 1;
+            } else {
+                end = offset - 1;
+            }
+        }
+        if (cmp < 0) {
+            offset--;
+        }
+        // A char between FIRST_PINYIN_UNIHAN and UNIHANS[0] used to run off the start of
+        // PINYINS; give it the first pinyin instead.
+        return Math.max(offset, 0);
     }
 
     public static HanziToPinyin getInstance() {
@@ -1157,8 +1277,6 @@ public class HanziToPinyin {
         Token token = new Token();
         final String letter = Character.toString(character);
         token.source = letter;
-        int offset = -1;
-        int cmp;
         if (character < 256) {
             token.type = Token.LATIN;
             token.target = letter;
@@ -1167,53 +1285,17 @@ public class HanziToPinyin {
             token.type = Token.UNKNOWN;
             token.target = letter;
             return token;
-        } else {
-            cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
-            if (cmp < 0) {
-                token.type = Token.UNKNOWN;
-                token.target = letter;
-                return token;
-            } else if (cmp == 0) {
-                token.type = Token.PINYIN;
-                offset = 0;
-            } else {
-                cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
-                if (cmp > 0) {
-                    token.type = Token.UNKNOWN;
-                    token.target = letter;
-                    return token;
-                } else if (cmp == 0) {
-                    token.type = Token.PINYIN;
-                    offset = UNIHANS.length - 1;
-                }
-            }
         }
 
-        token.type = Token.PINYIN;
+        final int offset = getBlock((character - FIRST_UNIHAN) >> BLOCK_SHIFT)
+                [character & (BLOCK_SIZE - 1)] - 1;
         if (offset < 0) {
-            int begin = 0;
-            int end = UNIHANS.length - 1;
-            while (begin <= end) {
-                offset = (begin + end) / 2;
-                final String unihan = Character.toString(UNIHANS[offset]);
-                cmp = COLLATOR.compare(letter, unihan);
-                if (cmp == 0) {
-                    break;
-                } else if (cmp > 0) {
-                    begin = offset + 1;
-                } else {
-                    end = offset - 1;
-                }
-            }
-        }
-        if (cmp < 0) {
-            offset--;
-        }
-        StringBuilder pinyin = new StringBuilder();
-        for (int j = 0; j < PINYINS[offset].length && PINYINS[offset][j] != 0; j++) {
-            pinyin.append((char) PINYINS[offset][j]);
+            token.type = Token.UNKNOWN;
+            token.target = letter;
+            return token;
         }
-        token.target = pinyin.toString();
+        token.type = Token.PINYIN;
+        token.target = mPinyins[offset];
         return token;
     }
 
@@ -1291,7 +1373,7 @@ public class HanziToPinyin {
      */
 
     public String getFullPinYin(String source) {
-        if (!Arrays.asList(Collator.getAvailableLocales()).contains(Locale.CHINA)) {
+        if (!mHasChinaCollator) {
             return source;
         }
         ArrayList<Token> tokens = this.get(source);
@@ -1314,7 +1396,7 @@ public class HanziToPinyin {
      */
 
     public String getFirstPinYin(String source) {
-        if (!Arrays.asList(Collator.getAvailableLocales()).contains(Locale.CHINA)) {
+        if (!mHasChinaCollator) {
             return source;
         }
         ArrayList<Token> tokens = this.get(source);
@@ -18,6 +18,7 @@ package com.android.mms.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import android.content.Context;
 
@@ -28,44 +29,69 @@ public class ImageCacheService {
     public static final String IMAGE_CACHE_FILE = "imgcache";
     private static final int IMAGE_CACHE_MAX_ENTRIES = 500;
     private static final int IMAGE_CACHE_MAX_BYTES = 20 * 1024 * 1024;
-    private static final int IMAGE_CACHE_VERSION = 3;
+    private static final int IMAGE_CACHE_VERSION = 4;
 
-    private BlobCache mCache;
+    // The cache is split so that lookups and inserts from the thumbnail loader
+    // threads and the UI thread mostly don't wait on each other.
+    static final int IMAGE_CACHE_SHARDS = 4;
+
+    private ShardedBlobCache mCache;
 
     private static long[] sCrcTable = new long[256];
     private static final long POLY64REV = 0x95AC9329AC4BC9B5L;
     private static final long INITIALCRC = 0xFFFFFFFFFFFFFFFFL;
 
+    // Each value starts with a hash of its key, which together with the crc64 the cache
+    // is keyed by tells apart keys that share a crc, without storing the whole path.
+    private static final int KEY_CHECK_SIZE = 4;
+
+    // Lookups on each thread reuse the same buffer, so scrolling through thumbnails
+    // doesn't allocate an array for every one.
+    private static final ThreadLocal<BlobCache.LookupRequest> sLookupRequest =
+            new ThreadLocal<BlobCache.LookupRequest>() {
+                @Override
+                protected BlobCache.LookupRequest initialValue() {
+                    return new BlobCache.LookupRequest();
+                }
+            };
+
     private Context mContext;
 
     public ImageCacheService(Context context) {
-        mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
-                IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
+        mCache = CacheManager.getShardedCache(context, IMAGE_CACHE_FILE,
+                IMAGE_CACHE_SHARDS, IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
                 IMAGE_CACHE_VERSION);
         mContext = context;
     }
 
+    /**
+     * The image is the mLength bytes of mData starting at mOffset.
+     */
     public static class ImageData {
-        public ImageData(byte[] data, int offset) {
+        public ImageData(byte[] data, int offset, int length) {
             mData = data;
             mOffset = offset;
+            mLength = length;
         }
         public byte[] mData;
         public int mOffset;
+        public int mLength;
     }
 
+    /**
+     * Returns the cached image for path, or null. The data is in a buffer that is reused
+     * by the next lookup on the same thread, so decode it before looking up another.
+     */
     public ImageData getImageData(String path, int type) {
-        byte[] key = makeKey(path, type);
-        long cacheKey = crc64Long(key);
+        String key = makeKey(path, type);
+        if (mCache == null) return null;
+        BlobCache.LookupRequest req = sLookupRequest.get();
+        req.key = crc64Long(key);
         try {
-            byte[] value = null;
-            synchronized (mCache) {
-                value = mCache.lookup(cacheKey);
-            }
-            if (value == null) return null;
-            if (isSameKey(key, value)) {
-                int offset = key.length;
-                return new ImageData(value, offset);
+            if (!mCache.lookup(req)) return null;
+            if (req.length >= KEY_CHECK_SIZE &&
+                    BlobCache.readInt(req.buffer, 0) == key.hashCode()) {
+                return new ImageData(req.buffer, KEY_CHECK_SIZE, req.length - KEY_CHECK_SIZE);
             }
         } catch (IOException ex) {
             // ignore.
@@ -74,17 +100,17 @@ public class ImageCacheService {
     }
 
     public void putImageData(String path, int type, byte[] value) {
-        byte[] key = makeKey(path, type);
+        String key = makeKey(path, type);
         long cacheKey = crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
+        if (mCache == null) return;
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_CHECK_SIZE + value.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(key.hashCode());
         buffer.put(value);
-        synchronized (mCache) {
-            try {
-                mCache.insert(cacheKey, buffer.array());
-            } catch (IOException ex) {
-                // ignore.
-            }
+        try {
+            mCache.insert(cacheKey, buffer.array());
+        } catch (IOException ex) {
+            // ignore.
         }
     }
 
@@ -92,21 +118,8 @@ public class ImageCacheService {
         CacheManager.clear(mContext);
     }
 
-    private static byte[] makeKey(String path, int type) {
-        return getBytes(path + "+" + type);
-    }
-
-    private static boolean isSameKey(byte[] key, byte[] buffer) {
-        int n = key.length;
-        if (buffer.length < n) {
-            return false;
-        }
-        for (int i = 0; i < n; ++i) {
-            if (key[i] != buffer[i]) {
-                return false;
-            }
-        }
-        return true;
+    private static String makeKey(String path, int type) {
+        return path + "+" + type;
     }
 
     /**
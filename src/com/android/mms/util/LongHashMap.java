@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive longs to objects. Unlike {@link java.util.HashMap} it doesn't box
+ * its keys or allocate an entry per mapping, and unlike {@link android.util.LongSparseArray}
+ * lookups are constant time rather than a binary search. Thread ids and recipient ids are
+ * dense, small longs, so this is a good fit for caches keyed by them.
+ * <p>
+ * Uses open addressing with linear probing; removals shift the following entries back so no
+ * tombstones are left behind. Null values are not allowed. This class is not thread-safe.
+ */
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashMap(int initialCapacity) {
+        int capacity = MIN_CAPACITY;
+        // Keep the load factor at or below 1/2.
+        while (capacity < initialCapacity * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}, returning the previous value or null if there was
+     * no mapping for {@code key}.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        final int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        for (; mValues[i] != null; i = (i + 1) & mask) {
+            if (mKeys[i] == key) {
+                V previous = (V) mValues[i];
+                mValues[i] = value;
+                return previous;
+            }
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        if (++mSize * 2 > mKeys.length) {
+            resize(mKeys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping for {@code key}, returning its value or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        if (values[i] == null) {
+            return null;
+        }
+        V previous = (V) values[i];
+
+        // Shift back any entries in the same probe run that would no longer be reachable.
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            boolean movable = (hole <= j)
+                    ? (home <= hole || home > j)
+                    : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        mSize--;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * Returns the key at {@code index}, for iterating with {@link #capacity}. Only meaningful
+     * if {@link #valueAt} returns non-null for the same index.
+     */
+    public long keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * Returns the value at slot {@code index}, or null if the slot is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        return (V) mValues[index];
+    }
+
+    /**
+     * Returns the number of slots; iterate over {@code 0..capacity()-1} with
+     * {@link #keyAt} and {@link #valueAt}, skipping null values. The map must not be
+     * modified while iterating.
+     */
+    public int capacity() {
+        return mKeys.length;
+    }
+
+    private void resize(int newCapacity) {
+        final long[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        mKeys = new long[newCapacity];
+        mValues = new Object[newCapacity];
+        final int mask = newCapacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (mValues[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                mKeys[i] = oldKeys[j];
+                mValues[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // Spread the bits so sequential ids don't cluster into long probe runs.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -23,6 +23,7 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.android.mms.LogTag;
+import com.android.mms.model.SlideModel;
 import com.android.mms.model.SlideshowModel;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.GenericPdu;
@@ -46,7 +47,7 @@ import com.google.android.mms.util.PduCacheEntry;
  * PduLoaderManager is used to asynchronously load mms pdu's and then build a slideshow model
  * from that loaded pdu. Then it will call the passed in callback with the result. This class
  * uses the PduCache built into the mms framework. It also manages a local cache of slideshow
- * models. The slideshow cache uses SoftReferences to hang onto the slideshow.
+ * models. The slideshow cache is bounded by an estimate of the memory the slideshows use.
  *
  * Based on BooksImageManager by Virgil King.
  */
@@ -57,15 +58,55 @@ public class PduLoaderManager extends BackgroundLoaderManager {
     private static final boolean DEBUG_DISABLE_PDUS = false;
     private static final boolean DEBUG_LONG_WAIT = false;
 
+    private static final int MAX_SLIDESHOW_CACHE_WEIGHT = 256 * 1024;
+
+    // A slideshow model doesn't hold the media itself, only the slides and their text.
+    private static final int SLIDESHOW_WEIGHT = 1024;
+    private static final int SLIDE_WEIGHT = 512;
+
+    private static final WeightedLruCache.Weigher<SlideshowModel> SLIDESHOW_WEIGHER =
+            new WeightedLruCache.Weigher<SlideshowModel>() {
+        @Override
+        public int weightOf(SlideshowModel slideshow) {
+            int weight = SLIDESHOW_WEIGHT;
+            for (SlideModel slide : slideshow) {
+                weight += SLIDE_WEIGHT;
+                if (slide.hasText() && slide.getText().getText() != null) {
+                    weight += slide.getText().getText().length() * 2;
+                }
+            }
+            return weight;
+        }
+    };
+
+    private static final int MAX_SUMMARY_CACHE_WEIGHT = 128 * 1024;
+
+    private static final WeightedLruCache.Weigher<PduSummary> SUMMARY_WEIGHER =
+            new WeightedLruCache.Weigher<PduSummary>() {
+        @Override
+        public int weightOf(PduSummary summary) {
+            return summary.getWeight();
+        }
+    };
+
+    // Summary loads are tracked as pending tasks under the message uri with this query
+    // parameter, set to the version, added.
+    private static final String SUMMARY_KEY_PARAMETER = "summary";
+
     private static PduCache mPduCache;
     private final PduPersister mPduPersister;
-    private final SimpleCache<Uri, SlideshowModel> mSlideshowCache;
+    private final WeightedLruCache<Uri, SlideshowModel> mSlideshowCache;
+    private final WeightedLruCache<Uri, PduSummary> mSummaryCache;
+    private PduSummaryCache mSummaryDiskCache;
     private final Context mContext;
 
     public PduLoaderManager(final Context context) {
         super(context);
 
-        mSlideshowCache = new SimpleCache<Uri, SlideshowModel>(8, 16, 0.75f, true);
+        mSlideshowCache = new WeightedLruCache<Uri, SlideshowModel>("SlideshowCache",
+                MAX_SLIDESHOW_CACHE_WEIGHT, SLIDESHOW_WEIGHER);
+        mSummaryCache = new WeightedLruCache<Uri, PduSummary>("SummaryCache",
+                MAX_SUMMARY_CACHE_WEIGHT, SUMMARY_WEIGHER);
         mPduCache = PduCache.getInstance();
         mPduPersister = PduPersister.getPduPersister(context);
         mContext = context;
@@ -106,9 +147,51 @@ public class PduLoaderManager extends BackgroundLoaderManager {
 
         if (newTaskRequired) {
             mPendingTaskUris.add(uri);
-            Runnable task = new PduTask(uri, requestSlideshow);
-            mExecutor.execute(task);
+            Runnable task = new PduTask(uri, uri, requestSlideshow, null);
+            submitTask(uri, task);
         }
+        return newFuture(callback);
+    }
+
+    /**
+     * Load the {@link PduSummary} of a downloaded message, which is all a message list row
+     * needs. It comes from memory or disk if there is one for this version of the message;
+     * only if not are the pdu and slideshow loaded to make one, and passed to the callback
+     * with it. Otherwise the callback gets the slideshow only if it happens to be cached.
+     * <p>
+     * The summary is null if the message couldn't be loaded.
+     *
+     * @param version identifies the state of the message the summary is for. A summary
+     *        made from a different version isn't used.
+     */
+    public ItemLoadedFuture getPduSummary(Uri uri, String version,
+            final ItemLoadedCallback<PduLoaded> callback) {
+        if (uri == null || version == null) {
+            throw new NullPointerException();
+        }
+
+        PduSummary summary = DEBUG_DISABLE_CACHE ? null : mSummaryCache.get(uri);
+        if (summary != null && version.equals(summary.mVersion)) {
+            if (callback != null) {
+                PduLoaded pduLoaded = new PduLoaded(null, mSlideshowCache.get(uri), summary);
+                callback.onItemLoaded(pduLoaded, null);
+            }
+            return new NullItemLoadedFuture();
+        }
+
+        Uri key = uri.buildUpon().appendQueryParameter(SUMMARY_KEY_PARAMETER, version).build();
+        if (callback != null) {
+            addCallback(key, callback);
+        }
+        if (!mPendingTaskUris.contains(key)) {
+            mPendingTaskUris.add(key);
+            Runnable task = new PduTask(uri, key, true, version);
+            submitTask(key, task);
+        }
+        return newFuture(callback);
+    }
+
+    private ItemLoadedFuture newFuture(final ItemLoadedCallback<PduLoaded> callback) {
         return new ItemLoadedFuture() {
             private boolean mIsDone;
 
@@ -136,6 +219,7 @@ public class PduLoaderManager extends BackgroundLoaderManager {
             mPduCache.purgeAll();
         }
         mSlideshowCache.clear();
+        mSummaryCache.clear();
     }
 
     public void removePdu(Uri uri) {
@@ -147,23 +231,60 @@ public class PduLoaderManager extends BackgroundLoaderManager {
                 mPduCache.purge(uri);
             }
             mSlideshowCache.remove(uri);
+            mSummaryCache.remove(uri);
+        }
+    }
+
+    /**
+     * Delete every pdu summary on disk. A summary holds the text of its message, so this
+     * must be called when messages are deleted, so their text doesn't stay behind in the
+     * cache. The files are deleted on a background thread.
+     */
+    public void clearSummaryBackingStore() {
+        new Thread(new Runnable() {
+            public void run() {
+                CacheManager.deleteCache(mContext, PduSummaryCache.SUMMARY_CACHE_FILE);
+            }
+        }, "PduLoaderManager.clearSummaryBackingStore").start();
+    }
+
+    private synchronized PduSummaryCache getSummaryDiskCache() {
+        if (mSummaryDiskCache == null) {
+            mSummaryDiskCache = new PduSummaryCache(mContext);
         }
+        return mSummaryDiskCache;
     }
 
     public String getTag() {
         return TAG;
     }
 
+    @Override
+    public void dump() {
+        super.dump();
+        mSlideshowCache.dump();
+        mSummaryCache.dump();
+    }
+
     public class PduTask implements Runnable {
         private final Uri mUri;
+        private final Uri mKey;
         private final boolean mRequestSlideshow;
+        private final String mSummaryVersion;
 
-        public PduTask(Uri uri, boolean requestSlideshow) {
-            if (uri == null) {
+        /**
+         * @param key the uri the task is pending and its callbacks registered under
+         * @param summaryVersion if not null, find or make the summary for this version of
+         *        the message rather than load the pdu
+         */
+        public PduTask(Uri uri, Uri key, boolean requestSlideshow, String summaryVersion) {
+            if (uri == null || key == null) {
                 throw new NullPointerException();
             }
             mUri = uri;
+            mKey = key;
             mRequestSlideshow = requestSlideshow;
+            mSummaryVersion = summaryVersion;
         }
 
         /** {@inheritDoc} */
@@ -179,30 +300,43 @@ public class PduLoaderManager extends BackgroundLoaderManager {
             }
             GenericPdu pdu = null;
             SlideshowModel slideshow = null;
+            PduSummary summary = null;
             Throwable exception = null;
-            try {
-                pdu = mPduPersister.load(mUri);
-                if (pdu != null && mRequestSlideshow) {
-                    slideshow = SlideshowModel.createFromPduBody(mContext,
-                            ((MultimediaMessagePdu)pdu).getBody());
+            if (mSummaryVersion != null) {
+                summary = getSummaryDiskCache().get(mUri, mSummaryVersion);
+            }
+            if (summary == null) {
+                try {
+                    pdu = mPduPersister.load(mUri);
+                    if (pdu != null && mRequestSlideshow) {
+                        slideshow = SlideshowModel.createFromPduBody(mContext,
+                                ((MultimediaMessagePdu)pdu).getBody());
+                    }
+                } catch (final MmsException e) {
+                    Log.e(TAG, "MmsException loading uri: " + mUri, e);
+                    exception = e;
+                }
+                if (mSummaryVersion != null && pdu instanceof MultimediaMessagePdu) {
+                    summary = PduSummary.create(mSummaryVersion, (MultimediaMessagePdu) pdu,
+                            slideshow);
+                    getSummaryDiskCache().put(mUri, summary);
                 }
-            } catch (final MmsException e) {
-                Log.e(TAG, "MmsException loading uri: " + mUri, e);
-                exception = e;
             }
             final GenericPdu resultPdu = pdu;
             final SlideshowModel resultSlideshow = slideshow;
+            final PduSummary resultSummary = summary;
             final Throwable resultException = exception;
             mCallbackHandler.post(new Runnable() {
                 public void run() {
-                    final Set<ItemLoadedCallback> callbacks = mCallbacks.get(mUri);
+                    final Set<ItemLoadedCallback> callbacks = mCallbacks.get(mKey);
                     if (callbacks != null) {
                         // Make a copy so that the callback can unregister itself
                         for (final ItemLoadedCallback<PduLoaded> callback : asList(callbacks)) {
                             if (Log.isLoggable(TAG, Log.DEBUG)) {
                                 Log.d(TAG, "Invoking pdu callback " + callback);
                             }
-                            PduLoaded pduLoaded = new PduLoaded(resultPdu, resultSlideshow);
+                            PduLoaded pduLoaded = new PduLoaded(resultPdu,
+                                    resultSlideshow, resultSummary);
                             callback.onItemLoaded(pduLoaded, resultException);
                         }
                     }
@@ -210,12 +344,15 @@ public class PduLoaderManager extends BackgroundLoaderManager {
                     if (resultSlideshow != null) {
                         mSlideshowCache.put(mUri, resultSlideshow);
                     }
+                    if (resultSummary != null) {
+                        mSummaryCache.put(mUri, resultSummary);
+                    }
 
-                    mCallbacks.remove(mUri);
-                    mPendingTaskUris.remove(mUri);
+                    mCallbacks.remove(mKey);
+                    mPendingTaskUris.remove(mKey);
 
                     if (Log.isLoggable(LogTag.PDU_CACHE, Log.DEBUG)) {
-                        Log.d(TAG, "Pdu task for " + mUri + "exiting; " + mPendingTaskUris.size()
+                        Log.d(TAG, "Pdu task for " + mKey + "exiting; " + mPendingTaskUris.size()
                                 + " remain");
                     }
                 }
@@ -226,10 +363,16 @@ public class PduLoaderManager extends BackgroundLoaderManager {
     public static class PduLoaded {
         public final GenericPdu mPdu;
         public final SlideshowModel mSlideshow;
+        public final PduSummary mSummary;
 
         public PduLoaded(GenericPdu pdu, SlideshowModel slideshow) {
+            this(pdu, slideshow, null);
+        }
+
+        public PduLoaded(GenericPdu pdu, SlideshowModel slideshow, PduSummary summary) {
             mPdu = pdu;
             mSlideshow = slideshow;
+            mSummary = summary;
         }
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import android.net.Uri;
+
+import com.android.mms.model.SlideModel;
+import com.android.mms.model.SlideshowModel;
+import com.android.mms.model.TextModel;
+import com.android.mms.ui.MessageUtils;
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.RetrieveConf;
+
+/**
+ * What a message list row needs to know about a downloaded mms message, taken from its
+ * pdu and slideshow. It's small enough to keep on disk, so a row can be drawn without
+ * loading the pdu and parsing the SMIL again. The slideshow itself is only loaded when
+ * the user opens the message.
+ */
+public class PduSummary {
+    // Bump this when the serialized form changes.
+    private static final int FORMAT_VERSION = 1;
+
+    // Identifies the state of the message the summary was made from; see
+    // PduLoaderManager#getPduSummary.
+    public final String mVersion;
+
+    // The sender, for received messages. null for sent ones.
+    public final String mFrom;
+    // The date from the pdu, in seconds.
+    public final long mDate;
+    public final int mAttachmentType;
+    // The text of the first slide.
+    public final String mBody;
+    public final String mTextContentType;
+    public final int mMessageSize;
+    public final int mSlideCount;
+    // The image or video on the first slide, if any, to show a thumbnail of.
+    public final Uri mThumbnailUri;
+    public final boolean mThumbnailIsVideo;
+
+    private PduSummary(String version, String from, long date, int attachmentType,
+            String body, String textContentType, int messageSize, int slideCount,
+            Uri thumbnailUri, boolean thumbnailIsVideo) {
+        mVersion = version;
+        mFrom = from;
+        mDate = date;
+        mAttachmentType = attachmentType;
+        mBody = body;
+        mTextContentType = textContentType;
+        mMessageSize = messageSize;
+        mSlideCount = slideCount;
+        mThumbnailUri = thumbnailUri;
+        mThumbnailIsVideo = thumbnailIsVideo;
+    }
+
+    /**
+     * Make the summary of a loaded message. Either argument may be null if it couldn't be
+     * loaded.
+     */
+    public static PduSummary create(String version, MultimediaMessagePdu msg,
+            SlideshowModel slideshow) {
+        String from = null;
+        if (msg instanceof RetrieveConf) {
+            EncodedStringValue v = ((RetrieveConf) msg).getFrom();
+            from = v != null ? v.getString() : null;
+        }
+        long date = msg != null ? msg.getDate() : 0;
+
+        String body = null;
+        String textContentType = null;
+        Uri thumbnailUri = null;
+        boolean thumbnailIsVideo = false;
+        SlideModel slide = slideshow == null ? null : slideshow.get(0);
+        if (slide != null) {
+            if (slide.hasText()) {
+                TextModel tm = slide.getText();
+                body = tm.getText();
+                textContentType = tm.getContentType();
+            }
+            if (slide.hasImage()) {
+                thumbnailUri = slide.getImage().getUri();
+            } else if (slide.hasVideo()) {
+                thumbnailUri = slide.getVideo().getUri();
+                thumbnailIsVideo = true;
+            }
+        }
+
+        return new PduSummary(version, from, date,
+                MessageUtils.getAttachmentType(slideshow, msg), body, textContentType,
+                slideshow == null ? 0 : slideshow.getTotalMessageSize(),
+                slideshow == null ? 0 : slideshow.size(), thumbnailUri, thumbnailIsVideo);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT_VERSION);
+            writeString(out, mVersion);
+            writeString(out, mFrom);
+            out.writeLong(mDate);
+            out.writeInt(mAttachmentType);
+            writeString(out, mBody);
+            writeString(out, mTextContentType);
+            out.writeInt(mMessageSize);
+            out.writeInt(mSlideCount);
+            writeString(out, mThumbnailUri != null ? mThumbnailUri.toString() : null);
+            out.writeBoolean(mThumbnailIsVideo);
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen writing to a ByteArrayOutputStream.
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the summary serialized in the length bytes of data at offset, or null if
+     * they don't hold one in the current format.
+     */
+    public static PduSummary fromBytes(byte[] data, int offset, int length) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            if (in.readByte() != FORMAT_VERSION) {
+                return null;
+            }
+            String version = readString(in);
+            String from = readString(in);
+            long date = in.readLong();
+            int attachmentType = in.readInt();
+            String body = readString(in);
+            String textContentType = readString(in);
+            int messageSize = in.readInt();
+            int slideCount = in.readInt();
+            String thumbnailUri = readString(in);
+            boolean thumbnailIsVideo = in.readBoolean();
+            return new PduSummary(version, from, date, attachmentType, body, textContentType,
+                    messageSize, slideCount,
+                    thumbnailUri != null ? Uri.parse(thumbnailUri) : null, thumbnailIsVideo);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Not writeUTF, which can't write more than 64K; message text can be longer.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes("UTF-8");
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("truncated summary");
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, "UTF-8");
+    }
+
+    /**
+     * Rough number of bytes the summary takes in memory.
+     */
+    public int getWeight() {
+        int weight = 64;
+        if (mBody != null) {
+            weight += mBody.length() * 2;
+        }
+        return weight;
+    }
+}
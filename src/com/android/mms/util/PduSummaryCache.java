@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * {@link PduSummary PduSummaries} on disk, keyed by message uri and the version of the
+ * message they were made from. A summary for an older version of a message is never
+ * returned; it just ages out of the cache. A summary holds message text, so the whole
+ * cache is deleted when messages are; see PduLoaderManager.clearSummaryBackingStore.
+ */
+class PduSummaryCache {
+    @SuppressWarnings("unused")
+    private static final String TAG = "PduSummaryCache";
+
+    public static final String SUMMARY_CACHE_FILE = "pdusummary";
+    private static final int SUMMARY_CACHE_MAX_ENTRIES = 2000;
+    private static final int SUMMARY_CACHE_MAX_BYTES = 2 * 1024 * 1024;
+    private static final int SUMMARY_CACHE_VERSION = 1;
+
+    private final Context mContext;
+
+    PduSummaryCache(Context context) {
+        mContext = context;
+    }
+
+    // Asked for every time, since CacheManager.deleteCache may have closed the last one.
+    private BlobCache getCache() {
+        return CacheManager.getCache(mContext, SUMMARY_CACHE_FILE,
+                SUMMARY_CACHE_MAX_ENTRIES, SUMMARY_CACHE_MAX_BYTES, SUMMARY_CACHE_VERSION);
+    }
+
+    // Each value starts with a hash of its key, like in ImageCacheService, to tell apart
+    // keys that share a crc.
+    private static final int KEY_CHECK_SIZE = 4;
+
+    private static String makeKey(Uri uri, String version) {
+        return uri + "@" + version;
+    }
+
+    PduSummary get(Uri uri, String version) {
+        BlobCache cache = getCache();
+        if (cache == null) return null;
+        String key = makeKey(uri, version);
+        BlobCache.LookupRequest req = new BlobCache.LookupRequest();
+        req.key = ImageCacheService.crc64Long(key);
+        try {
+            if (!cache.lookup(req)) return null;
+        } catch (IOException ex) {
+            return null;
+        }
+        if (req.length < KEY_CHECK_SIZE || BlobCache.readInt(req.buffer, 0) != key.hashCode()) {
+            return null;
+        }
+        PduSummary summary = PduSummary.fromBytes(req.buffer, KEY_CHECK_SIZE,
+                req.length - KEY_CHECK_SIZE);
+        if (summary == null || !version.equals(summary.mVersion)) {
+            return null;
+        }
+        return summary;
+    }
+
+    void put(Uri uri, PduSummary summary) {
+        BlobCache cache = getCache();
+        if (cache == null) return;
+        String key = makeKey(uri, summary.mVersion);
+        byte[] value = summary.toBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_CHECK_SIZE + value.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(key.hashCode());
+        buffer.put(value);
+        try {
+            cache.insert(ImageCacheService.crc64Long(key), buffer.array());
+        } catch (IOException ex) {
+            // ignore.
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A {@link BlobCache} split into several independent caches, each with its own index
+ * and data files, with every key going to the same one. An insert only locks the shard
+ * its key goes to, so the thumbnail loaders and the UI thread don't all wait on a
+ * single cache. The limits passed in are for the whole cache; each shard gets an
+ * equal part of them.
+ * <p>
+ * Shard i uses the files path + "." + i + ".idx", path + "." + i + ".0" and
+ * path + "." + i + ".1".
+ */
+public class ShardedBlobCache implements Closeable {
+    private final BlobCache[] mShards;
+
+    public ShardedBlobCache(String path, int shards, int maxEntries, int maxBytes,
+            boolean reset, int version) throws IOException {
+        mShards = new BlobCache[shards];
+        try {
+            for (int i = 0; i < shards; i++) {
+                mShards[i] = new BlobCache(path + "." + i, Math.max(1, maxEntries / shards),
+                        maxBytes / shards, reset, version);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Delete the files associated with the given path previously created
+    // by the ShardedBlobCache constructor.
+    public static void deleteFiles(String path, int shards) {
+        for (int i = 0; i < shards; i++) {
+            BlobCache.deleteFiles(path + "." + i);
+        }
+    }
+
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    private BlobCache shardFor(long key) {
+        // BlobCache picks the hash slot from the key modulo the number of entries,
+        // so use the high bits here to keep the two choices independent.
+        int hash = (int) (key >>> 32);
+        return mShards[(hash & Integer.MAX_VALUE) % mShards.length];
+    }
+
+    public void insert(long key, byte[] data) throws IOException {
+        shardFor(key).insert(key, data);
+    }
+
+    public byte[] lookup(long key) throws IOException {
+        return shardFor(key).lookup(key);
+    }
+
+    public boolean lookup(BlobCache.LookupRequest req) throws IOException {
+        return shardFor(req.key).lookup(req);
+    }
+
+    public void syncIndex() {
+        for (BlobCache shard : mShards) {
+            shard.syncIndex();
+        }
+    }
+
+    public void syncAll() {
+        for (BlobCache shard : mShards) {
+            shard.syncAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (BlobCache shard : mShards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+}
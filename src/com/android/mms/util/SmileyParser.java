@@ -17,8 +17,6 @@
 package com.android.mms.util;
 
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.text.Spannable;
@@ -41,14 +39,15 @@ public class SmileyParser {
 
     private final Context mContext;
     private final String[] mSmileyTexts;
-    private final Pattern mPattern;
-    private final HashMap<String, Integer> mSmileyToRes;
+    private final TokenMatcher mMatcher;
+    // The icon of each of mMatcher's tokens.
+    private final int[] mTokenToRes;
 
     private SmileyParser(Context context) {
         mContext = context;
         mSmileyTexts = mContext.getResources().getStringArray(DEFAULT_SMILEY_TEXTS);
-        mSmileyToRes = buildSmileyToRes();
-        mPattern = buildPattern();
+        mMatcher = new TokenMatcher(mSmileyTexts);
+        mTokenToRes = buildTokenToRes(buildSmileyToRes());
     }
 
     static class Smileys {
@@ -153,27 +152,17 @@ public class SmileyParser {
     }
 
     /**
-     * Builds the regular expression we use to find smileys in {@link #addSmileySpans}.
+     * Builds the table we use for mapping the index of a smiley matched by
+     * {@link #addSmileySpans} to a resource ID for the icon version.
      */
-    private Pattern buildPattern() {
-        // Set the StringBuilder capacity with the assumption that the average
-        // smiley is 3 characters long.
-        StringBuilder patternString = new StringBuilder(mSmileyTexts.length * 3);
-
-        // Build a regex that looks like (:-)|:-(|...), but escaping the smilies
-        // properly so they will be interpreted literally by the regex matcher.
-        patternString.append('(');
-        for (String s : mSmileyTexts) {
-            patternString.append(Pattern.quote(s));
-            patternString.append('|');
+    private int[] buildTokenToRes(HashMap<String, Integer> smileyToRes) {
+        int[] tokenToRes = new int[mSmileyTexts.length];
+        for (int i = 0; i < mSmileyTexts.length; i++) {
+            tokenToRes[i] = smileyToRes.get(mSmileyTexts[i]);
         }
-        // Replace the extra '|' with a ')'
-        patternString.replace(patternString.length() - 1, patternString.length(), ")");
-
-        return Pattern.compile(patternString.toString());
+        return tokenToRes;
     }
 
-
     /**
      * Adds ImageSpans to a CharSequence that replace textual emoticons such
      * as :-) with a graphical version.
@@ -185,12 +174,19 @@ public class SmileyParser {
     public CharSequence addSmileySpans(CharSequence text) {
         SpannableStringBuilder builder = new SpannableStringBuilder(text);
 
-        Matcher matcher = mPattern.matcher(text);
-        while (matcher.find()) {
-            int resId = mSmileyToRes.get(matcher.group());
-            builder.setSpan(new ImageSpan(mContext, resId),
-                            matcher.start(), matcher.end(),
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int token = mMatcher.match(text, start);
+            if (token < 0) {
+                start++;
+                continue;
+            }
+            int end = start + mMatcher.getToken(token).length();
+            builder.setSpan(new ImageSpan(mContext, mTokenToRes[token]),
+                            start, end,
                             Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            start = end;
         }
 
         return builder;
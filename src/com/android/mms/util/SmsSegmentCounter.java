@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.telephony.SmsMessage;
+import android.telephony.TelephonyManager;
+import android.text.Editable;
+import android.text.TextWatcher;
+
+import com.android.internal.telephony.GsmAlphabet;
+
+/**
+ * Works out what {@link SmsMessage#calculateLength(CharSequence, boolean)} says about the
+ * text in an editor without going over all of it on every keystroke. Fed the editor's
+ * text changes, it keeps totals of what the text's characters cost in the GSM 7-bit
+ * alphabet and in UCS-2, subtracting the characters an edit removes and adding the ones
+ * it inserts, so an edit costs time proportional to its size rather than the text's.
+ * <p>
+ * If a {@link UnicodeFilter} is given, the text is counted as it will be sent: with each
+ * character replaced by what the filter replaces it with.
+ * <p>
+ * The totals only decide the answer with the default GSM alphabet. With national language
+ * shift tables enabled, or on a CDMA phone, where the rules are different,
+ * {@link #calculateLength} falls back to calling SmsMessage on the whole text.
+ * <p>
+ * The counter must be added to the editor as a TextWatcher once, ahead of any watcher
+ * that asks it for the length, or be told about changes some other way, with
+ * {@link #reset} called after changes it wasn't told about. A change it is told about
+ * twice, because it was added twice, is noticed and makes it recount, so it stays right
+ * even then.
+ */
+public class SmsSegmentCounter implements TextWatcher {
+    private final UnicodeFilter mFilter;
+
+    // Whether the totals below describe the text; if not they're recounted when needed.
+    private boolean mValid;
+
+    // The length of the text as the editor has it.
+    private int mSourceLength;
+    // The length of the text as it will be sent, after filtering.
+    private int mCodeUnits;
+    // The septets the text takes in the GSM 7-bit alphabet, leaving out the characters
+    // that aren't in it.
+    private int mSeptets;
+    // How many characters of the text aren't in the GSM 7-bit alphabet.
+    private int mUnencodable;
+
+    // The change beforeTextChanged was told about and onTextChanged hasn't been yet, and
+    // the totals of the characters it replaces, or mPendingStart is -1 if there's none.
+    private int mPendingStart = -1;
+    private int mPendingBefore;
+    private int mPendingAfter;
+    private int mPendingCodeUnits;
+    private int mPendingSeptets;
+    private int mPendingUnencodable;
+
+    /**
+     * @param filter the filter the text goes through before it's sent, or null
+     */
+    public SmsSegmentCounter(UnicodeFilter filter) {
+        mFilter = filter;
+    }
+
+    /**
+     * Forget the totals; they're recounted from the text the next time they're needed.
+     */
+    public void reset() {
+        mValid = false;
+        mPendingStart = -1;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        if (!mValid) {
+            return;
+        }
+        // Told twice, this just works out the same thing again.
+        int codeUnits = mCodeUnits;
+        int septets = mSeptets;
+        int unencodable = mUnencodable;
+        add(s, start, start + count, 1);
+        mPendingStart = start;
+        mPendingBefore = count;
+        mPendingAfter = after;
+        mPendingCodeUnits = mCodeUnits - codeUnits;
+        mPendingSeptets = mSeptets - septets;
+        mPendingUnencodable = mUnencodable - unencodable;
+        mCodeUnits = codeUnits;
+        mSeptets = septets;
+        mUnencodable = unencodable;
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (!mValid) {
+            return;
+        }
+        if (mPendingStart != start || mPendingBefore != before || mPendingAfter != count) {
+            // Not the change beforeTextChanged was told about; we've either been told about
+            // this one already or missed it.
+            reset();
+            return;
+        }
+        mPendingStart = -1;
+        mCodeUnits -= mPendingCodeUnits;
+        mSeptets -= mPendingSeptets;
+        mUnencodable -= mPendingUnencodable;
+        add(s, start, start + count, 1);
+        mSourceLength += count - before;
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    /**
+     * Returns what SmsMessage.calculateLength(text, false) returns for s, after the
+     * filter if there is one. s must be the text this counter has been told about.
+     */
+    public int[] calculateLength(CharSequence s) {
+        if (!isDefaultAlphabetOnly()) {
+            return SmsMessage.calculateLength(mFilter != null ? mFilter.filter(s) : s, false);
+        }
+        if (!mValid || mSourceLength != s.length()) {
+            // The text was changed behind our back; start again.
+            mSourceLength = s.length();
+            mCodeUnits = 0;
+            mSeptets = 0;
+            mUnencodable = 0;
+            add(s, 0, s.length(), 1);
+            mPendingStart = -1;
+            mValid = true;
+        }
+
+        int[] ret = new int[4];
+        if (mUnencodable == 0) {
+            ret[1] = mSeptets;
+            if (mSeptets > SmsMessage.MAX_USER_DATA_SEPTETS) {
+                ret[0] = (mSeptets + (SmsMessage.MAX_USER_DATA_SEPTETS_WITH_HEADER - 1)) /
+                        SmsMessage.MAX_USER_DATA_SEPTETS_WITH_HEADER;
+                ret[2] = ret[0] * SmsMessage.MAX_USER_DATA_SEPTETS_WITH_HEADER - mSeptets;
+            } else {
+                ret[0] = 1;
+                ret[2] = SmsMessage.MAX_USER_DATA_SEPTETS - mSeptets;
+            }
+            ret[3] = SmsMessage.ENCODING_7BIT;
+        } else {
+            int octets = mCodeUnits * 2;
+            ret[1] = mCodeUnits;
+            if (octets > SmsMessage.MAX_USER_DATA_BYTES) {
+                ret[0] = (octets + (SmsMessage.MAX_USER_DATA_BYTES_WITH_HEADER - 1)) /
+                        SmsMessage.MAX_USER_DATA_BYTES_WITH_HEADER;
+                ret[2] = (ret[0] * SmsMessage.MAX_USER_DATA_BYTES_WITH_HEADER - octets) / 2;
+            } else {
+                ret[0] = 1;
+                ret[2] = (SmsMessage.MAX_USER_DATA_BYTES - octets) / 2;
+            }
+            ret[3] = SmsMessage.ENCODING_16BIT;
+        }
+        return ret;
+    }
+
+    /**
+     * Whether SmsMessage counts with just the default GSM alphabet and its extension
+     * table, falling back to UCS-2, which is all the totals can answer for.
+     */
+    private static boolean isDefaultAlphabetOnly() {
+        return TelephonyManager.getDefault().getCurrentPhoneType() !=
+                TelephonyManager.PHONE_TYPE_CDMA &&
+                GsmAlphabet.getEnabledSingleShiftTables().length == 0 &&
+                GsmAlphabet.getEnabledLockingShiftTables().length == 0;
+    }
+
+    // Add the costs of the characters of s from start to end, times sign, to the totals.
+    private void add(CharSequence s, int start, int end, int sign) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (mFilter == null) {
+                addChar(c, sign);
+            } else {
+                String filtered = mFilter.filter(c);
+                for (int j = 0; j < filtered.length(); j++) {
+                    addChar(filtered.charAt(j), sign);
+                }
+            }
+        }
+    }
+
+    private void addChar(char c, int sign) {
+        mCodeUnits += sign;
+        // 1 for a character in the default table, 2 for one in the extension table, or -1.
+        int septets = GsmAlphabet.countGsmSeptetsUsingTables(String.valueOf(c), false, 0, 0);
+        if (septets < 0) {
+            mUnencodable += sign;
+        } else {
+            mSeptets += septets * sign;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import android.graphics.BitmapFactory.Options;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.util.Log;
@@ -53,9 +54,14 @@ import com.android.mms.util.ImageCacheService.ImageData;
  * tasks.
  * <p>
  * ThumbnailManager is used to asynchronously load pictures and create thumbnails. The thumbnails
- * are stored in a local cache with SoftReferences. Once a thumbnail is loaded, it will call the
- * passed in callback with the result. If a thumbnail is immediately available in the cache,
- * the callback will be called immediately as well.
+ * are stored in a local cache bounded by the bytes the bitmaps use. Once a thumbnail is loaded,
+ * it will call the passed in callback with the result. If a thumbnail is immediately available
+ * in the cache, the callback will be called immediately as well.
+ * <p>
+ * Thumbnails come in two sizes: {@link #TYPE_THUMBNAIL}, for views that show the picture
+ * large, and the cheaper {@link #TYPE_MICROTHUMBNAIL} for message list rows, as big as the
+ * rows show an inline attachment (mms_inline_attachment_size) in pixels. Both are stored
+ * in the same {@link ImageCacheService}.
  *
  * Based on BooksImageManager by Virgil King.
  */
@@ -68,8 +74,18 @@ public class ThumbnailManager extends BackgroundLoaderManager {
     private static final boolean DEBUG_LONG_WAIT = false;
 
     private static final int COMPRESS_JPEG_QUALITY = 90;
+    private static final int MICRO_COMPRESS_JPEG_QUALITY = 75;
+
+    // Micro thumbnails are kept in the in-memory cache and tracked as pending tasks under
+    // the image uri with this query parameter added, so they don't collide with the full
+    // thumbnail of the same image.
+    private static final String MICRO_KEY_PARAMETER = "micro_thumbnail";
+
+    private static final int MAX_THUMBNAIL_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_BITMAP_POOL_BYTES = 4 * 1024 * 1024;
 
-    private final SimpleCache<Uri, Bitmap> mThumbnailCache;
+    private final WeightedLruCache<Uri, Bitmap> mThumbnailCache;
+    private final BitmapPool mBitmapPool;
     private final Context mContext;
     private ImageCacheService mImageCacheService;
     private static Bitmap mEmptyImageBitmap;
@@ -78,15 +94,27 @@ public class ThumbnailManager extends BackgroundLoaderManager {
     // NOTE: These type numbers are stored in the image cache, so it should not
     // not be changed without resetting the cache.
     public static final int TYPE_THUMBNAIL = 1;
-    public static final int TYPE_MICROTHUMBNAIL = 2;
+    // 2 was micro thumbnails at a fixed 128px, which are left to age out of the cache.
+    public static final int TYPE_MICROTHUMBNAIL = 3;
 
     public static final int THUMBNAIL_TARGET_SIZE = 640;
 
+    // The long side of a micro thumbnail: mms_inline_attachment_size in pixels, but no
+    // bigger than a full thumbnail.
+    private final int mMicroTargetSize;
+
     public ThumbnailManager(final Context context) {
         super(context);
 
-        mThumbnailCache = new SimpleCache<Uri, Bitmap>(8, 16, 0.75f, true);
+        mThumbnailCache = new WeightedLruCache<Uri, Bitmap>("ThumbnailCache",
+                (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_THUMBNAIL_CACHE_BYTES),
+                WeightedLruCache.BITMAP_WEIGHER);
+        mBitmapPool = new BitmapPool(
+                (int) Math.min(Runtime.getRuntime().maxMemory() / 32, MAX_BITMAP_POOL_BYTES));
         mContext = context;
+        mMicroTargetSize = Math.min(THUMBNAIL_TARGET_SIZE,
+                context.getResources().getDimensionPixelSize(
+                        R.dimen.mms_inline_attachment_size));
 
         mEmptyImageBitmap = BitmapFactory.decodeResource(context.getResources(),
                 R.drawable.ic_missing_thumbnail_picture);
@@ -106,7 +134,17 @@ public class ThumbnailManager extends BackgroundLoaderManager {
      */
     public ItemLoadedFuture getThumbnail(Uri uri,
             final ItemLoadedCallback<ImageLoaded> callback) {
-        return getThumbnail(uri, false, callback);
+        return getThumbnail(uri, false, TYPE_THUMBNAIL, callback);
+    }
+
+    /**
+     * Same as {@link #getThumbnail(Uri, ItemLoadedCallback)}, but loads the thumbnail of
+     * the given type.
+     * @param type {@link #TYPE_THUMBNAIL} or {@link #TYPE_MICROTHUMBNAIL}
+     */
+    public ItemLoadedFuture getThumbnail(Uri uri, int type,
+            final ItemLoadedCallback<ImageLoaded> callback) {
+        return getThumbnail(uri, false, type, callback);
     }
 
     /**
@@ -118,24 +156,43 @@ public class ThumbnailManager extends BackgroundLoaderManager {
      */
     public ItemLoadedFuture getVideoThumbnail(Uri uri,
             final ItemLoadedCallback<ImageLoaded> callback) {
-        return getThumbnail(uri, true, callback);
+        return getThumbnail(uri, true, TYPE_THUMBNAIL, callback);
     }
 
-    private ItemLoadedFuture getThumbnail(Uri uri, boolean isVideo,
+    /**
+     * Same as {@link #getVideoThumbnail(Uri, ItemLoadedCallback)}, but loads the thumbnail
+     * of the given type.
+     * @param type {@link #TYPE_THUMBNAIL} or {@link #TYPE_MICROTHUMBNAIL}
+     */
+    public ItemLoadedFuture getVideoThumbnail(Uri uri, int type,
+            final ItemLoadedCallback<ImageLoaded> callback) {
+        return getThumbnail(uri, true, type, callback);
+    }
+
+    // The key the thumbnail of the given type is cached and loaded under.
+    private static Uri getCacheKey(Uri uri, int type) {
+        if (type == TYPE_MICROTHUMBNAIL) {
+            return uri.buildUpon().appendQueryParameter(MICRO_KEY_PARAMETER, "1").build();
+        }
+        return uri;
+    }
+
+    private ItemLoadedFuture getThumbnail(Uri uri, boolean isVideo, int type,
             final ItemLoadedCallback<ImageLoaded> callback) {
         if (uri == null) {
             throw new NullPointerException();
         }
 
-        final Bitmap thumbnail = DEBUG_DISABLE_CACHE ? null : mThumbnailCache.get(uri);
+        final Uri key = getCacheKey(uri, type);
+        final Bitmap thumbnail = DEBUG_DISABLE_CACHE ? null : mThumbnailCache.get(key);
 
         final boolean thumbnailExists = (thumbnail != null);
-        final boolean taskExists = mPendingTaskUris.contains(uri);
+        final boolean taskExists = mPendingTaskUris.contains(key);
         final boolean newTaskRequired = !thumbnailExists && !taskExists;
         final boolean callbackRequired = (callback != null);
 
         if (Log.isLoggable(LogTag.THUMBNAIL_CACHE, Log.DEBUG)) {
-            Log.v(TAG, "getThumbnail mThumbnailCache.get for uri: " + uri + " thumbnail: " +
+            Log.v(TAG, "getThumbnail mThumbnailCache.get for uri: " + key + " thumbnail: " +
                     thumbnail + " callback: " + callback + " thumbnailExists: " +
                     thumbnailExists + " taskExists: " + taskExists +
                     " newTaskRequired: " + newTaskRequired +
@@ -151,13 +208,13 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         }
 
         if (callbackRequired) {
-            addCallback(uri, callback);
+            addCallback(key, callback);
         }
 
         if (newTaskRequired) {
-            mPendingTaskUris.add(uri);
-            Runnable task = new ThumbnailTask(uri, isVideo);
-            mExecutor.execute(task);
+            mPendingTaskUris.add(key);
+            Runnable task = new ThumbnailTask(uri, key, isVideo, type);
+            submitTask(key, task);
         }
         return new ItemLoadedFuture() {
             private boolean mIsDone;
@@ -165,7 +222,8 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             @Override
             public void cancel(Uri uri) {
                 cancelCallback(callback);
-                removeThumbnail(uri);   // if the thumbnail is half loaded, force a reload next time
+                // if the thumbnail is half loaded, force a reload next time
+                mThumbnailCache.remove(key);
             }
 
             @Override
@@ -185,9 +243,17 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         super.clear();
 
         mThumbnailCache.clear();    // clear in-memory cache
+        mBitmapPool.clear();
         clearBackingStore();        // clear on-disk cache
     }
 
+    @Override
+    public void dump() {
+        super.dump();
+        mThumbnailCache.dump();
+        mBitmapPool.dump();
+    }
+
     // Delete the on-disk cache, but leave the in-memory cache intact
     public synchronized void clearBackingStore() {
         if (mImageCacheService == null) {
@@ -208,6 +274,7 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         }
         if (uri != null) {
             mThumbnailCache.remove(uri);
+            mThumbnailCache.remove(getCacheKey(uri, TYPE_MICROTHUMBNAIL));
         }
     }
 
@@ -225,14 +292,18 @@ public class ThumbnailManager extends BackgroundLoaderManager {
 
     public class ThumbnailTask implements Runnable {
         private final Uri mUri;
+        private final Uri mKey;
         private final boolean mIsVideo;
+        private final int mType;
 
-        public ThumbnailTask(Uri uri, boolean isVideo) {
-            if (uri == null) {
+        public ThumbnailTask(Uri uri, Uri key, boolean isVideo, int type) {
+            if (uri == null || key == null) {
                 throw new NullPointerException();
             }
             mUri = uri;
+            mKey = key;
             mIsVideo = isVideo;
+            mType = type;
         }
 
         /** {@inheritDoc} */
@@ -250,7 +321,8 @@ public class ThumbnailManager extends BackgroundLoaderManager {
 
             Bitmap bitmap = null;
             try {
-                bitmap = getBitmap(mIsVideo);
+                bitmap = mType == TYPE_MICROTHUMBNAIL ?
+                        getMicroBitmap(mIsVideo) : getBitmap(mIsVideo);
             } catch (IllegalArgumentException e) {
                 Log.e(TAG, "Couldn't load bitmap for " + mUri, e);
             } catch (OutOfMemoryError e) {
@@ -261,7 +333,7 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             mCallbackHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    final Set<ItemLoadedCallback> callbacks = mCallbacks.get(mUri);
+                    final Set<ItemLoadedCallback> callbacks = mCallbacks.get(mKey);
                     if (callbacks != null) {
                         Bitmap bitmap = resultBitmap == null ?
                                 (mIsVideo ? mEmptyVideoBitmap : mEmptyImageBitmap)
@@ -286,20 +358,20 @@ public class ThumbnailManager extends BackgroundLoaderManager {
                     // Add the bitmap to the soft cache if the load succeeded. Don't cache the
                     // stand-ins for empty bitmaps.
                     if (resultBitmap != null) {
-                        mThumbnailCache.put(mUri, resultBitmap);
+                        mThumbnailCache.put(mKey, resultBitmap);
                         if (Log.isLoggable(LogTag.THUMBNAIL_CACHE, Log.DEBUG)) {
-                            Log.v(TAG, "in callback runnable: bitmap uri: " + mUri +
+                            Log.v(TAG, "in callback runnable: bitmap uri: " + mKey +
                                     " width: " + resultBitmap.getWidth() + " height: " +
                                     resultBitmap.getHeight() + " size: " +
                                     resultBitmap.getByteCount());
                         }
                     }
 
-                    mCallbacks.remove(mUri);
-                    mPendingTaskUris.remove(mUri);
+                    mCallbacks.remove(mKey);
+                    mPendingTaskUris.remove(mKey);
 
                     if (Log.isLoggable(LogTag.THUMBNAIL_CACHE, Log.DEBUG)) {
-                        Log.d(TAG, "Image task for " + mUri + "exiting " + mPendingTaskUris.size()
+                        Log.d(TAG, "Image task for " + mKey + "exiting " + mPendingTaskUris.size()
                                 + " remain");
                     }
                 }
@@ -329,17 +401,13 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             }
 
             if (data != null) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap = requestDecode(data.mData,
-                        data.mOffset, data.mData.length - data.mOffset, options);
+                Bitmap bitmap = decodeCached(data);
                 if (bitmap == null) {
                     Log.w(TAG, "decode cached failed " + path);
+                    return null;
                 }
                 if (orientation != 0) {
-                    Matrix m = new Matrix();
-                    UriImage.endowTransformMatrix(m, 1, orientation);
-                    bitmap = Bitmap.createBitmap(bitmap,0, 0, bitmap.getWidth(), bitmap.getHeight(), m, false);
+                    bitmap = resizeBitmapByScale(bitmap, 1, orientation, true);
                 }
                 return bitmap;
             } else {
@@ -357,13 +425,83 @@ public class ThumbnailManager extends BackgroundLoaderManager {
                 bitmap = resizeDownBySideLength(bitmap, THUMBNAIL_TARGET_SIZE, orientation, true);
 
                 if (!isTempFile) {
-                    byte[] array = compressBitmap(bitmap);
+                    byte[] array = compressBitmap(bitmap, COMPRESS_JPEG_QUALITY);
                     cacheService.putImageData(path, TYPE_THUMBNAIL, array);
                 }
                 return bitmap;
             }
         }
 
+        /**
+         * Returns the micro thumbnail for the image or video. It's made from the full
+         * thumbnail if that is in the image cache, which is much cheaper than decoding the
+         * original again, and stored in the image cache next to it.
+         */
+        private Bitmap getMicroBitmap(boolean isVideo) {
+            ImageCacheService cacheService = getImageCacheService();
+
+            UriImage uriImage = new UriImage(mContext, mUri);
+            String path = uriImage.getPath();
+            int orientation = uriImage.getOrientation();
+
+            if (path == null) {
+                return null;
+            }
+            boolean isTempFile = TempFileProvider.isTempFile(path);
+
+            ImageData data = null;
+            if (!isTempFile) {
+                data = cacheService.getImageData(path, TYPE_MICROTHUMBNAIL);
+            }
+            if (data != null) {
+                // Micro thumbnails are stored already rotated.
+                Bitmap bitmap = decodeCached(data);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+                Log.w(TAG, "decode cached micro failed " + path);
+            }
+
+            Bitmap bitmap = null;
+            if (!isTempFile) {
+                data = cacheService.getImageData(path, TYPE_THUMBNAIL);
+            }
+            if (data != null) {
+                // The full thumbnail was stored rotated, so only scale it down.
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                options.inMutable = true;
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data.mData, data.mOffset, data.mLength, options);
+                options.inSampleSize = computeSampleSizeLarger(options.outWidth,
+                        options.outHeight, mMicroTargetSize);
+                options.inJustDecodeBounds = false;
+                bitmap = requestDecode(data.mData, data.mOffset, data.mLength, options);
+                if (bitmap != null) {
+                    bitmap = resizeDownBySideLength(bitmap, mMicroTargetSize, 0, true);
+                }
+            }
+            if (bitmap == null) {
+                if (isVideo) {
+                    bitmap = getVideoBitmap();
+                } else {
+                    bitmap = onDecodeOriginal(mUri, TYPE_MICROTHUMBNAIL);
+                }
+                if (bitmap == null) {
+                    Log.w(TAG, "decode orig failed " + path);
+                    return null;
+                }
+                bitmap = resizeDownBySideLength(bitmap, mMicroTargetSize,
+                        orientation, true);
+            }
+
+            if (!isTempFile) {
+                byte[] array = compressBitmap(bitmap, MICRO_COMPRESS_JPEG_QUALITY);
+                cacheService.putImageData(path, TYPE_MICROTHUMBNAIL, array);
+            }
+            return bitmap;
+        }
+
         private Bitmap getVideoBitmap() {
             MediaMetadataRetriever retriever = new MediaMetadataRetriever();
             try {
@@ -381,13 +519,40 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             return null;
         }
 
-        private byte[] compressBitmap(Bitmap bitmap) {
+        private byte[] compressBitmap(Bitmap bitmap, int quality) {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.JPEG,
-                    COMPRESS_JPEG_QUALITY, os);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, os);
             return os.toByteArray();
         }
 
+        /**
+         * Decode a thumbnail from the image cache, into a bitmap from the pool if there
+         * is one of the right size.
+         */
+        private Bitmap decodeCached(ImageData data) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data.mData, data.mOffset, data.mLength, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+            options.inBitmap = mBitmapPool.get(options.outWidth, options.outHeight);
+            if (options.inBitmap != null) {
+                try {
+                    // Decode straight out of the lookup buffer.
+                    return requestDecode(data.mData, data.mOffset, data.mLength, options);
+                } catch (IllegalArgumentException e) {
+                    // The decoder couldn't reuse it after all; decode into a new bitmap.
+                    mBitmapPool.put(options.inBitmap);
+                    options.inBitmap = null;
+                }
+            }
+            return requestDecode(data.mData, data.mOffset, data.mLength, options);
+        }
+
         private Bitmap requestDecode(byte[] bytes, int offset,
                 int length, Options options) {
             if (options == null) {
@@ -411,6 +576,7 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         }
 
         // @param orientation: After resizing also rotate
+        // @param recycle: bitmap isn't used anywhere else and can go back to the pool
         private Bitmap resizeBitmapByScale(
                 Bitmap bitmap, float scale, int orientation, boolean recycle) {
             Matrix m = new Matrix();
@@ -420,8 +586,16 @@ public class ThumbnailManager extends BackgroundLoaderManager {
             if (width == bitmap.getWidth()
                     && height == bitmap.getHeight() && orientation ==0) return bitmap;
             Log.w(TAG, "resizeBitmapByScale, orientation = " + orientation + " scale = " + scale);
-            Bitmap target = Bitmap.createBitmap(bitmap,0,0,bitmap.getWidth(),bitmap.getHeight(),m,false);
-            if (recycle) bitmap.recycle();
+
+            // Draw into a pooled bitmap rather than have Bitmap.createBitmap allocate one.
+            RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            m.mapRect(bounds);
+            m.postTranslate(-bounds.left, -bounds.top);
+            Bitmap target = mBitmapPool.getCleared(Math.max(1, Math.round(bounds.width())),
+                    Math.max(1, Math.round(bounds.height())));
+            Canvas canvas = new Canvas(target);
+            canvas.drawBitmap(bitmap, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+            if (recycle) mBitmapPool.put(bitmap);
             return target;
         }
 
@@ -446,8 +620,11 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         private Bitmap onDecodeOriginal(Uri uri, int type) {
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            // So the decoded original can go to the pool once it's been scaled down.
+            options.inMutable = true;
 
-            return requestDecode(uri, options, THUMBNAIL_TARGET_SIZE);
+            return requestDecode(uri, options, type == TYPE_MICROTHUMBNAIL ?
+                    mMicroTargetSize : THUMBNAIL_TARGET_SIZE);
         }
 
         private void closeSilently(Closeable c) {
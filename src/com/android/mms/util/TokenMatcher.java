@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds a fixed set of literal tokens, such as the smiley and emoji texts, in text. The
+ * tokens are compiled into a trie of flat arrays once, and {@link #match} walks it from a
+ * given offset, so finding the tokens in a string takes one pass over it that never looks
+ * further ahead than the longest token.
+ * <p>
+ * The result is the same as that of a regular expression made by joining the quoted
+ * tokens with '|': at any offset the token that comes first in the list wins, even if a
+ * later one is longer.
+ * <p>
+ * Instances are immutable and safe to use from several threads.
+ */
+class TokenMatcher {
+    private final String[] mTokens;
+
+    // Where the edges out of each node start in mKeys and mNext, and how many there are.
+    private final int[] mEdgeStart;
+    private final int[] mEdgeCount;
+
+    // The edges out of all the nodes. The edges of a node are contiguous and sorted by
+    // their char. Node 0 is the root.
+    private final char[] mKeys;
+    private final int[] mNext;
+
+    // For each node, the lowest index of the tokens that end there, or -1.
+    private final int[] mToken;
+
+    TokenMatcher(String[] tokens) {
+        mTokens = tokens.clone();
+
+        ArrayList<TreeMap<Character, Integer>> edges = new ArrayList<TreeMap<Character, Integer>>();
+        ArrayList<Integer> tokenAt = new ArrayList<Integer>();
+        edges.add(new TreeMap<Character, Integer>());
+        tokenAt.add(-1);
+        int edgeCount = 0;
+        for (int t = 0; t < mTokens.length; t++) {
+            String token = mTokens[t];
+            if (token.length() == 0) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < token.length(); i++) {
+                Integer next = edges.get(node).get(token.charAt(i));
+                if (next == null) {
+                    next = edges.size();
+                    edges.get(node).put(token.charAt(i), next);
+                    edges.add(new TreeMap<Character, Integer>());
+                    tokenAt.add(-1);
+                    edgeCount++;
+                }
+                node = next;
+            }
+            if (tokenAt.get(node) < 0) {
+                tokenAt.set(node, t);
+            }
+        }
+
+        int nodes = edges.size();
+        mEdgeStart = new int[nodes];
+        mEdgeCount = new int[nodes];
+        mToken = new int[nodes];
+        mKeys = new char[edgeCount];
+        mNext = new int[edgeCount];
+        int e = 0;
+        for (int node = 0; node < nodes; node++) {
+            mEdgeStart[node] = e;
+            mEdgeCount[node] = edges.get(node).size();
+            mToken[node] = tokenAt.get(node);
+            for (Map.Entry<Character, Integer> edge : edges.get(node).entrySet()) {
+                mKeys[e] = edge.getKey();
+                mNext[e] = edge.getValue();
+                e++;
+            }
+        }
+    }
+
+    /**
+     * Returns the token with the given index in the array the matcher was made from.
+     */
+    String getToken(int token) {
+        return mTokens[token];
+    }
+
+    /**
+     * Returns the index of the token that text has at offset start, or -1 if none of them
+     * starts there. If several do, the one that comes first in the list is returned.
+     */
+    int match(CharSequence text, int start) {
+        int length = text.length();
+        int node = 0;
+        int best = -1;
+        for (int i = start; i < length; i++) {
+            node = next(node, text.charAt(i));
+            if (node < 0) {
+                break;
+            }
+            int token = mToken[node];
+            if (token >= 0 && (best < 0 || token < best)) {
+                best = token;
+            }
+        }
+        return best;
+    }
+
+    private int next(int node, char c) {
+        int low = mEdgeStart[node];
+        int high = low + mEdgeCount[node] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char key = mKeys[mid];
+            if (key < c) {
+                low = mid + 1;
+            } else if (key > c) {
+                high = mid - 1;
+            } else {
+                return mNext[mid];
+            }
+        }
+        return -1;
+    }
+}
@@ -45,71 +45,11 @@ public class UnicodeFilter {
     }
 
     public CharSequence filter(CharSequence source) {
-        StringBuilder output = new StringBuilder(source);
         final int sourceLength = source.length();
+        StringBuilder output = new StringBuilder(sourceLength);
 
         for (int i = 0; i < sourceLength; i++) {
-            char c = source.charAt(i);
-
-            // Character requires Unicode, try to replace it
-            if (!mStripNonDecodableOnly || !gsm.canEncode(c)) {
-                String s = String.valueOf(c);
-
-                // Try normalizing the character into Unicode NFKD form and
-                // stripping out diacritic mark characters.
-                s = Normalizer.normalize(s, Normalizer.Form.NFKD);
-                s = diacritics.matcher(s).replaceAll("");
-
-                // Special case characters that don't get stripped by the
-                // above technique.
-                s = s.replace("Œ", "OE");
-                s = s.replace("œ", "oe");
-                s = s.replace("Ł", "L");
-                s = s.replace("ł", "l");
-                s = s.replace("Đ", "DJ");
-                s = s.replace("đ", "dj");
-                s = s.replace("Α", "A");
-                s = s.replace("Β", "B");
-                s = s.replace("Ε", "E");
-                s = s.replace("Ζ", "Z");
-                s = s.replace("Η", "H");
-                s = s.replace("Ι", "I");
-                s = s.replace("Κ", "K");
-                s = s.replace("Μ", "M");
-                s = s.replace("Ν", "N");
-                s = s.replace("Ο", "O");
-                s = s.replace("Ρ", "P");
-                s = s.replace("Τ", "T");
-                s = s.replace("Υ", "Y");
-                s = s.replace("Χ", "X");
-                s = s.replace("α", "A");
-                s = s.replace("β", "B");
-                s = s.replace("γ", "Γ");
-                s = s.replace("δ", "Δ");
-                s = s.replace("ε", "E");
-                s = s.replace("ζ", "Z");
-                s = s.replace("η", "H");
-                s = s.replace("θ", "Θ");
-                s = s.replace("ι", "I");
-                s = s.replace("κ", "K");
-                s = s.replace("λ", "Λ");
-                s = s.replace("μ", "M");
-                s = s.replace("ν", "N");
-                s = s.replace("ξ", "Ξ");
-                s = s.replace("ο", "O");
-                s = s.replace("π", "Π");
-                s = s.replace("ρ", "P");
-                s = s.replace("σ", "Σ");
-                s = s.replace("τ", "T");
-                s = s.replace("υ", "Y");
-                s = s.replace("φ", "Φ");
-                s = s.replace("χ", "X");
-                s = s.replace("ψ", "Ψ");
-                s = s.replace("ω", "Ω");
-                s = s.replace("ς", "Σ");
-
-                output.replace(i, i + 1, s);
-            }
+            output.append(filter(source.charAt(i)));
         }
 
         // Source is a spanned string, so copy the spans from it
@@ -124,4 +64,70 @@ public class UnicodeFilter {
         // Source is a vanilla charsequence, so return output as-is
         return output.toString();
     }
+
+    /**
+     * Returns what a single character is replaced with; the character itself if it's
+     * left alone.
+     */
+    public String filter(char c) {
+        String s = String.valueOf(c);
+
+        // Character requires Unicode, try to replace it
+        if (!mStripNonDecodableOnly || !gsm.canEncode(c)) {
+
+            // Try normalizing the character into Unicode NFKD form and
+            // stripping out diacritic mark characters.
+            s = Normalizer.normalize(s, Normalizer.Form.NFKD);
+            s = diacritics.matcher(s).replaceAll("");
+
+            // Special case characters that don't get stripped by the
+            // above technique.
+            s = s.replace("Œ", "OE");
+            s = s.replace("œ", "oe");
+            s = s.replace("Ł", "L");
+            s = s.replace("ł", "l");
+            s = s.replace("Đ", "DJ");
+            s = s.replace("đ", "dj");
+            s = s.replace("Α", "A");
+            s = s.replace("Β", "B");
+            s = s.replace("Ε", "E");
+            s = s.replace("Ζ", "Z");
+            s = s.replace("Η", "H");
+            s = s.replace("Ι", "I");
+            s = s.replace("Κ", "K");
+            s = s.replace("Μ", "M");
+            s = s.replace("Ν", "N");
+            s = s.replace("Ο", "O");
+            s = s.replace("Ρ", "P");
+            s = s.replace("Τ", "T");
+            s = s.replace("Υ", "Y");
+            s = s.replace("Χ", "X");
+            s = s.replace("α", "A");
+            s = s.replace("β", "B");
+            s = s.replace("γ", "Γ");
+            s = s.replace("δ", "Δ");
+            s = s.replace("ε", "E");
+            s = s.replace("ζ", "Z");
+            s = s.replace("η", "H");
+            s = s.replace("θ", "Θ");
+            s = s.replace("ι", "I");
+            s = s.replace("κ", "K");
+            s = s.replace("λ", "Λ");
+            s = s.replace("μ", "M");
+            s = s.replace("ν", "N");
+            s = s.replace("ξ", "Ξ");
+            s = s.replace("ο", "O");
+            s = s.replace("π", "Π");
+            s = s.replace("ρ", "P");
+            s = s.replace("σ", "Σ");
+            s = s.replace("τ", "T");
+            s = s.replace("υ", "Y");
+            s = s.replace("φ", "Φ");
+            s = s.replace("χ", "X");
+            s = s.replace("ψ", "Ψ");
+            s = s.replace("ω", "Ω");
+            s = s.replace("ς", "Σ");
+        }
+        return s;
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * An LRU cache bounded by the total weight of its values (normally an estimate of the
+ * bytes they hold) rather than by how many there are, so a few large bitmaps can't take
+ * as much room as many small ones. It has the same get/put/remove/clear interface as
+ * {@link SimpleCache}.
+ * <p>
+ * This class is safe to use from several threads.
+ */
+public class WeightedLruCache<K, V> {
+    private static final String TAG = "Mms/WeightedLruCache";
+
+    /**
+     * Reports how much room a value takes in the cache.
+     */
+    public interface Weigher<V> {
+        /**
+         * Returns the weight of value. Must not change while value is in the cache.
+         */
+        int weightOf(V value);
+    }
+
+    /**
+     * Weighs bitmaps by the bytes their pixels use.
+     */
+    public static final Weigher<Bitmap> BITMAP_WEIGHER = new Weigher<Bitmap>() {
+        @Override
+        public int weightOf(Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
+
+    private final String mName;
+    private final LruCache<K, V> mCache;
+
+    /**
+     * @param name the name the cache goes by in {@link #dump()}
+     * @param maxWeight the most total weight the values in the cache can have
+     * @param weigher how to weigh the values
+     */
+    public WeightedLruCache(String name, int maxWeight, final Weigher<V> weigher) {
+        mName = name;
+        mCache = new LruCache<K, V>(maxWeight) {
+            @Override
+            protected int sizeOf(K key, V value) {
+                return weigher.weightOf(value);
+            }
+        };
+    }
+
+    /**
+     * See {@link java.util.Map#get(Object)}.
+     */
+    public V get(K key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * See {@link java.util.Map#put(Object, Object)}.
+     */
+    public V put(K key, V value) {
+        return mCache.put(key, value);
+    }
+
+    /**
+     * See {@link java.util.Map#remove(Object)}.
+     */
+    public V remove(K key) {
+        return mCache.remove(key);
+    }
+
+    /**
+     * See {@link java.util.Map#clear()}.
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns the fraction of lookups that found a value, or 0 if there were none.
+     */
+    public float getHitRatio() {
+        int hits = mCache.hitCount();
+        int lookups = hits + mCache.missCount();
+        return lookups > 0 ? (float) hits / lookups : 0;
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    public void dump() {
+        Log.d(TAG, mName + ": " + mCache.size() + "/" + mCache.maxSize() +
+                " hits=" + mCache.hitCount() + " misses=" + mCache.missCount() +
+                " hitRatio=" + getHitRatio() + " evictions=" + mCache.evictionCount());
+    }
+}
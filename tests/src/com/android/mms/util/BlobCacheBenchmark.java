@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Checks that BlobCache and ShardedBlobCache return the right blobs when used from
+ * several threads at once, and logs how many lookups a second each of them manages.
+ */
+@LargeTest
+public class BlobCacheBenchmark extends AndroidTestCase {
+    private static final String TAG = "BlobCacheBenchmark";
+
+    private static final int ENTRIES = 200;
+    private static final int BLOB_SIZE = 4 * 1024;
+    private static final int MAX_ENTRIES = 1000;
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+    private static final int THREADS = 4;
+    private static final int LOOKUPS_PER_THREAD = 2000;
+    private static final int SHARDS = 4;
+
+    private String mPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPath = getContext().getCacheDir().getAbsolutePath() + "/blobcache_benchmark";
+        deleteFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles();
+        super.tearDown();
+    }
+
+    private void deleteFiles() {
+        BlobCache.deleteFiles(mPath);
+        ShardedBlobCache.deleteFiles(mPath, SHARDS);
+    }
+
+    /**
+     * The common interface of the two caches, for the benchmark.
+     */
+    private interface Cache {
+        void insert(long key, byte[] data) throws IOException;
+        byte[] lookup(long key) throws IOException;
+    }
+
+    private static long keyFor(int i) {
+        // Spread the keys over all 64 bits like the crc64 keys the app uses.
+        return ImageCacheService.crc64Long("blob" + i);
+    }
+
+    private static byte[] blobFor(long key) {
+        byte[] data = new byte[BLOB_SIZE];
+        new Random(key).nextBytes(data);
+        return data;
+    }
+
+    public void testSingleCacheLookups() throws Exception {
+        final BlobCache cache = new BlobCache(mPath, MAX_ENTRIES, MAX_BYTES, true);
+        try {
+            runLookups("BlobCache", new Cache() {
+                public void insert(long key, byte[] data) throws IOException {
+                    cache.insert(key, data);
+                }
+                public byte[] lookup(long key) throws IOException {
+                    return cache.lookup(key);
+                }
+            });
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testShardedCacheLookups() throws Exception {
+        final ShardedBlobCache cache = new ShardedBlobCache(mPath, SHARDS, MAX_ENTRIES,
+                MAX_BYTES, true, 0);
+        try {
+            runLookups("ShardedBlobCache", new Cache() {
+                public void insert(long key, byte[] data) throws IOException {
+                    cache.insert(key, data);
+                }
+                public byte[] lookup(long key) throws IOException {
+                    return cache.lookup(key);
+                }
+            });
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Readers must only ever see complete, matching blobs while a writer is inserting.
+     */
+    public void testLookupsDuringInserts() throws Exception {
+        final ShardedBlobCache cache = new ShardedBlobCache(mPath, SHARDS, MAX_ENTRIES,
+                MAX_BYTES, true, 0);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger found = new AtomicInteger();
+        try {
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < ENTRIES * 4; i++) {
+                            long key = keyFor(i % (ENTRIES * 2));
+                            cache.insert(key, blobFor(key));
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            Thread[] readers = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                final Random random = new Random(t);
+                readers[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                                long key = keyFor(random.nextInt(ENTRIES * 2));
+                                byte[] data = cache.lookup(key);
+                                if (data == null) {
+                                    continue;
+                                }
+                                found.incrementAndGet();
+                                if (!Arrays.equals(blobFor(key), data)) {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                };
+            }
+            writer.start();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            writer.join();
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        } finally {
+            cache.close();
+        }
+        Log.d(TAG, "lookups during inserts: found " + found.get());
+        assertEquals(0, errors.get());
+    }
+
+    private void runLookups(String name, final Cache cache) throws Exception {
+        for (int i = 0; i < ENTRIES; i++) {
+            long key = keyFor(i);
+            cache.insert(key, blobFor(key));
+        }
+        // Precompute the expected blobs so the threads measure the cache, not Random.
+        final long[] keys = new long[ENTRIES];
+        final byte[][] blobs = new byte[ENTRIES][];
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = keyFor(i);
+            blobs[i] = blobFor(keys[i]);
+        }
+
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                            int n = random.nextInt(ENTRIES);
+                            if (!Arrays.equals(blobs[n], cache.lookup(keys[n]))) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+        int lookups = THREADS * LOOKUPS_PER_THREAD;
+        Log.d(TAG, name + ": " + lookups + " lookups on " + THREADS + " threads in " +
+                elapsed + "ms (" + (lookups * 1000L / elapsed) + " lookups/s)");
+        assertEquals(0, errors.get());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Checks that HanziToPinyin's lookup table gives every char the pinyin the collator based
+ * binary search it replaced gave it, and logs how fast each of them converts names and
+ * how long the table takes to fill in.
+ */
+@LargeTest
+public class HanziToPinyinBenchmark extends AndroidTestCase {
+    private static final String TAG = "HanziToPinyinBenchmark";
+
+    private static final int NAMES = 5000;
+
+    // Copied from HanziToPinyin.
+    private static final String FIRST_PINYIN_UNIHAN = "\u963F";
+    private static final String LAST_PINYIN_UNIHAN = "\u84D9";
+    private static final char FIRST_UNIHAN = '\u3400';
+
+    private static final Collator COLLATOR = Collator.getInstance(Locale.CHINA);
+
+    private static boolean hasChinaCollator() {
+        return Arrays.asList(Collator.getAvailableLocales()).contains(Locale.CHINA);
+    }
+
+    /**
+     * The pinyin of character the way HanziToPinyin used to find it, or null if it has
+     * none. Chars it failed on are given the first pinyin, as HanziToPinyin now does.
+     */
+    private static String referencePinyin(char character) {
+        final String letter = Character.toString(character);
+        int offset = -1;
+        int cmp = COLLATOR.compare(letter, FIRST_PINYIN_UNIHAN);
+        if (cmp < 0) {
+            return null;
+        } else if (cmp == 0) {
+            offset = 0;
+        } else {
+            cmp = COLLATOR.compare(letter, LAST_PINYIN_UNIHAN);
+            if (cmp > 0) {
+                return null;
+            } else if (cmp == 0) {
+                offset = HanziToPinyin.UNIHANS.length - 1;
+            }
+        }
+        if (offset < 0) {
+            int begin = 0;
+            int end = HanziToPinyin.UNIHANS.length - 1;
+            while (begin <= end) {
+                offset = (begin + end) / 2;
+                cmp = COLLATOR.compare(letter,
+                        Character.toString(HanziToPinyin.UNIHANS[offset]));
+                if (cmp == 0) {
+                    break;
+                } else if (cmp > 0) {
+                    begin = offset + 1;
+                } else {
+                    end = offset - 1;
+                }
+            }
+        }
+        if (cmp < 0) {
+            offset--;
+        }
+        offset = Math.max(offset, 0);
+        StringBuilder pinyin = new StringBuilder();
+        byte[] bytes = HanziToPinyin.PINYINS[offset];
+        for (int j = 0; j < bytes.length && bytes[j] != 0; j++) {
+            pinyin.append((char) bytes[j]);
+        }
+        return pinyin.toString();
+    }
+
+    // What getFullPinYin used to return.
+    private static String referenceFullPinyin(String name) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= FIRST_UNIHAN) {
+                String pinyin = referencePinyin(c);
+                if (pinyin != null) {
+                    result.append(pinyin);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    public void testEveryChar() {
+        if (!hasChinaCollator()) {
+            Log.w(TAG, "No Chinese collator, skipping");
+            return;
+        }
+        HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+        for (int c = FIRST_UNIHAN; c <= Character.MAX_VALUE; c++) {
+            String letter = Character.toString((char) c);
+            ArrayList<HanziToPinyin.Token> tokens = hanziToPinyin.get(letter);
+            assertEquals(1, tokens.size());
+            HanziToPinyin.Token token = tokens.get(0);
+            String expected = referencePinyin((char) c);
+            if (expected == null) {
+                assertEquals("U+" + Integer.toHexString(c), HanziToPinyin.Token.UNKNOWN,
+                        token.type);
+                assertEquals(letter, token.target);
+            } else {
+                assertEquals("U+" + Integer.toHexString(c), HanziToPinyin.Token.PINYIN,
+                        token.type);
+                assertEquals("U+" + Integer.toHexString(c), expected, token.target);
+            }
+        }
+    }
+
+    public void testNames() {
+        if (!hasChinaCollator()) {
+            Log.w(TAG, "No Chinese collator, skipping");
+            return;
+        }
+        HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+
+        // Two or three CJK ideographs, sometimes with a latin name or initial.
+        Random random = new Random(1);
+        String[] names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            StringBuilder name = new StringBuilder();
+            int length = 2 + random.nextInt(2);
+            for (int j = 0; j < length; j++) {
+                name.append((char) (0x4e00 + random.nextInt(0x51a6)));
+            }
+            if (random.nextInt(4) == 0) {
+                name.append(" Lee");
+            }
+            names[i] = name.toString();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        String[] expected = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            expected[i] = referenceFullPinyin(names[i]);
+        }
+        long collatorTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        String[] actual = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            actual[i] = hanziToPinyin.getFullPinYin(names[i]);
+        }
+        long tableTime = SystemClock.elapsedRealtime() - start;
+
+        for (int i = 0; i < NAMES; i++) {
+            assertEquals(names[i], expected[i], actual[i]);
+        }
+        Log.d(TAG, NAMES + " names: collator " + collatorTime + "ms, table " + tableTime +
+                "ms");
+    }
+
+    /**
+     * Logs how long a new HanziToPinyin takes to make, to convert its first name, which
+     * fills in only the blocks that name's chars are in, and to fill in the rest.
+     */
+    public void testFirstLookup() {
+        if (!hasChinaCollator()) {
+            Log.w(TAG, "No Chinese collator, skipping");
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        HanziToPinyin hanziToPinyin = new HanziToPinyin(true);
+        long constructTime = SystemClock.elapsedRealtime() - start;
+
+        String name = "\u5f20\u4f1f";
+        start = SystemClock.elapsedRealtime();
+        String pinyin = hanziToPinyin.getFullPinYin(name);
+        long firstTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(referenceFullPinyin(name), pinyin);
+
+        start = SystemClock.elapsedRealtime();
+        for (int c = FIRST_UNIHAN; c <= Character.MAX_VALUE; c += 256) {
+            hanziToPinyin.get(Character.toString((char) c));
+        }
+        long fillTime = SystemClock.elapsedRealtime() - start;
+
+        Log.d(TAG, "construct " + constructTime + "ms, first name " + firstTime +
+                "ms, rest of the table " + fillTime + "ms");
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import android.telephony.SmsMessage;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Makes random edits to a text, telling SmsSegmentCounter about them the way an editor
+ * would, and checks that after every edit it agrees with SmsMessage.calculateLength on
+ * the whole text.
+ */
+@SmallTest
+public class SmsSegmentCounterTest extends AndroidTestCase {
+    private static final int EDITS = 2000;
+
+    // Plain GSM, GSM extension table characters that take two septets, accented letters
+    // the filter can strip, Greek, CJK and a surrogate pair.
+    private static final String[] PIECES = {
+        "a", "hello ", "Z", "0", "\n", "@", "$", "{", "}", "[", "]", "\u20ac", "^", "~",
+        "\u00e9", "\u00e8", "\u00e1", "\u00c7", "\u0153", "\u0141", "\u03b1", "\u03a3",
+        "\u4e2d\u6587", "\uD83D\uDE00",
+    };
+
+    private static String randomPiece(Random random) {
+        StringBuilder piece = new StringBuilder();
+        int count = 1 + random.nextInt(random.nextInt(10) == 0 ? 200 : 4);
+        for (int i = 0; i < count; i++) {
+            piece.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return piece.toString();
+    }
+
+    // A piece as long as length, made of random PIECES characters.
+    private static String randomPiece(Random random, int length) {
+        StringBuilder piece = new StringBuilder();
+        while (piece.length() < length) {
+            piece.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return piece.substring(0, length);
+    }
+
+    private void runEdits(UnicodeFilter filter, long seed) {
+        runEdits(filter, seed, 1, false);
+    }
+
+    /**
+     * Makes EDITS random edits, telling the counter about each of them times times, the
+     * way TextView does a watcher that was added times times: every beforeTextChanged,
+     * then every onTextChanged. If sameLength, every edit replaces as many chars as it
+     * inserts, the way autocorrect and an IME's composing text often do.
+     */
+    private void runEdits(UnicodeFilter filter, long seed, int times, boolean sameLength) {
+        Random random = new Random(seed);
+        SmsSegmentCounter counter = new SmsSegmentCounter(filter);
+        String text = sameLength ? randomPiece(random, 200) : "";
+        for (int i = 0; i < EDITS; i++) {
+            // Replace a random range, which may be empty, with a random piece, which may
+            // be empty too; long texts get deletions more often to keep them in range.
+            int start = random.nextInt(text.length() + 1);
+            int before = random.nextInt(Math.min(text.length() - start,
+                    text.length() > 1000 ? 400 : 8) + 1);
+            String inserted;
+            if (sameLength) {
+                inserted = randomPiece(random, before);
+            } else {
+                inserted = random.nextInt(4) == 0 ? "" : randomPiece(random);
+            }
+
+            for (int j = 0; j < times; j++) {
+                counter.beforeTextChanged(text, start, before, inserted.length());
+            }
+            text = text.substring(0, start) + inserted + text.substring(start + before);
+            for (int j = 0; j < times; j++) {
+                counter.onTextChanged(text, start, before, inserted.length());
+            }
+
+            CharSequence sent = filter != null ? filter.filter(text) : text;
+            int[] expected = SmsMessage.calculateLength(sent, false);
+            int[] actual = counter.calculateLength(text);
+            assertTrue("edit " + i + ": expected " + Arrays.toString(expected) + " but was " +
+                    Arrays.toString(actual) + " for \"" + text + "\"",
+                    Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testUnfiltered() {
+        runEdits(null, 1);
+    }
+
+    public void testStripAll() {
+        runEdits(new UnicodeFilter(false), 2);
+    }
+
+    public void testStripNonDecodableOnly() {
+        runEdits(new UnicodeFilter(true), 3);
+    }
+
+    public void testRepeatedCallbacks() {
+        runEdits(null, 4, 2, false);
+        runEdits(new UnicodeFilter(false), 5, 3, false);
+    }
+
+    public void testSameLengthReplacements() {
+        runEdits(null, 6, 1, true);
+        runEdits(new UnicodeFilter(false), 7, 1, true);
+    }
+
+    public void testRepeatedSameLengthReplacements() {
+        runEdits(null, 8, 2, true);
+    }
+
+    /**
+     * Changes the counter wasn't told about are noticed when the length changes.
+     */
+    public void testUnreportedChange() {
+        SmsSegmentCounter counter = new SmsSegmentCounter(null);
+        assertTrue(Arrays.equals(SmsMessage.calculateLength("abc", false),
+                counter.calculateLength("abc")));
+        String text = "\u4e2d\u6587 and more";
+        assertTrue(Arrays.equals(SmsMessage.calculateLength(text, false),
+                counter.calculateLength(text)));
+        counter.reset();
+        assertTrue(Arrays.equals(SmsMessage.calculateLength("abd", false),
+                counter.calculateLength("abd")));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Checks that TokenMatcher finds the same smileys and emojis as the regular expressions
+ * SmileyParser and EmojiParser used to build, and logs how long each of them takes over
+ * a corpus of made up messages.
+ */
+@LargeTest
+public class TokenMatcherBenchmark extends AndroidTestCase {
+    private static final String TAG = "TokenMatcherBenchmark";
+
+    private static final int MESSAGES = 2000;
+    private static final int ROUNDS = 10;
+
+    // Ordinary text, and pieces of smileys and emojis that must not match on their own.
+    private static final String[] WORDS = {
+        "hey", "ok", "lol", "see you at 8", "where are you?", "thanks!", "http://x.org/a:b",
+        "O:", ":-", ":", "-", "x", "B-", "<", "3", "\uD83D", "\uDE04", "\u2122", "\u00e9",
+    };
+
+    private static ArrayList<String> buildCorpus(String[] tokens, long seed) {
+        Random random = new Random(seed);
+        ArrayList<String> corpus = new ArrayList<String>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder message = new StringBuilder();
+            int pieces = random.nextInt(40);
+            for (int j = 0; j < pieces; j++) {
+                if (random.nextInt(5) == 0) {
+                    message.append(tokens[random.nextInt(tokens.length)]);
+                } else {
+                    message.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                if (random.nextBoolean()) {
+                    message.append(' ');
+                }
+            }
+            corpus.add(message.toString());
+        }
+        return corpus;
+    }
+
+    // The pattern the parsers used to build.
+    private static Pattern buildPattern(String[] tokens) {
+        StringBuilder pattern = new StringBuilder("(");
+        for (String token : tokens) {
+            pattern.append(Pattern.quote(token)).append('|');
+        }
+        pattern.setCharAt(pattern.length() - 1, ')');
+        return Pattern.compile(pattern.toString());
+    }
+
+    private static String findWithPattern(Pattern pattern, String text) {
+        StringBuilder found = new StringBuilder();
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            found.append(matcher.start()).append('-').append(matcher.end()).append(' ');
+        }
+        return found.toString();
+    }
+
+    private static String findWithMatcher(TokenMatcher matcher, String text) {
+        StringBuilder found = new StringBuilder();
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int token = matcher.match(text, start);
+            if (token < 0) {
+                start++;
+                continue;
+            }
+            int end = start + matcher.getToken(token).length();
+            found.append(start).append('-').append(end).append(' ');
+            start = end;
+        }
+        return found.toString();
+    }
+
+    public void testSmileys() {
+        compare("smileys",
+                getContext().getResources().getStringArray(SmileyParser.DEFAULT_SMILEY_TEXTS));
+    }
+
+    public void testEmojis() {
+        compare("emojis", EmojiParser.buildTokens());
+    }
+
+    /**
+     * A token that is a prefix of an earlier one must not win over it, and a longer
+     * token listed later must not win over a shorter one listed first.
+     */
+    public void testFirstTokenWins() {
+        TokenMatcher matcher = new TokenMatcher(new String[] { ":-)", ":-", "O:-)", ":" });
+        assertEquals(0, matcher.match(":-)", 0));
+        assertEquals(1, matcher.match(":-(", 0));
+        assertEquals(2, matcher.match("O:-)", 0));
+        assertEquals(-1, matcher.match("O:", 0));
+        assertEquals(3, matcher.match("O:", 1));
+        assertEquals("0-4 ", findWithMatcher(matcher, "O:-)"));
+    }
+
+    private void compare(String name, String[] tokens) {
+        Pattern pattern = buildPattern(tokens);
+        TokenMatcher matcher = new TokenMatcher(tokens);
+        ArrayList<String> corpus = buildCorpus(tokens, name.hashCode());
+
+        for (String message : corpus) {
+            assertEquals(message, findWithPattern(pattern, message),
+                    findWithMatcher(matcher, message));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String message : corpus) {
+                findWithPattern(pattern, message);
+            }
+        }
+        long patternTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String message : corpus) {
+                findWithMatcher(matcher, message);
+            }
+        }
+        long matcherTime = SystemClock.elapsedRealtime() - start;
+
+        Log.d(TAG, name + " (" + tokens.length + " tokens, " + ROUNDS * MESSAGES +
+                " messages): Pattern " + patternTime + "ms, TokenMatcher " + matcherTime + "ms");
+    }
+}